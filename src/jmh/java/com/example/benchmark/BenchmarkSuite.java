@@ -0,0 +1,34 @@
+package com.example.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching a pattern once per thread count, with the GC
+ * profiler attached, and writes one JSON result file per thread count.
+ *
+ * Usage: BenchmarkSuite [include-regex] [thread counts, comma separated]
+ */
+public class BenchmarkSuite {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BookServiceBenchmark.class.getSimpleName();
+        String threadCounts = args.length > 1 ? args[1] : "1,4,16";
+
+        for (String count : threadCounts.split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-" + threads + "-threads.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.benchmark;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceImpl;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the BookService hot paths against a pre-filled catalogue.
+ * Run with -prof gc to see allocation per operation; BenchmarkSuite runs it
+ * at several thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookServiceBenchmark {
+
+    @Param({"DIRECT", "INPROCESS", "NETTY"})
+    public Transport transport;
+
+    @Param({"1000", "100000"})
+    public int catalogueSize;
+
+    /** Share of getBook calls in {@link #mixed}; the rest are updateBook. */
+    @Param({"90"})
+    public int readPercent;
+
+    private BookServiceTarget target;
+    private String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BookServiceImpl service = new BookServiceImpl();
+        target = BookServiceTarget.open(Transport.DIRECT, service);
+        ids = new String[catalogueSize];
+        for (int i = 0; i < catalogueSize; i++) {
+            ids[i] = target.addBook(newBook(i)).getBook().getId();
+        }
+        target = BookServiceTarget.open(transport, service);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        target.close();
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse getBook() {
+        return target.getBook(BookServiceProto.GetBookRequest.newBuilder()
+                .setId(randomId())
+                .build());
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse addBook() {
+        return target.addBook(newBook(ThreadLocalRandom.current().nextInt()));
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse updateBook() {
+        return target.updateBook(update(randomId()));
+    }
+
+    @Benchmark
+    public BookServiceProto.ListBooksResponse listBooks() {
+        return target.listBooks(BookServiceProto.ListBooksRequest.newBuilder()
+                .setPageSize(100)
+                .build());
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse mixed() {
+        String id = randomId();
+        if (ThreadLocalRandom.current().nextInt(100) < readPercent) {
+            return target.getBook(BookServiceProto.GetBookRequest.newBuilder().setId(id).build());
+        }
+        return target.updateBook(update(id));
+    }
+
+    private String randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    private static BookServiceProto.AddBookRequest newBook(int n) {
+        return BookServiceProto.AddBookRequest.newBuilder()
+                .setTitle("Benchmark Book " + n)
+                .setAuthor("Author " + (n % 1000))
+                .setPublicationYear(1900 + Math.floorMod(n, 120))
+                .build();
+    }
+
+    private static BookServiceProto.UpdateBookRequest update(String id) {
+        int n = ThreadLocalRandom.current().nextInt(1000);
+        return BookServiceProto.UpdateBookRequest.newBuilder()
+                .setId(id)
+                .setTitle("Updated Book " + n)
+                .setAuthor("Author " + n)
+                .setPublicationYear(2000)
+                .build();
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.benchmark;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BookService calls the benchmarks make, bound to one {@link Transport}.
+ */
+abstract class BookServiceTarget implements AutoCloseable {
+
+    abstract BookServiceProto.BookResponse addBook(BookServiceProto.AddBookRequest request);
+
+    abstract BookServiceProto.BookResponse getBook(BookServiceProto.GetBookRequest request);
+
+    abstract BookServiceProto.BookResponse updateBook(BookServiceProto.UpdateBookRequest request);
+
+    abstract BookServiceProto.ListBooksResponse listBooks(BookServiceProto.ListBooksRequest request);
+
+    abstract BookServiceProto.QueryBooksResponse queryBooks(BookServiceProto.QueryBooksRequest request);
+
+    @Override
+    public void close() throws InterruptedException {
+    }
+
+    static BookServiceTarget open(Transport transport, BookServiceGrpc.BookServiceImplBase service) throws IOException {
+        switch (transport) {
+            case DIRECT:
+                return new Direct(service);
+            case INPROCESS: {
+                String name = "benchmark-" + System.nanoTime();
+                Server server = InProcessServerBuilder.forName(name).addService(service).build().start();
+                return new Remote(server, InProcessChannelBuilder.forName(name).build());
+            }
+            case NETTY: {
+                Server server = ServerBuilder.forPort(0).addService(service).build().start();
+                return new Remote(server, ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                        .usePlaintext()
+                        .build());
+            }
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+    private static final class Direct extends BookServiceTarget {
+        private final BookServiceGrpc.BookServiceImplBase service;
+
+        Direct(BookServiceGrpc.BookServiceImplBase service) {
+            this.service = service;
+        }
+
+        @Override
+        BookServiceProto.BookResponse addBook(BookServiceProto.AddBookRequest request) {
+            Capture<BookServiceProto.BookResponse> response = new Capture<>();
+            service.addBook(request, response);
+            return response.get();
+        }
+
+        @Override
+        BookServiceProto.BookResponse getBook(BookServiceProto.GetBookRequest request) {
+            Capture<BookServiceProto.BookResponse> response = new Capture<>();
+            service.getBook(request, response);
+            return response.get();
+        }
+
+        @Override
+        BookServiceProto.BookResponse updateBook(BookServiceProto.UpdateBookRequest request) {
+            Capture<BookServiceProto.BookResponse> response = new Capture<>();
+            service.updateBook(request, response);
+            return response.get();
+        }
+
+        @Override
+        BookServiceProto.ListBooksResponse listBooks(BookServiceProto.ListBooksRequest request) {
+            Capture<BookServiceProto.ListBooksResponse> response = new Capture<>();
+            service.listBooks(request, response);
+            return response.get();
+        }
+
+        @Override
+        BookServiceProto.QueryBooksResponse queryBooks(BookServiceProto.QueryBooksRequest request) {
+            Capture<BookServiceProto.QueryBooksResponse> response = new Capture<>();
+            service.queryBooks(request, response);
+            return response.get();
+        }
+    }
+
+    private static final class Remote extends BookServiceTarget {
+        private final Server server;
+        private final ManagedChannel channel;
+        private final BookServiceGrpc.BookServiceBlockingStub stub;
+
+        Remote(Server server, ManagedChannel channel) {
+            this.server = server;
+            this.channel = channel;
+            this.stub = BookServiceGrpc.newBlockingStub(channel);
+        }
+
+        @Override
+        BookServiceProto.BookResponse addBook(BookServiceProto.AddBookRequest request) {
+            return stub.addBook(request);
+        }
+
+        @Override
+        BookServiceProto.BookResponse getBook(BookServiceProto.GetBookRequest request) {
+            return stub.getBook(request);
+        }
+
+        @Override
+        BookServiceProto.BookResponse updateBook(BookServiceProto.UpdateBookRequest request) {
+            return stub.updateBook(request);
+        }
+
+        @Override
+        BookServiceProto.ListBooksResponse listBooks(BookServiceProto.ListBooksRequest request) {
+            return stub.listBooks(request);
+        }
+
+        @Override
+        BookServiceProto.QueryBooksResponse queryBooks(BookServiceProto.QueryBooksRequest request) {
+            return stub.queryBooks(request);
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Holds the response of an in-memory call. Most calls complete before
+     * the service method returns; a read that joined another's lookup of a
+     * hot book completes on that reader's thread.
+     */
+    private static final class Capture<T> implements StreamObserver<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private T value;
+        private Throwable error;
+
+        @Override
+        public void onNext(T value) {
+            this.value = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        T get() {
+            try {
+                if (!done.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Call did not complete");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.benchmark;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceServer;
+import com.example.bookservice.ServerOptions;
+import com.example.codec.ZstdCodec;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientStreamTracer;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.Decompressor;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures what response compression costs and saves on catalogue data.
+ * Starts one server that offers zstd and gzip for responses of at least
+ * 1 KiB, loads a generated catalogue whose authors, words and years repeat
+ * the way a real one's do, then lists it page by page through a client
+ * that accepts no compression, only gzip, or only zstd. For each it reports
+ * the bytes received per page, pages per second and the CPU time, client
+ * and server together, per page; then the time each codec alone takes to
+ * compress and decompress one page, and the size of a GetBook reply, which
+ * stays below the threshold.
+ *
+ * Usage: CompressionBenchmark [books] [page size] [seconds per codec]
+ */
+public class CompressionBenchmark {
+
+    private static final String[] FIRST_NAMES = {"James", "Mary", "John", "Patricia", "Robert", "Jennifer",
+        "Michael", "Linda", "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica",
+        "Thomas", "Sarah", "Charles", "Karen", "Agatha", "Ursula", "Haruki", "Chimamanda", "Gabriel", "Toni"};
+    private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia",
+        "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas",
+        "Taylor", "Moore", "Jackson", "Martin", "Lee", "Christie", "Le Guin", "Murakami", "Adichie", "Morrison"};
+    private static final String[] TITLE_WORDS = {"Night", "House", "River", "Garden", "Shadow", "Winter",
+        "Summer", "Secret", "Last", "First", "Silent", "Broken", "Golden", "Lost", "City", "Road", "Sea",
+        "Stars", "Fire", "Glass", "Queen", "King", "Girl", "Boy", "Memory", "Song", "Island", "Light", "Dark",
+        "Forest", "Empire", "Stone", "Clock", "Letter", "Journey", "Hunger", "Storm", "Wolf", "Dream", "Bridge"};
+
+    public static void main(String[] args) throws Exception {
+        int bookCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        BookServiceServer server = new BookServiceServer(ServerOptions.parse(new String[] {
+            "--port=0", "--compression=zstd,gzip", "--compression-threshold=1024", "--concurrency-limit=off"}));
+        server.start();
+        try {
+            load(server.port(), bookCount);
+            BookServiceProto.ListBooksResponse page = null;
+            for (String codec : new String[] {"identity", "gzip", "zstd"}) {
+                page = measureListing(server.port(), codec, pageSize, seconds);
+            }
+            measureCodecs(page);
+            measureGetBook(server.port(), page.getBooks(0).getId());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void load(int port, int bookCount) throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build();
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            StreamObserver<BookServiceProto.AddBookRequest> requests = BookServiceGrpc.newStub(channel)
+                    .bulkAddBooks(new StreamObserver<BookServiceProto.BulkAddBooksResponse>() {
+                        @Override
+                        public void onNext(BookServiceProto.BulkAddBooksResponse response) {
+                            System.out.printf("loaded %,d books%n", response.getAddedCount());
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            System.err.println("Load failed: " + t);
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            done.countDown();
+                        }
+                    });
+            Random random = new Random(42);
+            for (int i = 0; i < bookCount; i++) {
+                requests.onNext(book(random, i));
+            }
+            requests.onCompleted();
+            done.await();
+        } finally {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * A book as a real catalogue might hold it: popular authors and title
+     * words recur far more often than rare ones, and most books are recent.
+     */
+    private static BookServiceProto.AddBookRequest book(Random random, int i) {
+        StringBuilder title = new StringBuilder(random.nextInt(3) == 0 ? "The " : "");
+        int words = 1 + random.nextInt(3);
+        for (int w = 0; w < words; w++) {
+            title.append(w == 0 ? "" : random.nextBoolean() ? " of " : " and ").append(skewed(random, TITLE_WORDS));
+        }
+        String author = skewed(random, FIRST_NAMES) + " " + skewed(random, LAST_NAMES);
+        int year = 2024 - (int) Math.min(170, Math.abs(random.nextGaussian() * 40));
+        return BookServiceProto.AddBookRequest.newBuilder()
+                .setTitle(title.toString())
+                .setAuthor(author)
+                .setIsbn("978" + (1_000_000_000L + i))
+                .setPublicationYear(year)
+                .build();
+    }
+
+    private static String skewed(Random random, String[] choices) {
+        double u = random.nextDouble();
+        return choices[(int) (choices.length * u * u)];
+    }
+
+    private static BookServiceProto.ListBooksResponse measureListing(int port, String codec, int pageSize,
+                                                                     int seconds) throws InterruptedException {
+        WireBytes wire = new WireBytes();
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port)
+                .usePlaintext()
+                .decompressorRegistry(accepting(codec))
+                .build();
+        try {
+            BookServiceGrpc.BookServiceBlockingStub stub = BookServiceGrpc.newBlockingStub(channel)
+                    .withInterceptors(wire);
+            // Warm-up passes for the JIT, not counted
+            for (long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.min(3, seconds)); System.nanoTime() < end; ) {
+                listAll(stub, pageSize);
+            }
+            wire.reset();
+            long pages = 0;
+            long cpuStart = processCpuNanos();
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < end) {
+                pages += listAll(stub, pageSize);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long cpu = processCpuNanos() - cpuStart;
+            long responses = wire.responses.sum();
+            System.out.printf("%-8s ListBooks(%d): %,7d bytes/page on the wire (%,7d uncompressed), %,6.0f pages/s, "
+                            + "%,5.0f us CPU/page%n",
+                    codec, pageSize, wire.wireBytes.sum() / responses, wire.uncompressedBytes.sum() / responses,
+                    pages / elapsed, cpu / 1e3 / pages);
+            return stub.listBooks(BookServiceProto.ListBooksRequest.newBuilder().setPageSize(pageSize).build());
+        } finally {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Lists the whole catalogue a page at a time.
+     *
+     * @return the number of pages
+     */
+    private static int listAll(BookServiceGrpc.BookServiceBlockingStub stub, int pageSize) {
+        int pages = 0;
+        String token = "";
+        do {
+            BookServiceProto.ListBooksResponse page = stub.listBooks(BookServiceProto.ListBooksRequest.newBuilder()
+                    .setPageSize(pageSize)
+                    .setPageToken(token)
+                    .build());
+            pages++;
+            token = page.getNextPageToken();
+        } while (!token.isEmpty());
+        return pages;
+    }
+
+    private static void measureCodecs(BookServiceProto.ListBooksResponse page) throws IOException {
+        byte[] raw = page.toByteArray();
+        for (Codec codec : new Codec[] {new Codec.Gzip(), new ZstdCodec()}) {
+            byte[] compressed = compress(codec, raw);
+            int rounds = 2_000;
+            for (int i = 0; i < rounds; i++) {
+                decompress(codec, compress(codec, raw));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                compress(codec, raw);
+            }
+            long compressNanos = (System.nanoTime() - start) / rounds;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                decompress(codec, compressed);
+            }
+            long decompressNanos = (System.nanoTime() - start) / rounds;
+            System.out.printf("%-8s one %,d-byte page: %,d bytes (%.1f%%), compress %,d us, decompress %,d us%n",
+                    codec.getMessageEncoding(), raw.length, compressed.length, 100.0 * compressed.length / raw.length,
+                    compressNanos / 1_000, decompressNanos / 1_000);
+        }
+    }
+
+    private static void measureGetBook(int port, String bookId) throws InterruptedException {
+        WireBytes wire = new WireBytes();
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port)
+                .usePlaintext()
+                .compressorRegistry(CompressorRegistry.getDefaultInstance())
+                .decompressorRegistry(accepting("zstd"))
+                .build();
+        try {
+            BookServiceGrpc.newBlockingStub(channel).withInterceptors(wire)
+                    .getBook(BookServiceProto.GetBookRequest.newBuilder().setId(bookId).build());
+            System.out.printf("GetBook reply: %d bytes on the wire, %d uncompressed%n",
+                    wire.wireBytes.sum(), wire.uncompressedBytes.sum());
+        } finally {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static DecompressorRegistry accepting(String codec) {
+        DecompressorRegistry none = DecompressorRegistry.emptyInstance().with(Codec.Identity.NONE, false);
+        switch (codec) {
+            case "gzip":
+                return none.with(new Codec.Gzip(), true);
+            case "zstd":
+                return none.with(new ZstdCodec(), true);
+            default:
+                return none;
+        }
+    }
+
+    private static byte[] compress(Codec codec, byte[] raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        try (OutputStream compressing = codec.compress(out)) {
+            compressing.write(raw);
+        }
+        return out.toByteArray();
+    }
+
+    private static void decompress(Decompressor codec, byte[] compressed) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    /**
+     * Adds up the response bytes each call received, before and after
+     * decompression.
+     */
+    private static final class WireBytes extends ClientStreamTracer.Factory implements ClientInterceptor {
+        final LongAdder wireBytes = new LongAdder();
+        final LongAdder uncompressedBytes = new LongAdder();
+        final LongAdder responses = new LongAdder();
+
+        void reset() {
+            wireBytes.reset();
+            uncompressedBytes.reset();
+            responses.reset();
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return next.newCall(method, callOptions.withStreamTracerFactory(this));
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            return new ClientStreamTracer() {
+                @Override
+                public void inboundMessage(int seqNo) {
+                    responses.increment();
+                }
+
+                @Override
+                public void inboundWireSize(long bytes) {
+                    wireBytes.add(bytes);
+                }
+
+                @Override
+                public void inboundUncompressedSize(long bytes) {
+                    uncompressedBytes.add(bytes);
+                }
+            };
+        }
+    }
+}
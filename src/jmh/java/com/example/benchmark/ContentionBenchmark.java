@@ -0,0 +1,189 @@
+package com.example.benchmark;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceImpl;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures getBook latency while writer threads keep updating the same few
+ * hot books. Calls go straight into BookServiceImpl so that only the store is
+ * measured, not the transport.
+ *
+ * Usage: ContentionBenchmark [readers] [writers] [hotBooks] [seconds]
+ */
+public class ContentionBenchmark {
+
+    private static final int MAX_SAMPLES_PER_READER = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int hotBooks = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        BookServiceImpl service = new BookServiceImpl();
+        String[] hotIds = new String[hotBooks];
+        for (int i = 0; i < hotBooks; i++) {
+            hotIds[i] = add(service, i).getBook().getId();
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder writes = new LongAdder();
+        LongAdder rejectedWrites = new LongAdder();
+        LongAdder failedReads = new LongAdder();
+        List<long[]> samples = new ArrayList<>();
+        int[] sampleCounts = new int[readers];
+        CountDownLatch done = new CountDownLatch(readers + writers);
+
+        for (int w = 0; w < writers; w++) {
+            Thread writer = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    String id = hotIds[random.nextInt(hotIds.length)];
+                    BookServiceProto.UpdateBookRequest request = BookServiceProto.UpdateBookRequest.newBuilder()
+                            .setId(id)
+                            .setTitle("Title " + random.nextInt(1000))
+                            .setAuthor("Author")
+                            .setIsbn("isbn-" + id)
+                            .setPublicationYear(2000)
+                            .build();
+                    Capture<BookServiceProto.BookResponse> response = new Capture<>();
+                    service.updateBook(request, response);
+                    // A write that finds the book held is turned away with RESOURCE_EXHAUSTED
+                    if (response.error() == null) {
+                        writes.increment();
+                    } else {
+                        rejectedWrites.increment();
+                    }
+                }
+                done.countDown();
+            }, "writer-" + w);
+            writer.start();
+        }
+
+        for (int r = 0; r < readers; r++) {
+            long[] latencies = new long[MAX_SAMPLES_PER_READER];
+            samples.add(latencies);
+            int slot = r;
+            Thread reader = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int count = 0;
+                while (running.get()) {
+                    BookServiceProto.GetBookRequest request = BookServiceProto.GetBookRequest.newBuilder()
+                            .setId(hotIds[random.nextInt(hotIds.length)])
+                            .build();
+                    Capture<BookServiceProto.BookResponse> response = new Capture<>();
+                    long start = System.nanoTime();
+                    service.getBook(request, response);
+                    boolean found = response.get().getSuccess();
+                    long elapsed = System.nanoTime() - start;
+                    if (!found) {
+                        failedReads.increment();
+                    }
+                    latencies[count % MAX_SAMPLES_PER_READER] = elapsed;
+                    count++;
+                }
+                sampleCounts[slot] = count;
+                done.countDown();
+            }, "reader-" + r);
+            reader.start();
+        }
+
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+
+        long totalReads = 0;
+        int retained = 0;
+        for (int count : sampleCounts) {
+            totalReads += count;
+            retained += Math.min(count, MAX_SAMPLES_PER_READER);
+        }
+        long[] merged = new long[retained];
+        int offset = 0;
+        for (int r = 0; r < readers; r++) {
+            int n = Math.min(sampleCounts[r], MAX_SAMPLES_PER_READER);
+            System.arraycopy(samples.get(r), 0, merged, offset, n);
+            offset += n;
+        }
+        Arrays.sort(merged);
+
+        System.out.printf("readers=%d writers=%d hotBooks=%d duration=%ds%n", readers, writers, hotBooks, seconds);
+        System.out.printf("reads/s=%,d writes/s=%,d rejectedWrites/s=%,d failedReads=%d%n",
+                totalReads / seconds, writes.sum() / seconds, rejectedWrites.sum() / seconds, failedReads.sum());
+        System.out.printf("read latency ns: p50=%d p99=%d p999=%d max=%d%n",
+                percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 0.999),
+                merged.length == 0 ? 0 : merged[merged.length - 1]);
+    }
+
+    private static BookServiceProto.BookResponse add(BookServiceImpl service, int n) {
+        BookServiceProto.AddBookRequest request = BookServiceProto.AddBookRequest.newBuilder()
+                .setTitle("Hot book " + n)
+                .setAuthor("Author")
+                .setIsbn("isbn-" + n)
+                .setPublicationYear(2000)
+                .build();
+        Capture<BookServiceProto.BookResponse> response = new Capture<>();
+        service.addBook(request, response);
+        return response.get();
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Waits for the value handed to a unary call. A read that joined
+     * another's lookup of a hot book completes on that reader's thread.
+     */
+    private static final class Capture<T> implements StreamObserver<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private T value;
+        private Throwable error;
+
+        @Override
+        public void onNext(T value) {
+            this.value = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        T get() {
+            if (error() != null) {
+                throw new IllegalStateException(error);
+            }
+            return value;
+        }
+
+        Throwable error() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return error;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.benchmark;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceImpl;
+import com.example.bookservice.store.StorageEngine;
+import io.grpc.Drainable;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server-side cost of GetBook and ListBooks: the call handler runs and its
+ * response is marshalled into a discarding stream, exactly as the transport
+ * would drain it, but without a transport or a client sharing the CPU.
+ * Compares the generated service definition with
+ * {@link BookServiceImpl#bindEncodedService()}; run with -prof gc to see
+ * allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodedReadBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"false", "true"})
+    public boolean encoded;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public StorageEngine storage;
+
+    @Param({"100000"})
+    public int catalogueSize;
+
+    private ServerMethodDefinition<?, ?> getBook;
+    private ServerMethodDefinition<?, ?> listBooks;
+
+    @Setup
+    public void setUp() throws IOException {
+        BookServiceImpl service = new BookServiceImpl(storage.create());
+        BookServiceTarget target = BookServiceTarget.open(Transport.DIRECT, service);
+        for (int i = 0; i < catalogueSize; i++) {
+            target.addBook(BookServiceProto.AddBookRequest.newBuilder()
+                    .setTitle("Benchmark Book " + i)
+                    .setAuthor("Author " + (i % 1000))
+                    .setIsbn("978" + (1_000_000_000L + i))
+                    .setPublicationYear(1900 + i % 120)
+                    .build());
+        }
+        ServerServiceDefinition definition = encoded ? service.bindEncodedService() : service.bindService();
+        getBook = definition.getMethod(BookServiceGrpc.getGetBookMethod().getFullMethodName());
+        listBooks = definition.getMethod(BookServiceGrpc.getListBooksMethod().getFullMethodName());
+    }
+
+    @Benchmark
+    public long getBook() {
+        return call(getBook, BookServiceProto.GetBookRequest.newBuilder()
+                .setId("B" + ThreadLocalRandom.current().nextInt(catalogueSize))
+                .build());
+    }
+
+    @Benchmark
+    public long listBooks() {
+        return call(listBooks, BookServiceProto.ListBooksRequest.newBuilder()
+                .setPageSize(PAGE_SIZE)
+                .setPageToken(Integer.toString(ThreadLocalRandom.current().nextInt(catalogueSize - PAGE_SIZE)))
+                .build());
+    }
+
+    /**
+     * Runs one unary call through the bound handler.
+     * @return the number of response bytes written
+     */
+    @SuppressWarnings("unchecked")
+    private static <ReqT, RespT> long call(ServerMethodDefinition<ReqT, RespT> method, Object request) {
+        DrainingCall<ReqT, RespT> call = new DrainingCall<>(method.getMethodDescriptor());
+        ServerCall.Listener<ReqT> listener = method.getServerCallHandler().startCall(call, new Metadata());
+        listener.onMessage((ReqT) request);
+        listener.onHalfClose();
+        if (call.status == null || !call.status.isOk()) {
+            throw new IllegalStateException("Call failed: " + call.status);
+        }
+        return call.bytes;
+    }
+
+    private static final class DrainingCall<ReqT, RespT> extends ServerCall<ReqT, RespT> {
+        private final MethodDescriptor<ReqT, RespT> method;
+        private long bytes;
+        private Status status;
+
+        DrainingCall(MethodDescriptor<ReqT, RespT> method) {
+            this.method = method;
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            try (InputStream stream = method.streamResponse(message)) {
+                bytes += ((Drainable) stream).drainTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            this.status = status;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<ReqT, RespT> getMethodDescriptor() {
+            return method;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.benchmark;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.KeyAllocator;
+import com.example.bookservice.store.HeapBookStore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Insert throughput of the id schemes, without a transport or the indexes
+ * in the way. STRING_KEYS is the original scheme: one AtomicInteger and a
+ * map keyed by the id string. SHARED_COUNTER takes long keys from one
+ * shared counter, and STRIPED from KeyAllocator's blocks; both insert into
+ * the heap store. nextKey times taking the key alone, which is all the
+ * schemes differ in. Scores are the time for each thread to make
+ * BATCH_SIZE calls; run it at several thread counts with BenchmarkSuite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = KeyAllocationBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = KeyAllocationBenchmark.BATCH_SIZE)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class KeyAllocationBenchmark {
+
+    // Calls per thread per iteration. A timed run would keep adding books
+    // for as long as the collector lets it, so each iteration inserts a fixed
+    // number into a fresh catalogue instead.
+    static final int BATCH_SIZE = 20_000;
+
+    public enum Scheme { STRING_KEYS, SHARED_COUNTER, STRIPED }
+
+    private static final BookServiceProto.Book TEMPLATE = BookServiceProto.Book.newBuilder()
+            .setTitle("Benchmark Book")
+            .setAuthor("Author")
+            .setPublicationYear(2000)
+            .setVersion(1)
+            .build();
+
+    @Param({"STRING_KEYS", "SHARED_COUNTER", "STRIPED"})
+    public Scheme scheme;
+
+    private AtomicInteger counter;
+    private ConcurrentHashMap<String, BookServiceProto.Book> byId;
+    private KeyAllocator keys;
+    private HeapBookStore store;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        counter = new AtomicInteger();
+        byId = new ConcurrentHashMap<>();
+        keys = new KeyAllocator();
+        store = new HeapBookStore();
+    }
+
+    @Benchmark
+    public void nextKey(Blackhole blackhole) {
+        switch (scheme) {
+            case STRING_KEYS:
+                blackhole.consume("B" + counter.getAndIncrement());
+                break;
+            case SHARED_COUNTER:
+                blackhole.consume(keys.reserve(1));
+                break;
+            default:
+                blackhole.consume(keys.next());
+        }
+    }
+
+    @Benchmark
+    public BookServiceProto.Book addBook() {
+        switch (scheme) {
+            case STRING_KEYS: {
+                String id = "B" + counter.getAndIncrement();
+                BookServiceProto.Book book = TEMPLATE.toBuilder().setId(id).build();
+                byId.put(id, book);
+                return book;
+            }
+            case SHARED_COUNTER:
+                return insert(keys.reserve(1));
+            default:
+                return insert(keys.next());
+        }
+    }
+
+    private BookServiceProto.Book insert(long key) {
+        BookServiceProto.Book book = TEMPLATE.toBuilder().setId("B" + key).build();
+        store.insert(key, book);
+        return book;
+    }
+}
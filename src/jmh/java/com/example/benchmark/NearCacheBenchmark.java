@@ -0,0 +1,117 @@
+package com.example.benchmark;
+
+import com.example.BookServiceClient.BookServiceClient;
+import com.example.BookServiceClient.NearCache;
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceServer;
+import com.example.bookservice.ServerOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getBook latency through BookServiceClient against a server on Netty
+ * loopback, with and without the near cache. Reads are skewed towards a hot
+ * set, and a background writer keeps updating random books so the cache has
+ * invalidations to handle. The cache statistics are printed at the end of
+ * each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NearCacheBenchmark {
+
+    private static final int CATALOGUE_SIZE = 10_000;
+
+    @Param({"0", "1000"})
+    public int cacheSize;
+
+    /** Updates per second sent by the background writer. */
+    @Param({"200"})
+    public int updateRate;
+
+    private BookServiceServer server;
+    private BookServiceClient client;
+    private NearCache cache;
+    private ManagedChannel writerChannel;
+    private Thread writer;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new BookServiceServer(ServerOptions.parse(new String[] {"--port=0"}));
+        server.start();
+        writerChannel = ManagedChannelBuilder.forAddress("localhost", server.port()).usePlaintext().build();
+        BookServiceGrpc.BookServiceBlockingStub writerStub = BookServiceGrpc.newBlockingStub(writerChannel);
+        for (int i = 0; i < CATALOGUE_SIZE; i++) {
+            writerStub.addBook(BookServiceProto.AddBookRequest.newBuilder()
+                    .setTitle("Benchmark Book " + i)
+                    .setAuthor("Author " + (i % 1000))
+                    .setPublicationYear(1900 + i % 120)
+                    .build());
+        }
+
+        client = new BookServiceClient("localhost", server.port());
+        if (cacheSize > 0) {
+            cache = client.enableNearCache(cacheSize, 30, TimeUnit.SECONDS);
+        }
+
+        running = true;
+        writer = new Thread(() -> {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / updateRate;
+            while (running) {
+                int n = ThreadLocalRandom.current().nextInt(CATALOGUE_SIZE);
+                writerStub.updateBook(BookServiceProto.UpdateBookRequest.newBuilder()
+                        .setId("B" + n)
+                        .setTitle("Updated Book " + n)
+                        .setAuthor("Author " + (n % 1000))
+                        .setPublicationYear(2000)
+                        .build());
+                try {
+                    TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "background-writer");
+        writer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        writer.join();
+        if (cache != null) {
+            System.out.println("\nNear cache: " + cache.stats());
+        }
+        client.shutdown();
+        writerChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Benchmark
+    public BookServiceProto.Book getBook() {
+        // Cubing a uniform draw sends about half the reads to the lowest 12% of ids
+        double u = ThreadLocalRandom.current().nextDouble();
+        return client.fetchBook("B" + (int) (CATALOGUE_SIZE * u * u * u));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.benchmark;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceImpl;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * QueryBooks latency over a synthetic catalogue. Titles are drawn from a
+ * skewed vocabulary so some words appear in a large share of books and
+ * others in only a few, like real titles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class QueryBenchmark {
+
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "ne", "ru", "ta", "vo", "shi", "an", "el", "or", "un", "dra", "gon", "bel", "thi",
+    };
+    private static final int VOCABULARY = SYLLABLES.length * SYLLABLES.length * SYLLABLES.length;
+    private static final int AUTHORS = 20_000;
+
+    @Param({"DIRECT"})
+    public Transport transport;
+
+    @Param({"1000000"})
+    public int catalogueSize;
+
+    private BookServiceTarget target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BookServiceImpl service = new BookServiceImpl();
+        target = BookServiceTarget.open(Transport.DIRECT, service);
+        Random random = new Random(42);
+        for (int i = 0; i < catalogueSize; i++) {
+            int words = 2 + random.nextInt(5);
+            StringBuilder title = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    title.append(' ');
+                }
+                title.append(word(skewed(random, VOCABULARY)));
+            }
+            int author = skewed(random, AUTHORS);
+            target.addBook(BookServiceProto.AddBookRequest.newBuilder()
+                    .setTitle(title.toString())
+                    .setAuthor(word(author % VOCABULARY) + " " + word((author * 31) % VOCABULARY))
+                    .setPublicationYear(1900 + random.nextInt(120))
+                    .build());
+        }
+        target = BookServiceTarget.open(transport, service);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        target.close();
+    }
+
+    /** A mid-frequency word, in about 0.1% of books. */
+    @Benchmark
+    public BookServiceProto.QueryBooksResponse singleWord() {
+        return query(word(200), false);
+    }
+
+    /** A common word ANDed with a rarer one. */
+    @Benchmark
+    public BookServiceProto.QueryBooksResponse allOfTwoWords() {
+        return query(word(1) + " " + word(300), true);
+    }
+
+    /** Two common words ORed, so most of the catalogue is scored. */
+    @Benchmark
+    public BookServiceProto.QueryBooksResponse anyOfTwoCommonWords() {
+        return query(word(0) + " " + word(1), false);
+    }
+
+    /** A two-syllable prefix, which expands to every word starting with it. */
+    @Benchmark
+    public BookServiceProto.QueryBooksResponse prefix() {
+        return query(SYLLABLES[3] + SYLLABLES[5] + "*", false);
+    }
+
+    private BookServiceProto.QueryBooksResponse query(String query, boolean matchAll) {
+        return target.queryBooks(BookServiceProto.QueryBooksRequest.newBuilder()
+                .setQuery(query)
+                .setMatchAll(matchAll)
+                .setLimit(10)
+                .build());
+    }
+
+    private static String word(int n) {
+        return SYLLABLES[n % SYLLABLES.length]
+                + SYLLABLES[(n / SYLLABLES.length) % SYLLABLES.length]
+                + SYLLABLES[(n / (SYLLABLES.length * SYLLABLES.length)) % SYLLABLES.length];
+    }
+
+    // Roughly Zipfian: small values are much more likely than large ones
+    private static int skewed(Random random, int bound) {
+        return (int) Math.min(bound - 1, Math.floor(Math.pow(bound + 1, random.nextDouble())) - 1);
+    }
+}
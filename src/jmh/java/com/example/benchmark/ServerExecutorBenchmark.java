@@ -0,0 +1,95 @@
+package com.example.benchmark;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.bookservice.BookServiceServer;
+import com.example.bookservice.ServerOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the server executor modes over Netty loopback. Pass
+ * -p executor=VIRTUAL on JDK 21 or later to include virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerExecutorBenchmark {
+
+    private static final int CATALOGUE_SIZE = 10_000;
+
+    @Param({"DEFAULT", "FORK_JOIN", "DIRECT"})
+    public String executor;
+
+    /** Netty worker event loops; 0 means Netty's default. */
+    @Param({"0"})
+    public int workerThreads;
+
+    private BookServiceServer server;
+    private ManagedChannel channel;
+    private BookServiceGrpc.BookServiceBlockingStub stub;
+    private String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new BookServiceServer(ServerOptions.parse(new String[] {
+                "--port=0",
+                "--executor=" + executor,
+                "--worker-threads=" + workerThreads,
+        }));
+        server.start();
+        channel = ManagedChannelBuilder.forAddress("localhost", server.port()).usePlaintext().build();
+        stub = BookServiceGrpc.newBlockingStub(channel);
+        ids = new String[CATALOGUE_SIZE];
+        for (int i = 0; i < CATALOGUE_SIZE; i++) {
+            ids[i] = stub.addBook(BookServiceProto.AddBookRequest.newBuilder()
+                    .setTitle("Benchmark Book " + i)
+                    .setAuthor("Author " + (i % 1000))
+                    .setPublicationYear(1900 + i % 120)
+                    .build()).getBook().getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse getBook() {
+        return stub.getBook(BookServiceProto.GetBookRequest.newBuilder()
+                .setId(ids[ThreadLocalRandom.current().nextInt(ids.length)])
+                .build());
+    }
+
+    @Benchmark
+    public BookServiceProto.BookResponse updateBook() {
+        int n = ThreadLocalRandom.current().nextInt(1000);
+        return stub.updateBook(BookServiceProto.UpdateBookRequest.newBuilder()
+                .setId(ids[ThreadLocalRandom.current().nextInt(ids.length)])
+                .setTitle("Updated Book " + n)
+                .setAuthor("Author " + n)
+                .setPublicationYear(2000)
+                .build());
+    }
+}
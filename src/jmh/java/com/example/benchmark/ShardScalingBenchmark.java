@@ -0,0 +1,182 @@
+package com.example.benchmark;
+
+import com.example.BookServiceClient.ShardRouter;
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Starts 1, 2 and 4 BookServiceServers, each in its own JVM on a localhost
+ * port and owning one shard, loads the same catalogue through a
+ * {@link ShardRouter}, and measures how many requests per second the cluster
+ * serves: 90% GetBook and 10% UpdateBook routed to the owning shard, plus a
+ * QueryBooks fanned out to every shard once per 100 requests.
+ *
+ * Servers on one machine share its cores, so the numbers only scale as far as
+ * there are cores to spare; pin each server to its own cores, or run them on
+ * separate hosts, to see what sharding buys.
+ *
+ * Usage: ShardScalingBenchmark [shard counts, e.g. 1,2,4] [books] [seconds] [threads]
+ */
+public class ShardScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] shardCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+        int bookCount = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        for (String shardCount : shardCounts) {
+            run(Integer.parseInt(shardCount.trim()), bookCount, seconds, threads);
+        }
+    }
+
+    private static void run(int shards, int bookCount, int seconds, int threads) throws Exception {
+        List<Process> servers = new ArrayList<>();
+        List<String> targets = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                int port = freePort();
+                servers.add(startServer(port, shard));
+                targets.add("localhost:" + port);
+            }
+            try (ShardRouter router = new ShardRouter(targets)) {
+                List<String> ids = load(router, bookCount);
+                measure(router, ids, shards, seconds, threads);
+            }
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+            }
+            for (Process server : servers) {
+                server.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static List<String> load(ShardRouter router, int bookCount) {
+        List<String> ids = new ArrayList<>(bookCount);
+        int[] perShard = new int[router.shardCount()];
+        for (int i = 0; i < bookCount; i++) {
+            String isbn = "978" + (1_000_000_000L + i);
+            BookServiceProto.BookResponse response = router.forNewBook(isbn).addBook(
+                    BookServiceProto.AddBookRequest.newBuilder()
+                            .setTitle("The Collected Works, Volume " + i)
+                            .setAuthor("Author " + (i % 1_000))
+                            .setIsbn(isbn)
+                            .setPublicationYear(1900 + i % 120)
+                            .build());
+            ids.add(response.getBook().getId());
+            perShard[router.shardOf(response.getBook().getId())]++;
+        }
+        StringBuilder spread = new StringBuilder();
+        for (int count : perShard) {
+            spread.append(spread.length() == 0 ? "" : "/").append(count);
+        }
+        System.out.printf("shards=%d books per shard: %s%n", router.shardCount(), spread);
+        return ids;
+    }
+
+    private static void measure(ShardRouter router, List<String> ids, int shards, int seconds, int threads)
+            throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean warm = new AtomicBoolean(false);
+        LongAdder operations = new LongAdder();
+        LongAdder fanOuts = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        BookServiceProto.QueryBooksRequest query = BookServiceProto.QueryBooksRequest.newBuilder()
+                .setQuery("collected works")
+                .setMatchAll(true)
+                .build();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    int choice = random.nextInt(100);
+                    if (choice == 0) {
+                        router.fanOut(shard -> router.blockingStub(shard).queryBooks(query));
+                        if (warm.get()) {
+                            fanOuts.increment();
+                        }
+                    } else {
+                        String id = ids.get(random.nextInt(ids.size()));
+                        BookServiceGrpc.BookServiceBlockingStub stub = router.forBook(id);
+                        BookServiceProto.BookResponse response = stub.getBook(
+                                BookServiceProto.GetBookRequest.newBuilder().setId(id).build());
+                        if (choice <= 10 && response.getSuccess()) {
+                            BookServiceProto.Book book = response.getBook();
+                            stub.updateBook(BookServiceProto.UpdateBookRequest.newBuilder()
+                                    .setId(id)
+                                    .setTitle(book.getTitle())
+                                    .setAuthor(book.getAuthor())
+                                    .setIsbn(book.getIsbn())
+                                    .setPublicationYear(book.getPublicationYear() + 1)
+                                    .build());
+                        }
+                    }
+                    if (warm.get()) {
+                        operations.increment();
+                    }
+                }
+            }, "client-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        // A few seconds for the server JVMs to compile their hot paths
+        TimeUnit.SECONDS.sleep(Math.min(5, seconds));
+        warm.set(true);
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("shards=%d threads=%d: %,d requests/s (%,d fan-out queries/s)%n",
+                shards, threads, operations.sum() / seconds, fanOuts.sum() / seconds);
+    }
+
+    private static Process startServer(int port, int shard) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "com.example.bookservice.BookServiceServer", "--port=" + port, "--shard=" + shard)
+                .redirectErrorStream(true)
+                .start();
+        BufferedReader output = new BufferedReader(
+                new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.startsWith("Server started")) {
+                // Keep draining so the server never blocks on a full pipe
+                Thread drain = new Thread(() -> {
+                    try {
+                        while (output.readLine() != null) {
+                            // discard
+                        }
+                    } catch (IOException ignored) {
+                        // the server exited
+                    }
+                }, "shard-" + shard + "-output");
+                drain.setDaemon(true);
+                drain.start();
+                return server;
+            }
+        }
+        throw new IOException("Shard " + shard + " exited before it started listening");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
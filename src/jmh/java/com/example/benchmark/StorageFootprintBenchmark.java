@@ -0,0 +1,127 @@
+package com.example.benchmark;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.store.BookStore;
+import com.example.bookservice.store.StorageEngine;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads a catalogue into one {@link StorageEngine} and reports heap and
+ * direct memory per book, then runs a read-mostly workload against it and
+ * reports how much time the collector took. Run each engine in its own JVM
+ * so one does not skew the other's numbers.
+ *
+ * Usage: StorageFootprintBenchmark [heap|off-heap] [books] [seconds] [threads]
+ */
+public class StorageFootprintBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        StorageEngine engine = StorageEngine.parse(args.length > 0 ? args[0] : "heap");
+        int bookCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        long heapBefore = settledHeap();
+        long directBefore = directMemory();
+        BookStore store = engine.create();
+        long started = System.nanoTime();
+        for (int key = 0; key < bookCount; key++) {
+            store.insert(key, book(key, 1));
+        }
+        long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        long heapAfter = settledHeap();
+        long directAfter = directMemory();
+
+        System.out.printf("engine=%s books=%,d loaded in %,d ms%n", engine, bookCount, loadMillis);
+        System.out.printf("heap per book: %,d bytes, direct memory per book: %,d bytes%n",
+                (heapAfter - heapBefore) / bookCount, (directAfter - directBefore) / bookCount);
+
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    long key = random.nextInt(bookCount);
+                    BookServiceProto.Book current = store.get(key);
+                    if (current != null && random.nextInt(10) == 0) {
+                        store.replace(key, current, book(key, current.getVersion() + 1));
+                    }
+                    operations.increment();
+                }
+            }, "worker-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.printf("90%% get / 10%% update for %ds on %d threads: %,d ops/s%n",
+                seconds, threads, operations.sum() / seconds);
+        System.out.printf("gc: %,d collections, %,d ms total (%.1f%% of wall time)%n",
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore,
+                100.0 * (gcMillis() - gcMillisBefore) / TimeUnit.SECONDS.toMillis(seconds));
+        if (store.size() != bookCount) {
+            throw new IllegalStateException("Expected " + bookCount + " books but the store has " + store.size());
+        }
+    }
+
+    private static BookServiceProto.Book book(long key, long version) {
+        return BookServiceProto.Book.newBuilder()
+                .setId("B" + key)
+                .setTitle("The Collected Works, Volume " + key)
+                .setAuthor("Author " + (key % 10_000))
+                .setIsbn("978" + (1_000_000_000L + key))
+                .setPublicationYear(1900 + (int) (key % 120))
+                .setVersion(version)
+                .build();
+    }
+
+    private static long settledHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.benchmark;
+
+/**
+ * How a benchmark reaches BookServiceImpl.
+ */
+public enum Transport {
+    /** Calls the service methods directly with a capturing StreamObserver. */
+    DIRECT,
+    /** Blocking stub over grpc-inprocess, so marshalling and call dispatch are included but no sockets. */
+    INPROCESS,
+    /** Blocking stub over Netty on the loopback interface. */
+    NETTY
+}
@@ -0,0 +1,242 @@
+package com.example.BookServiceClient;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.codec.Codecs;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Non-blocking BookService client for batch jobs. Calls return straight away
+ * with a CompletableFuture and are spread round-robin over a pool of
+ * channels. At most maxInFlight calls are on the wire at once; the rest wait
+ * in a queue and go out as earlier calls finish. Retries back off on a
+ * scheduler instead of sleeping the caller's thread.
+ *
+ * Futures complete on gRPC's callback threads, so dependent stages that
+ * block should be moved to another executor with the *Async variants.
+ */
+public class AsyncBookServiceClient implements AutoCloseable {
+
+    private static final int MAX_RETRIES = 3;
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+    private static final double BACKOFF_MULTIPLIER = 2.0;
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<BookServiceGrpc.BookServiceStub> stubs = new ArrayList<>();
+    private final AtomicInteger nextStub = new AtomicInteger();
+    private final Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService retryScheduler;
+    private final long deadlineMillis;
+
+    /**
+     * @param channelCount channels to open; each is its own HTTP/2 connection
+     * @param maxInFlight calls allowed on the wire at once across all channels
+     * @param deadlineMillis deadline for each attempt
+     */
+    public AsyncBookServiceClient(String host, int port, int channelCount, int maxInFlight, long deadlineMillis) {
+        if (channelCount < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("channelCount and maxInFlight must be at least 1");
+        }
+        for (int i = 0; i < channelCount; i++) {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
+                    .usePlaintext()
+                    .compressorRegistry(Codecs.compressors())
+                    .decompressorRegistry(Codecs.decompressors())
+                    .build();
+            channels.add(channel);
+            stubs.add(BookServiceGrpc.newStub(channel));
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.deadlineMillis = deadlineMillis;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "book-client-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<BookServiceProto.Book> addBook(BookServiceProto.AddBookRequest request) {
+        return call((stub, observer) -> stub.addBook(request, observer), AsyncBookServiceClient::bookOf);
+    }
+
+    public CompletableFuture<BookServiceProto.Book> getBook(String bookId) {
+        BookServiceProto.GetBookRequest request = BookServiceProto.GetBookRequest.newBuilder()
+                .setId(bookId)
+                .build();
+        return call((stub, observer) -> stub.getBook(request, observer), AsyncBookServiceClient::bookOf);
+    }
+
+    public CompletableFuture<BookServiceProto.Book> updateBook(BookServiceProto.UpdateBookRequest request) {
+        return call((stub, observer) -> stub.updateBook(request, observer), AsyncBookServiceClient::bookOf);
+    }
+
+    public CompletableFuture<Void> deleteBook(String bookId) {
+        BookServiceProto.DeleteBookRequest request = BookServiceProto.DeleteBookRequest.newBuilder()
+                .setId(bookId)
+                .build();
+        return call((stub, observer) -> stub.deleteBook(request, observer), AsyncBookServiceClient::deleted);
+    }
+
+    /**
+     * Calls still waiting for an in-flight slot fail with CANCELLED; calls
+     * already on the wire are given up to five seconds to finish.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        retryScheduler.shutdownNow();
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        // Queued calls see the scheduler is shut down and fail as slots free up
+        drain();
+        for (ManagedChannel channel : channels) {
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static BookServiceProto.Book bookOf(BookServiceProto.BookResponse response) {
+        if (!response.getSuccess()) {
+            throw new BookRequestException(response.getMessage());
+        }
+        return response.getBook();
+    }
+
+    private static Void deleted(BookServiceProto.DeleteBookResponse response) {
+        if (!response.getSuccess()) {
+            throw new BookRequestException(response.getMessage());
+        }
+        return null;
+    }
+
+    private <R, T> CompletableFuture<T> call(BiConsumer<BookServiceGrpc.BookServiceStub, StreamObserver<R>> method,
+                                             Function<R, T> result) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        new Attempt<>(method, result, future).submit();
+        return future;
+    }
+
+    private void enqueue(Runnable task) {
+        waiting.add(task);
+        drain();
+    }
+
+    // Rechecks the queue after every release so a task queued while the last
+    // slot was being handed back is never left behind
+    private void drain() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable task = waiting.poll();
+            if (task == null) {
+                inFlight.release();
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    private void finished() {
+        inFlight.release();
+        drain();
+    }
+
+    /**
+     * One call and its retries. Each attempt takes an in-flight slot only
+     * while it is on the wire, not while it is backing off.
+     */
+    private final class Attempt<R, T> implements StreamObserver<R> {
+        private final BiConsumer<BookServiceGrpc.BookServiceStub, StreamObserver<R>> method;
+        private final Function<R, T> result;
+        private final CompletableFuture<T> future;
+        private int attempt;
+        private long backoff = INITIAL_BACKOFF_MILLIS;
+        private R response;
+
+        Attempt(BiConsumer<BookServiceGrpc.BookServiceStub, StreamObserver<R>> method, Function<R, T> result,
+                CompletableFuture<T> future) {
+            this.method = method;
+            this.result = result;
+            this.future = future;
+        }
+
+        void submit() {
+            enqueue(this::start);
+        }
+
+        private void start() {
+            if (retryScheduler.isShutdown()) {
+                inFlight.release();
+                future.completeExceptionally(Status.CANCELLED.withDescription("Client closed").asRuntimeException());
+                return;
+            }
+            attempt++;
+            response = null;
+            BookServiceGrpc.BookServiceStub stub = stubs.get(Math.floorMod(nextStub.getAndIncrement(), stubs.size()));
+            try {
+                method.accept(stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS), this);
+            } catch (RuntimeException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onNext(R value) {
+            response = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finished();
+            Status status = Status.fromThrowable(t);
+            long delay = BookServiceClient.retryDelay(t, backoff);
+            if (attempt < MAX_RETRIES && BookServiceClient.isRetryable(status) && delay >= 0
+                    && !retryScheduler.isShutdown()) {
+                backoff = (long) Math.min(backoff * BACKOFF_MULTIPLIER, MAX_BACKOFF_MILLIS);
+                try {
+                    retryScheduler.schedule(this::submit, delay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Closed while we were deciding; fail with the original error
+                }
+            }
+            future.completeExceptionally(t instanceof StatusRuntimeException ? t : status.asRuntimeException());
+        }
+
+        @Override
+        public void onCompleted() {
+            finished();
+            try {
+                future.complete(result.apply(response));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * The server handled the call but turned it down, for example because
+     * the book does not exist. These are not retried.
+     */
+    public static class BookRequestException extends RuntimeException {
+        public BookRequestException(String message) {
+            super(message);
+        }
+    }
+}
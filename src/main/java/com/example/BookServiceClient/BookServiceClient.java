@@ -2,32 +2,121 @@ package com.example.BookServiceClient;
 
 import com.example.BookServiceGrpc;
 import com.example.BookServiceProto;
+import com.google.protobuf.FieldMask;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class BookServiceClient {
-    private final ManagedChannel channel;
-    private final BookServiceGrpc.BookServiceBlockingStub blockingStub;
+    private final ShardRouter router;
+    // Per shard, the newest change this client's own writes made; reads from
+    // followers wait for it so the client always sees its writes
+    private final AtomicLongArray writeSequences;
+    // Null unless enableNearCache was called
+    private volatile NearCache nearCache;
+    // Null unless enableBatching was called
+    private volatile RequestCoalescer<String, BookServiceProto.BookResponse> getBatches;
+    private volatile RequestCoalescer<BookServiceProto.UpdateBookRequest, BookServiceProto.BookResponse> updateBatches;
 
     private static final int MAX_RETRIES = 3;
+    private static final Metadata.Key<String> RETRY_PUSHBACK_MS =
+            Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
     private static final long INITIAL_BACKOFF_MILLIS = 200;
     private static final long MAX_BACKOFF_MILLIS = 2000;
     private static final double BACKOFF_MULTIPLIER = 2.0;
+    // The server's limits when a request leaves limit at 0
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int DEFAULT_QUERY_LIMIT = 10;
+    // The server's limit on BatchGetBooks and BatchUpdateBooks
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int MAX_COALESCED_BATCH_SIZE = 200;
+    // All that listBooks prints
+    private static final FieldMask LISTED_FIELDS = FieldMask.newBuilder()
+            .addPaths("id")
+            .addPaths("title")
+            .addPaths("author")
+            .build();
 
     public BookServiceClient(String host, int port) {
-        this.channel = ManagedChannelBuilder.forAddress(host, port)
-                .usePlaintext()
-                .build();
-        this.blockingStub = BookServiceGrpc.newBlockingStub(channel);
+        this(Collections.singletonList(host + ":" + port));
+    }
+
+    /**
+     * A client for a catalogue sharded across several servers, the one at
+     * position i having been started with --shard=i. Calls about one book go
+     * to the server that owns it; listings and searches ask every server at
+     * once and merge the answers. Reads go to a shard's followers when the
+     * target names some, and fall back to its leader if a follower cannot
+     * show this client's own writes in time.
+     * @param targets "host:port" of each shard, in shard order, each
+     *        optionally followed by "+host:port" for each of its followers
+     */
+    public BookServiceClient(List<String> targets) {
+        this.router = new ShardRouter(targets);
+        this.writeSequences = new AtomicLongArray(router.shardCount());
+    }
+
+    /**
+     * Serves getBook from a local cache of up to maximumSize books, each
+     * kept for at most the TTL and dropped or refreshed sooner when the
+     * server reports a change.
+     */
+    public NearCache enableNearCache(int maximumSize, long ttl, TimeUnit unit) {
+        if (nearCache == null) {
+            nearCache = new NearCache(router.asyncStubs(), maximumSize, ttl, unit);
+        }
+        return nearCache;
+    }
+
+    /**
+     * Sends gets and updates made by concurrent threads through this client
+     * within the window of each other as one BatchGetBooks or
+     * BatchUpdateBooks call per shard, of up to 200 books. Each caller still
+     * gets its own result. Worth it when many threads read or write single
+     * books at once; a lone caller just waits one window longer.
+     */
+    public synchronized void enableBatching(long window, TimeUnit unit) {
+        if (getBatches == null) {
+            getBatches = new RequestCoalescer<>(router.shardCount(), window, unit, MAX_COALESCED_BATCH_SIZE,
+                    this::getBatch);
+            updateBatches = new RequestCoalescer<>(router.shardCount(), window, unit, MAX_COALESCED_BATCH_SIZE,
+                    (shard, updates) -> updateBatch(shard, updates, false).getResultsList());
+        }
     }
 
     public void shutdown() throws InterruptedException {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        if (nearCache != null) {
+            nearCache.close();
+        }
+        if (getBatches != null) {
+            getBatches.close();
+            updateBatches.close();
+        }
+        router.close();
     }
 
     public void addBook(String title, String author, String isbn, int publicationYear) {
@@ -39,9 +128,11 @@ public class BookServiceClient {
                     .setPublicationYear(publicationYear)
                     .build();
 
-            BookServiceProto.BookResponse response = executeWithRetry(() -> blockingStub.addBook(request), "add book");
+            int shard = router.shardForIsbn(isbn);
+            BookServiceProto.BookResponse response = executeWithRetry(() -> router.blockingStub(shard).addBook(request), "add book");
 
             if (response.getSuccess()) {
+                written(shard, response.getWriteSequence());
                 System.out.println(" " + response.getMessage());
                 System.out.println(" Book ID: " + response.getBook().getId());
             } else {
@@ -59,9 +150,13 @@ public class BookServiceClient {
                     .setId(bookId)
                     .build();
 
-            BookServiceProto.DeleteBookResponse response = executeWithRetry(() -> blockingStub.deleteBook(request), "delete book");
+            BookServiceProto.DeleteBookResponse response = executeWithRetry(() -> router.forBook(bookId).deleteBook(request), "delete book");
 
             if (response.getSuccess()) {
+                written(router.shardOf(bookId), response.getWriteSequence());
+                if (nearCache != null) {
+                    nearCache.deleted(bookId);
+                }
                 System.out.println(" " + response.getMessage());
             } else {
                 System.out.println(" " + response.getMessage());
@@ -74,15 +169,10 @@ public class BookServiceClient {
 
     public void getBook(String bookId) {
         try {
-            BookServiceProto.GetBookRequest request = BookServiceProto.GetBookRequest.newBuilder()
-                    .setId(bookId)
-                    .build();
-
-            BookServiceProto.BookResponse response = executeWithRetry(() -> blockingStub.getBook(request), "get book");
+            BookServiceProto.Book book = fetchBook(bookId);
 
-            if (response.getSuccess()) {
-                System.out.println(" " + response.getMessage());
-                BookServiceProto.Book book = response.getBook();
+            if (book != null) {
+                System.out.println(" Book found");
                 System.out.print("Book Details:");
                 System.out.println("   ID: " + book.getId());
                 System.out.println("   Title: " + book.getTitle());
@@ -90,7 +180,7 @@ public class BookServiceClient {
                 System.out.println("   ISBN: " + book.getIsbn());
                 System.out.println("   Year: " + book.getPublicationYear());
             } else {
-                System.out.println(" " + response.getMessage());
+                System.out.println(" Book not found");
             }
 
         } catch (Exception e) {
@@ -98,18 +188,182 @@ public class BookServiceClient {
         }
     }
 
+    /**
+     * @return the book, from the near cache when it is enabled, or null if
+     *         there is no book with this id
+     */
+    public BookServiceProto.Book fetchBook(String bookId) {
+        NearCache cache = nearCache;
+        return cache == null ? loadBook(bookId) : cache.get(bookId, () -> loadBook(bookId));
+    }
+
+    private BookServiceProto.Book loadBook(String bookId) {
+        int shard = router.shardOf(bookId);
+        RequestCoalescer<String, BookServiceProto.BookResponse> batches = getBatches;
+        if (batches != null) {
+            BookServiceProto.BookResponse response = await(batches.submit(shard, bookId));
+            return response.getSuccess() ? response.getBook() : null;
+        }
+        BookServiceProto.GetBookRequest request = BookServiceProto.GetBookRequest.newBuilder()
+                .setId(bookId)
+                .setMinSequence(writeSequences.get(shard))
+                .build();
+        BookServiceProto.BookResponse response =
+                call(() -> read(shard, stub -> stub.getBook(request), "get book"));
+        return response.getSuccess() ? response.getBook() : null;
+    }
+
+    /**
+     * Gets many books with one BatchGetBooks call per shard, the shards
+     * asked at once.
+     * @return one entry per id, in the same order, null where there is no
+     *         book with that id
+     */
+    public List<BookServiceProto.Book> fetchBooks(List<String> bookIds) {
+        List<List<Integer>> positions = byShard(bookIds, router::shardOf);
+        BookServiceProto.Book[] books = new BookServiceProto.Book[bookIds.size()];
+        router.fanOut(shard -> {
+            List<Integer> mine = positions.get(shard);
+            for (int from = 0; from < mine.size(); from += MAX_BATCH_SIZE) {
+                List<Integer> chunk = mine.subList(from, Math.min(from + MAX_BATCH_SIZE, mine.size()));
+                List<String> chunkIds = new ArrayList<>(chunk.size());
+                for (int position : chunk) {
+                    chunkIds.add(bookIds.get(position));
+                }
+                List<BookServiceProto.BookResponse> results = call(() -> getBatch(shard, chunkIds));
+                for (int i = 0; i < chunk.size(); i++) {
+                    BookServiceProto.BookResponse result = results.get(i);
+                    books[chunk.get(i)] = result.getSuccess() ? result.getBook() : null;
+                }
+            }
+            return null;
+        });
+        return Arrays.asList(books);
+    }
+
+    /**
+     * Applies many updates with one BatchUpdateBooks call per shard.
+     * @param allOrNothing apply every update or none; the books must then
+     *        all be on one shard, and there may be at most 1000 of them
+     * @return one result per update, in the same order
+     */
+    public BookServiceProto.BatchUpdateBooksResponse updateBooks(List<BookServiceProto.UpdateBookRequest> updates,
+                                                                 boolean allOrNothing) {
+        List<List<Integer>> positions = byShard(updates, update -> router.shardOf(update.getId()));
+        if (allOrNothing) {
+            int shard = updates.isEmpty() ? 0 : router.shardOf(updates.get(0).getId());
+            if (positions.get(shard).size() != updates.size()) {
+                throw new IllegalArgumentException("An all-or-nothing batch must only update books on one shard");
+            }
+            return call(() -> updateBatch(shard, updates, true));
+        }
+
+        BookServiceProto.BookResponse[] results = new BookServiceProto.BookResponse[updates.size()];
+        router.fanOut(shard -> {
+            List<Integer> mine = positions.get(shard);
+            for (int from = 0; from < mine.size(); from += MAX_BATCH_SIZE) {
+                List<Integer> chunk = mine.subList(from, Math.min(from + MAX_BATCH_SIZE, mine.size()));
+                List<BookServiceProto.UpdateBookRequest> chunkUpdates = new ArrayList<>(chunk.size());
+                for (int position : chunk) {
+                    chunkUpdates.add(updates.get(position));
+                }
+                BookServiceProto.BatchUpdateBooksResponse response = call(() -> updateBatch(shard, chunkUpdates, false));
+                for (int i = 0; i < chunk.size(); i++) {
+                    results[chunk.get(i)] = response.getResults(i);
+                }
+            }
+            return null;
+        });
+        int updated = 0;
+        for (BookServiceProto.BookResponse result : results) {
+            if (result.getSuccess()) {
+                updated++;
+            }
+        }
+        return BookServiceProto.BatchUpdateBooksResponse.newBuilder()
+                .addAllResults(Arrays.asList(results))
+                .setSuccess(updated == updates.size())
+                .setMessage(updated == updates.size()
+                        ? "Books updated successfully"
+                        : "Updated " + updated + " of " + updates.size() + " books")
+                .build();
+    }
+
+    private List<BookServiceProto.BookResponse> getBatch(int shard, List<String> bookIds) throws Exception {
+        BookServiceProto.BatchGetBooksRequest request = BookServiceProto.BatchGetBooksRequest.newBuilder()
+                .addAllIds(bookIds)
+                .setMinSequence(writeSequences.get(shard))
+                .build();
+        return read(shard, stub -> stub.batchGetBooks(request), "get books").getResultsList();
+    }
+
+    private BookServiceProto.BatchUpdateBooksResponse updateBatch(int shard,
+                                                                  List<BookServiceProto.UpdateBookRequest> updates,
+                                                                  boolean allOrNothing) throws Exception {
+        BookServiceProto.BatchUpdateBooksRequest request = BookServiceProto.BatchUpdateBooksRequest.newBuilder()
+                .addAllUpdates(updates)
+                .setAllOrNothing(allOrNothing)
+                .build();
+        BookServiceProto.BatchUpdateBooksResponse response =
+                executeWithRetry(() -> router.blockingStub(shard).batchUpdateBooks(request), "update books");
+        written(shard, response.getWriteSequence());
+        NearCache cache = nearCache;
+        if (cache != null) {
+            for (BookServiceProto.BookResponse result : response.getResultsList()) {
+                if (result.getSuccess()) {
+                    cache.written(result.getBook());
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return for each shard, the positions in items of the ones it owns
+     */
+    private <T> List<List<Integer>> byShard(List<T> items, ToIntFunction<T> shardOf) {
+        List<List<Integer>> positions = new ArrayList<>(router.shardCount());
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            positions.get(shardOf.applyAsInt(items.get(i))).add(i);
+        }
+        return positions;
+    }
+
     public void listBooks() {
         try {
-            BookServiceProto.ListBooksRequest request = BookServiceProto.ListBooksRequest.newBuilder().build();
-            BookServiceProto.ListBooksResponse response = executeWithRetry(() -> blockingStub.listBooks(request), "list books");
+            // Each shard streams in parallel and books are printed chunk by chunk as they
+            // arrive; if a stream breaks, its retry resumes after the last chunk received.
+            AtomicInteger printed = new AtomicInteger();
 
             System.out.println(" Book List:");
-            if (response.getBooksList().isEmpty()) {
+            router.fanOut(shard -> {
+                String[] resumeToken = {""};
+                return call(() -> read(shard, stub -> {
+                    BookServiceProto.ListBooksRequest request = BookServiceProto.ListBooksRequest.newBuilder()
+                            .setPageToken(resumeToken[0])
+                            .setMinSequence(writeSequences.get(shard))
+                            .setReadMask(LISTED_FIELDS)
+                            .build();
+                    Iterator<BookServiceProto.ListBooksResponse> chunks = stub.streamBooks(request);
+                    while (chunks.hasNext()) {
+                        BookServiceProto.ListBooksResponse chunk = chunks.next();
+                        synchronized (printed) {
+                            for (BookServiceProto.Book book : chunk.getBooksList()) {
+                                System.out.println("    " + book.getTitle() + " by " + book.getAuthor() + " (ID: " + book.getId() + ")");
+                                printed.incrementAndGet();
+                            }
+                        }
+                        resumeToken[0] = chunk.getNextPageToken();
+                    }
+                    return null;
+                }, "list books"));
+            });
+
+            if (printed.get() == 0) {
                 System.out.println("   No books available");
-            } else {
-                for (BookServiceProto.Book book : response.getBooksList()) {
-                    System.out.println("    " + book.getTitle() + " by " + book.getAuthor() + " (ID: " + book.getId() + ")");
-                }
             }
 
         } catch (Exception e) {
@@ -127,16 +381,296 @@ public class BookServiceClient {
                     .setPublicationYear(publicationYear)
                     .build();
 
-            BookServiceProto.BookResponse response = executeWithRetry(() -> blockingStub.updateBook(request), "update book");
+            BookServiceProto.BookResponse response = applyUpdate(request);
+            System.out.println(" " + response.getMessage());
 
-            if (response.getSuccess()) {
-                System.out.println(" " + response.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error updating book: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Changes only the fields given, leaving the rest as they are on the
+     * server, so the book need not be read first.
+     * @param title blank to keep the current title; likewise author and isbn
+     * @param publicationYear 0 to keep the current year
+     */
+    public void editBook(String bookId, String title, String author, String isbn, int publicationYear) {
+        BookServiceProto.UpdateBookRequest.Builder request = BookServiceProto.UpdateBookRequest.newBuilder()
+                .setId(bookId);
+        FieldMask.Builder changed = FieldMask.newBuilder();
+        if (!title.isEmpty()) {
+            request.setTitle(title);
+            changed.addPaths("title");
+        }
+        if (!author.isEmpty()) {
+            request.setAuthor(author);
+            changed.addPaths("author");
+        }
+        if (!isbn.isEmpty()) {
+            request.setIsbn(isbn);
+            changed.addPaths("isbn");
+        }
+        if (publicationYear != 0) {
+            request.setPublicationYear(publicationYear);
+            changed.addPaths("publication_year");
+        }
+        if (changed.getPathsCount() == 0) {
+            System.out.println(" Nothing to change");
+            return;
+        }
+        try {
+            BookServiceProto.BookResponse response = applyUpdate(request.setUpdateMask(changed).build());
+            System.out.println(" " + response.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error updating book: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends one UpdateBook as given, so callers can set update_mask to
+     * change some fields and expected_version to change them only if no
+     * other writer got there first. A version mismatch comes back with
+     * success false and the book as it is now.
+     */
+    public BookServiceProto.BookResponse patchBook(BookServiceProto.UpdateBookRequest request) {
+        return call(() -> applyUpdate(request));
+    }
+
+    private BookServiceProto.BookResponse applyUpdate(BookServiceProto.UpdateBookRequest request) throws Exception {
+        int shard = router.shardOf(request.getId());
+        RequestCoalescer<BookServiceProto.UpdateBookRequest, BookServiceProto.BookResponse> batches = updateBatches;
+        BookServiceProto.BookResponse response = batches != null
+                ? await(batches.submit(shard, request))
+                : executeWithRetry(() -> router.blockingStub(shard).updateBook(request), "update book");
+
+        if (response.getSuccess()) {
+            written(shard, response.getWriteSequence());
+            NearCache cache = nearCache;
+            if (cache != null) {
+                cache.written(response.getBook());
+            }
+        }
+        return response;
+    }
+
+    public void searchBooks(String isbn, String author, int minYear, int maxYear) {
+        try {
+            BookServiceProto.SearchBooksRequest request = BookServiceProto.SearchBooksRequest.newBuilder()
+                    .setIsbn(isbn)
+                    .setAuthor(author)
+                    .setMinPublicationYear(minYear)
+                    .setMaxPublicationYear(maxYear)
+                    .build();
+
+            List<BookServiceProto.Book> books = search(request);
+
+            System.out.println(" Search Results:");
+            if (books.isEmpty()) {
+                System.out.println("   No matching books");
             } else {
-                System.out.println(" " + response.getMessage());
+                for (BookServiceProto.Book book : books) {
+                    System.out.println("    " + book.getTitle() + " by " + book.getAuthor() + " (ID: " + book.getId() + ")");
+                }
             }
 
         } catch (Exception e) {
-            System.err.println("Error updating book: " + e.getMessage());
+            System.err.println("Error searching books: " + e.getMessage());
+        }
+    }
+
+    public void queryBooks(String query, boolean matchAll) {
+        try {
+            BookServiceProto.QueryBooksRequest request = BookServiceProto.QueryBooksRequest.newBuilder()
+                    .setQuery(query)
+                    .setMatchAll(matchAll)
+                    .build();
+
+            List<BookServiceProto.ScoredBook> results = query(request);
+
+            System.out.println(" Query Results:");
+            if (results.isEmpty()) {
+                System.out.println("   No matching books");
+            } else {
+                for (BookServiceProto.ScoredBook result : results) {
+                    BookServiceProto.Book book = result.getBook();
+                    System.out.printf("    %s by %s (ID: %s, score %.2f)%n",
+                            book.getTitle(), book.getAuthor(), book.getId(), result.getScore());
+                }
+            }
+
+        } catch (Exception e) {
+            System.err.println("Error querying books: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the search on every shard at once.
+     * @return up to the request's limit of matching books, taking them from
+     *         the shards in order
+     */
+    public List<BookServiceProto.Book> search(BookServiceProto.SearchBooksRequest request) {
+        List<BookServiceProto.SearchBooksResponse> responses =
+                router.fanOut(shard -> call(() -> read(shard, stub -> stub.searchBooks(request), "search books")));
+        if (responses.size() == 1) {
+            return responses.get(0).getBooksList();
+        }
+        int limit = request.getLimit() == 0 ? DEFAULT_SEARCH_LIMIT : request.getLimit();
+        List<BookServiceProto.Book> books = new ArrayList<>();
+        for (BookServiceProto.SearchBooksResponse response : responses) {
+            for (BookServiceProto.Book book : response.getBooksList()) {
+                if (books.size() == limit) {
+                    return books;
+                }
+                books.add(book);
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Runs the query on every shard at once.
+     * @return the highest-scoring results across all shards, best first, up
+     *         to the request's limit. Each shard scores against its own term
+     *         statistics, which agree closely once shards hold more than a
+     *         few hundred books each.
+     */
+    public List<BookServiceProto.ScoredBook> query(BookServiceProto.QueryBooksRequest request) {
+        List<BookServiceProto.QueryBooksResponse> responses =
+                router.fanOut(shard -> call(() -> read(shard, stub -> stub.queryBooks(request), "query books")));
+        if (responses.size() == 1) {
+            return responses.get(0).getResultsList();
+        }
+        int limit = request.getLimit() == 0 ? DEFAULT_QUERY_LIMIT : request.getLimit();
+        List<BookServiceProto.ScoredBook> results = new ArrayList<>();
+        for (BookServiceProto.QueryBooksResponse response : responses) {
+            results.addAll(response.getResultsList());
+        }
+        results.sort(Comparator.comparingDouble(BookServiceProto.ScoredBook::getScore).reversed());
+        return results.subList(0, Math.min(limit, results.size()));
+    }
+
+    /**
+     * The most read books across the shards, as each shard's leader counts
+     * them; a follower counts only the reads it serves itself.
+     * @return up to limit books, most read first
+     */
+    public List<BookServiceProto.HotKey> hotKeys(int limit) {
+        BookServiceProto.GetHotKeysRequest request = BookServiceProto.GetHotKeysRequest.newBuilder()
+                .setLimit(limit)
+                .build();
+        List<BookServiceProto.GetHotKeysResponse> responses = router.fanOut(shard ->
+                call(() -> executeWithRetry(() -> router.blockingStub(shard).getHotKeys(request), "get hot keys")));
+        List<BookServiceProto.HotKey> keys = new ArrayList<>();
+        for (BookServiceProto.GetHotKeysResponse response : responses) {
+            keys.addAll(response.getKeysList());
+        }
+        keys.sort(Comparator.comparingLong(BookServiceProto.HotKey::getEstimatedReads).reversed());
+        return keys.subList(0, Math.min(limit, keys.size()));
+    }
+
+    public void printHotKeys(int limit) {
+        try {
+            List<BookServiceProto.HotKey> keys = hotKeys(limit);
+            if (keys.isEmpty()) {
+                System.out.println(" No book is being read much more than the rest");
+            }
+            for (BookServiceProto.HotKey key : keys) {
+                System.out.println("    " + key.getId() + ": about " + key.getEstimatedReads() + " reads");
+            }
+        } catch (Exception e) {
+            System.err.println("Error getting hot keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints every change the servers make until the streams end. If a
+     * stream breaks, the retry resumes after the last change printed from
+     * that server; sequence numbers count separately on each shard.
+     */
+    public void watchBooks() {
+        try {
+            System.out.println(" Watching for changes (Ctrl+C to stop):");
+            router.fanOut(shard -> {
+                long[] lastSequence = {0};
+                return call(() -> read(shard, stub -> {
+                    BookServiceProto.WatchBooksRequest request = BookServiceProto.WatchBooksRequest.newBuilder()
+                            .setAfterSequence(lastSequence[0])
+                            .setResyncOnOverflow(true)
+                            .build();
+                    Iterator<BookServiceProto.BookChange> changes = stub.watchBooks(request);
+                    while (changes.hasNext()) {
+                        BookServiceProto.BookChange change = changes.next();
+                        BookServiceProto.Book book = change.getBook();
+                        if (change.getType() == BookServiceProto.BookChange.Type.RESYNC) {
+                            System.out.println("    Missed changes up to #" + change.getSequence() + "; list the books to catch up");
+                        } else {
+                            System.out.println("    #" + change.getSequence() + " " + change.getType() + " " + book.getTitle()
+                                    + " by " + book.getAuthor() + " (ID: " + book.getId() + ", version " + book.getVersion() + ")");
+                        }
+                        lastSequence[0] = change.getSequence();
+                    }
+                    return null;
+                }, "watch books"));
+            });
+
+        } catch (Exception e) {
+            System.err.println("Error watching books: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams every book in a CSV or JSONL file to BulkAddBooks, one stream
+     * per shard. Lines are read only while the owning shard's call can take
+     * more data, so the file is never held in memory. A broken stream is not
+     * retried: books from batches the server already committed would be
+     * added twice.
+     */
+    public void bulkLoad(Path file) {
+        List<BulkLoad> loads = new ArrayList<>(router.shardCount());
+        List<StreamObserver<BookServiceProto.AddBookRequest>> requests = new ArrayList<>(router.shardCount());
+        for (int shard = 0; shard < router.shardCount(); shard++) {
+            BulkLoad load = new BulkLoad();
+            loads.add(load);
+            requests.add(router.asyncStub(shard).bulkAddBooks(load));
+        }
+        long sent = 0;
+        long started = System.nanoTime();
+
+        try (CatalogueFile catalogue = new CatalogueFile(file)) {
+            BookServiceProto.AddBookRequest request;
+            while ((request = catalogue.next()) != null) {
+                int shard = router.shardForIsbn(request.getIsbn());
+                loads.get(shard).awaitReady();
+                requests.get(shard).onNext(request);
+                sent++;
+            }
+            long added = 0;
+            long rejected = 0;
+            for (int shard = 0; shard < requests.size(); shard++) {
+                requests.get(shard).onCompleted();
+                BookServiceProto.BulkAddBooksResponse summary = loads.get(shard).awaitSummary();
+                added += summary.getAddedCount();
+                rejected += summary.getRejectedCount();
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            System.out.println(" Imported " + added + " of " + sent + " books in " + elapsedMillis + " ms");
+            if (rejected > 0) {
+                System.out.println(" Rejected " + rejected + " books with an ISBN that already exists");
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (StreamObserver<BookServiceProto.AddBookRequest> stream : requests) {
+                stream.onError(Status.CANCELLED.withDescription("Bulk load interrupted").asRuntimeException());
+            }
+            System.err.println("Bulk load interrupted after " + sent + " books");
+        } catch (Exception e) {
+            for (StreamObserver<BookServiceProto.AddBookRequest> stream : requests) {
+                stream.onError(Status.CANCELLED.withDescription(e.getMessage()).asRuntimeException());
+            }
+            System.err.println("Error bulk loading books after " + sent + " sent: " + e.getMessage());
         }
     }
 
@@ -157,12 +691,13 @@ public class BookServiceClient {
                 return action.call();
             } catch (StatusRuntimeException e) {
                 lastStatus = e;
-                if (!isRetryable(e) || attempt == MAX_RETRIES) {
+                long delay = retryDelay(e, backoff);
+                if (!isRetryable(e.getStatus()) || delay < 0 || attempt == MAX_RETRIES) {
                     throw e;
                 }
 
                 try {
-                    Thread.sleep(backoff);
+                    Thread.sleep(delay);
                 } catch (InterruptedException ie) {
                     Thread.currentThread().interrupt();
                     throw new RuntimeException("Retry interrupted for " + operation, ie);
@@ -180,8 +715,91 @@ public class BookServiceClient {
         throw new RuntimeException("Failed to " + operation);
     }
 
-    private boolean isRetryable(StatusRuntimeException e) {
-        Status.Code code = e.getStatus().getCode();
+    /**
+     * Runs a read on one of the shard's followers, or on its leader if it has
+     * none. Retries go to the leader, which always has this client's writes.
+     */
+    private <T> T read(int shard, Function<BookServiceGrpc.BookServiceBlockingStub, T> action, String operation)
+            throws Exception {
+        int[] attempts = {0};
+        return executeWithRetry(() -> action.apply(attempts[0]++ == 0
+                ? router.readStub(shard)
+                : router.blockingStub(shard)), operation);
+    }
+
+    private void written(int shard, long sequence) {
+        writeSequences.accumulateAndGet(shard, sequence, Math::max);
+    }
+
+    /**
+     * Turns a follower into a leader, for when the leader has died.
+     * @param target "host:port" of the follower
+     */
+    public static void promote(String target) throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        try {
+            BookServiceProto.PromoteReplicaResponse response = BookServiceGrpc.newBlockingStub(channel)
+                    .promoteReplica(BookServiceProto.PromoteReplicaRequest.getDefaultInstance());
+            System.out.println(" " + response.getMessage() + " (last change #" + response.getLastSequence() + ")");
+        } catch (StatusRuntimeException e) {
+            System.err.println("Error promoting " + target + ": " + e.getMessage());
+        } finally {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs action where a checked exception cannot be thrown, such as inside
+     * a shard fan-out.
+     */
+    private static <T> T call(Callable<T> action) {
+        try {
+            return action.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits for a coalesced request, failing the way a direct call would.
+     */
+    private static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * How long to wait before retrying a failed call: what the server asked
+     * for in its grpc-retry-pushback-ms trailer, spread by up to as much
+     * again so turned-away callers do not all return at once, or the
+     * client's own backoff if the server did not say.
+     * @return the delay in milliseconds, or -1 if the server asked not to be retried
+     */
+    static long retryDelay(Throwable error, long backoff) {
+        Metadata trailers = Status.trailersFromThrowable(error);
+        String pushback = trailers == null ? null : trailers.get(RETRY_PUSHBACK_MS);
+        if (pushback == null) {
+            return backoff;
+        }
+        long millis;
+        try {
+            millis = Long.parseLong(pushback.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return millis < 0 ? -1 : millis + ThreadLocalRandom.current().nextLong(millis + 1);
+    }
+
+    static boolean isRetryable(Status status) {
+        Status.Code code = status.getCode();
         return code == Status.Code.UNAVAILABLE
                 || code == Status.Code.DEADLINE_EXCEEDED
                 || code == Status.Code.RESOURCE_EXHAUSTED
@@ -189,8 +807,103 @@ public class BookServiceClient {
                 || code == Status.Code.CANCELLED;
     }
 
+    /**
+     * Lets the bulk load wait for flow-control readiness and for the summary.
+     */
+    private static final class BulkLoad
+            implements ClientResponseObserver<BookServiceProto.AddBookRequest, BookServiceProto.BulkAddBooksResponse> {
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private ClientCallStreamObserver<BookServiceProto.AddBookRequest> requestStream;
+        private BookServiceProto.BulkAddBooksResponse summary;
+        private Throwable error;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<BookServiceProto.AddBookRequest> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(this::signal);
+        }
+
+        @Override
+        public void onNext(BookServiceProto.BulkAddBooksResponse value) {
+            summary = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                error = t;
+                notifyAll();
+            }
+            finished.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            finished.countDown();
+        }
+
+        synchronized void awaitReady() throws InterruptedException {
+            while (!requestStream.isReady() && error == null) {
+                wait();
+            }
+            if (error != null) {
+                throw Status.fromThrowable(error).asRuntimeException();
+            }
+        }
+
+        BookServiceProto.BulkAddBooksResponse awaitSummary() throws InterruptedException {
+            finished.await();
+            if (error != null) {
+                throw Status.fromThrowable(error).asRuntimeException();
+            }
+            return summary;
+        }
+
+        private synchronized void signal() {
+            notifyAll();
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException {
-        BookServiceClient client = new BookServiceClient("localhost", 8980);
+        if (args.length == 1 && args[0].startsWith("--promote=")) {
+            promote(args[0].substring("--promote=".length()));
+            return;
+        }
+        BookServiceClient client;
+        if (args.length > 0 && args[0].startsWith("--shards=")) {
+            // --shards=host:port,host:port,... lists the servers of a sharded catalogue in shard order
+            client = new BookServiceClient(Arrays.asList(args[0].substring("--shards=".length()).split(",")));
+            args = Arrays.copyOfRange(args, 1, args.length);
+        } else {
+            client = new BookServiceClient("localhost", 8980);
+        }
+        if (args.length == 2 && args[0].equals("--bulk-load")) {
+            try {
+                client.bulkLoad(Paths.get(args[1]));
+            } finally {
+                client.shutdown();
+            }
+            return;
+        }
+        if (args.length == 1 && args[0].startsWith("--hot-keys")) {
+            // --hot-keys, or --hot-keys=N for the top N
+            int limit = args[0].startsWith("--hot-keys=") ? Integer.parseInt(args[0].substring("--hot-keys=".length())) : 10;
+            try {
+                client.printHotKeys(limit);
+            } finally {
+                client.shutdown();
+            }
+            return;
+        }
+        if (args.length == 1 && args[0].equals("--watch")) {
+            try {
+                client.watchBooks();
+            } finally {
+                client.shutdown();
+            }
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         try {
@@ -201,7 +914,9 @@ public class BookServiceClient {
                 System.out.println("3. Get Book");
                 System.out.println("4. List Books");
                 System.out.println("5. Update Book");
-                System.out.println("6. Exit");
+                System.out.println("6. Search Books");
+                System.out.println("7. Query Books (title/author words)");
+                System.out.println("8. Exit");
                 System.out.print("Choose an option: ");
 
                 int choice = scanner.nextInt();
@@ -239,18 +954,38 @@ public class BookServiceClient {
                     case 5:
                         System.out.print("Enter book ID to update: ");
                         String updateId = scanner.nextLine();
-                        System.out.print("Enter new title: ");
+                        System.out.print("Enter new title (blank to keep): ");
                         String newTitle = scanner.nextLine();
-                        System.out.print("Enter new author: ");
+                        System.out.print("Enter new author (blank to keep): ");
                         String newAuthor = scanner.nextLine();
-                        System.out.print("Enter new ISBN: ");
+                        System.out.print("Enter new ISBN (blank to keep): ");
                         String newIsbn = scanner.nextLine();
-                        System.out.print("Enter new publication year: ");
+                        System.out.print("Enter new publication year (0 to keep): ");
                         int newYear = scanner.nextInt();
-                        client.updateBook(updateId, newTitle, newAuthor, newIsbn, newYear);
+                        client.editBook(updateId, newTitle, newAuthor, newIsbn, newYear);
                         break;
 
                     case 6:
+                        System.out.print("Enter ISBN (blank for any): ");
+                        String searchIsbn = scanner.nextLine();
+                        System.out.print("Enter author (blank for any): ");
+                        String searchAuthor = scanner.nextLine();
+                        System.out.print("Enter earliest publication year (0 for any): ");
+                        int minYear = scanner.nextInt();
+                        System.out.print("Enter latest publication year (0 for any): ");
+                        int maxYear = scanner.nextInt();
+                        client.searchBooks(searchIsbn, searchAuthor, minYear, maxYear);
+                        break;
+
+                    case 7:
+                        System.out.print("Enter words (end a word with * to match a prefix): ");
+                        String query = scanner.nextLine();
+                        System.out.print("Require every word? (y/n): ");
+                        boolean matchAll = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        client.queryBooks(query, matchAll);
+                        break;
+
+                    case 8:
                         System.out.println("Exiting...");
                         return;
 
@@ -0,0 +1,107 @@
+package com.example.BookServiceClient;
+
+import com.example.BookServiceProto;
+import com.google.protobuf.util.JsonFormat;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads AddBookRequests one line at a time from a catalogue feed.
+ *
+ * Files ending in .jsonl or .json hold one JSON object per line using the
+ * AddBookRequest field names. Anything else is read as CSV with the columns
+ * title,author,isbn,publication_year; a header row starting with "title" is
+ * skipped.
+ */
+public class CatalogueFile implements Closeable {
+    private final BufferedReader reader;
+    private final boolean json;
+    private final JsonFormat.Parser jsonParser = JsonFormat.parser().ignoringUnknownFields();
+    private long lineNumber;
+
+    public CatalogueFile(Path path) throws IOException {
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        this.json = name.endsWith(".jsonl") || name.endsWith(".json");
+    }
+
+    /**
+     * @return the next book, or null at the end of the file
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public BookServiceProto.AddBookRequest next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (json) {
+                BookServiceProto.AddBookRequest.Builder builder = BookServiceProto.AddBookRequest.newBuilder();
+                jsonParser.merge(line, builder);
+                return builder.build();
+            }
+            List<String> columns = splitCsv(line);
+            if (lineNumber == 1 && columns.get(0).trim().equalsIgnoreCase("title")) {
+                continue;
+            }
+            if (columns.size() < 4) {
+                throw new IOException("Line " + lineNumber + ": expected title,author,isbn,publication_year");
+            }
+            try {
+                return BookServiceProto.AddBookRequest.newBuilder()
+                        .setTitle(columns.get(0))
+                        .setAuthor(columns.get(1))
+                        .setIsbn(columns.get(2))
+                        .setPublicationYear(Integer.parseInt(columns.get(3).trim()))
+                        .build();
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": invalid publication year", e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Splits one CSV line, honouring double-quoted fields and "" escapes.
+     */
+    private static List<String> splitCsv(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                columns.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        columns.add(current.toString());
+        return columns;
+    }
+}
@@ -0,0 +1,596 @@
+package com.example.BookServiceClient;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.codec.Codecs;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Headless load generator for sizing BookServiceServer nodes. Requests are
+ * sent open-loop at the rate each phase asks for, up to a cap on calls in
+ * flight; latency is measured from when a request was due to be sent, so a
+ * server that falls behind shows up in the percentiles rather than quietly
+ * lowering the offered rate. Calls are never retried, so every retryable
+ * status the server returns is counted.
+ *
+ * Usage: LoadGenerator [--name=value ...], see {@link Options} for the names.
+ */
+public class LoadGenerator {
+
+    enum Operation { ADD, GET, UPDATE, DELETE, LIST }
+
+    private static final String MISSING_ID = "load-test-missing";
+
+    private final Options options;
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<BookServiceGrpc.BookServiceStub> stubs = new ArrayList<>();
+    private final AtomicInteger nextStub = new AtomicInteger();
+    private final Semaphore inFlight;
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final LongAdder saturated = new LongAdder();
+    // Books added during the run; deletes take from here so the hot keys survive
+    private final ConcurrentLinkedQueue<String> deletable = new ConcurrentLinkedQueue<>();
+    private String[] keys;
+    private ZipfianGenerator keyChooser;
+    private long runNanos;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        for (int i = 0; i < options.channels; i++) {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(options.host, options.port)
+                    .usePlaintext()
+                    .compressorRegistry(Codecs.compressors())
+                    .decompressorRegistry(Codecs.decompressors())
+                    .build();
+            channels.add(channel);
+            stubs.add(BookServiceGrpc.newStub(channel));
+        }
+        this.inFlight = new Semaphore(options.concurrency);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(Options.parse(args));
+        try {
+            generator.seed();
+            generator.run();
+            generator.report();
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Adds the catalogue the run draws its keys from. Keys are shuffled so
+     * the Zipfian hot set is spread over the id space. Adds the server turns
+     * away for load are sent again once its pushback has passed.
+     */
+    void seed() throws InterruptedException {
+        System.out.printf("Seeding %,d books...%n", options.books);
+        String[] ids = new String[options.books];
+        AtomicInteger failed = new AtomicInteger();
+        ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int i = 0; i < options.books; i++) {
+                inFlight.acquire();
+                seedOne(ids, i, failed, retries);
+            }
+            inFlight.acquire(options.concurrency);
+            inFlight.release(options.concurrency);
+        } finally {
+            retries.shutdownNow();
+        }
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " seed books could not be added");
+        }
+        List<String> shuffled = new ArrayList<>(ids.length);
+        Collections.addAll(shuffled, ids);
+        Collections.shuffle(shuffled);
+        keys = shuffled.toArray(new String[0]);
+        keyChooser = new ZipfianGenerator(keys.length, options.zipfExponent);
+    }
+
+    /**
+     * Adds one seed book while holding an in-flight slot, and releases the
+     * slot once the book is in or has failed for good.
+     */
+    private void seedOne(String[] ids, int slot, AtomicInteger failed, ScheduledExecutorService retries) {
+        stub().addBook(newBook(), new Unary<BookServiceProto.BookResponse>() {
+            @Override
+            void done(BookServiceProto.BookResponse response, Status status) {
+                if (response != null && response.getSuccess()) {
+                    ids[slot] = response.getBook().getId();
+                } else if (response == null && status.getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+                    long delay = BookServiceClient.retryDelay(error, 100);
+                    if (delay >= 0) {
+                        retries.schedule(() -> seedOne(ids, slot, failed, retries), delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    failed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                inFlight.release();
+            }
+        });
+    }
+
+    void run() throws InterruptedException {
+        long runStarted = System.nanoTime();
+        for (Phase phase : options.phases) {
+            long sentBefore = totalSent();
+            long errorsBefore = totalErrors();
+            long saturatedBefore = saturated.sum();
+            long started = System.nanoTime();
+            runPhase(phase);
+            // Let the phase's stragglers land before its numbers are printed
+            inFlight.acquire(options.concurrency);
+            inFlight.release(options.concurrency);
+            double seconds = (System.nanoTime() - started) / 1e9;
+            System.out.printf("phase %s: %,.0f req/s achieved, %,d errors, %,d not sent (concurrency limit)%n",
+                    phase, (totalSent() - sentBefore) / seconds, totalErrors() - errorsBefore,
+                    saturated.sum() - saturatedBefore);
+        }
+        runNanos = System.nanoTime() - runStarted;
+    }
+
+    private void runPhase(Phase phase) {
+        long durationNanos = TimeUnit.SECONDS.toNanos(phase.seconds);
+        long start = System.nanoTime();
+        double sent = 0;
+        while (true) {
+            long now = System.nanoTime();
+            long elapsed = now - start;
+            if (elapsed >= durationNanos) {
+                return;
+            }
+            // Requests due by now: the integral of the linearly ramped rate
+            double t = elapsed / 1e9;
+            double due = phase.fromRate * t + (phase.toRate - phase.fromRate) * t * t / (2.0 * phase.seconds);
+            while (sent < due) {
+                // Spread the intended start times evenly over the gap we are catching up on
+                long intendedStart = start + (long) (elapsed * (sent / due));
+                send(chooseOperation(), intendedStart);
+                sent++;
+            }
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    void report() {
+        System.out.println();
+        System.out.printf("%,d calls in %.1fs: %,.0f req/s%n", totalSent(), runNanos / 1e9, totalSent() / (runNanos / 1e9));
+        System.out.printf("%-7s %10s %9s %10s %10s %10s %10s %8s %9s%n",
+                "rpc", "ok", "rejected", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "retryable");
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            Histogram latency = s.latency;
+            if (latency.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.printf("%-7s %,10d %,9d %10.2f %10.2f %10.2f %10.2f %,8d %,9d%n",
+                    entry.getKey().name().toLowerCase(Locale.ROOT),
+                    s.ok.sum(), s.rejected.sum(),
+                    latency.getValueAtPercentile(50) / 1e6,
+                    latency.getValueAtPercentile(99) / 1e6,
+                    latency.getValueAtPercentile(99.9) / 1e6,
+                    latency.getMaxValue() / 1e6,
+                    s.errors.sum(), s.retryable.sum());
+        }
+        System.out.println();
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            for (Map.Entry<String, LongAdder> outcome : entry.getValue().outcomes.entrySet()) {
+                System.out.printf("%-7s %s: %,d%n",
+                        entry.getKey().name().toLowerCase(Locale.ROOT), outcome.getKey(), outcome.getValue().sum());
+            }
+        }
+        if (saturated.sum() > 0) {
+            System.out.printf("%,d requests were not sent because %d calls were already in flight%n",
+                    saturated.sum(), options.concurrency);
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void send(Operation operation, long intendedStart) {
+        if (!inFlight.tryAcquire()) {
+            saturated.increment();
+            return;
+        }
+        Stats s = stats.get(operation);
+        BookServiceGrpc.BookServiceStub stub = stub().withDeadlineAfter(options.deadlineMillis, TimeUnit.MILLISECONDS);
+        switch (operation) {
+            case ADD:
+                stub.addBook(newBook(), new Timed<BookServiceProto.BookResponse>(s, intendedStart) {
+                    @Override
+                    boolean succeeded(BookServiceProto.BookResponse response) {
+                        if (response.getSuccess()) {
+                            deletable.add(response.getBook().getId());
+                        }
+                        return response.getSuccess();
+                    }
+
+                    @Override
+                    String message(BookServiceProto.BookResponse response) {
+                        return response.getMessage();
+                    }
+                });
+                break;
+            case GET:
+                stub.getBook(BookServiceProto.GetBookRequest.newBuilder().setId(hotKey()).build(),
+                        new BookTimed(s, intendedStart));
+                break;
+            case UPDATE: {
+                int n = ThreadLocalRandom.current().nextInt(1000);
+                stub.updateBook(BookServiceProto.UpdateBookRequest.newBuilder()
+                        .setId(hotKey())
+                        .setTitle("Load Test Book " + n)
+                        .setAuthor("Author " + n)
+                        .setPublicationYear(1900 + n % 120)
+                        .build(), new BookTimed(s, intendedStart));
+                break;
+            }
+            case DELETE: {
+                String id = deletable.poll();
+                // Nothing added yet: delete a key that cannot exist rather than a hot one
+                stub.deleteBook(BookServiceProto.DeleteBookRequest.newBuilder().setId(id != null ? id : MISSING_ID).build(),
+                        new Timed<BookServiceProto.DeleteBookResponse>(s, intendedStart) {
+                            @Override
+                            boolean succeeded(BookServiceProto.DeleteBookResponse response) {
+                                return response.getSuccess();
+                            }
+
+                            @Override
+                            String message(BookServiceProto.DeleteBookResponse response) {
+                                return response.getMessage();
+                            }
+                        });
+                break;
+            }
+            case LIST:
+                stub.listBooks(BookServiceProto.ListBooksRequest.newBuilder().setPageSize(options.listPageSize).build(),
+                        new Timed<BookServiceProto.ListBooksResponse>(s, intendedStart) {
+                            @Override
+                            boolean succeeded(BookServiceProto.ListBooksResponse response) {
+                                return true;
+                            }
+
+                            @Override
+                            String message(BookServiceProto.ListBooksResponse response) {
+                                return "";
+                            }
+                        });
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    private Operation chooseOperation() {
+        int roll = ThreadLocalRandom.current().nextInt(options.mixTotal);
+        for (Operation operation : Operation.values()) {
+            roll -= options.mix.get(operation);
+            if (roll < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Operation mix is empty");
+    }
+
+    private String hotKey() {
+        return keys[(int) keyChooser.next()];
+    }
+
+    private BookServiceGrpc.BookServiceStub stub() {
+        return stubs.get(Math.floorMod(nextStub.getAndIncrement(), stubs.size()));
+    }
+
+    private static BookServiceProto.AddBookRequest newBook() {
+        long n = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+        return BookServiceProto.AddBookRequest.newBuilder()
+                .setTitle("Load Test Book " + n)
+                .setAuthor("Author " + (n % 1000))
+                .setIsbn("LT" + n)
+                .setPublicationYear(1900 + (int) (n % 120))
+                .build();
+    }
+
+    private long totalSent() {
+        long sum = 0;
+        for (Stats s : stats.values()) {
+            sum += s.latency.getTotalCount();
+        }
+        return sum;
+    }
+
+    private long totalErrors() {
+        long sum = 0;
+        for (Stats s : stats.values()) {
+            sum += s.errors.sum();
+        }
+        return sum;
+    }
+
+    /**
+     * Outcomes and latency for one RPC.
+     */
+    private static final class Stats {
+        // Up to one minute, in nanoseconds, at three significant digits
+        final Histogram latency = new ConcurrentHistogram(TimeUnit.MINUTES.toNanos(1), 3);
+        final LongAdder ok = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder retryable = new LongAdder();
+        // Rejection messages and status codes, so unexpected ones stand out
+        final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+        void count(String outcome) {
+            outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Collects the single response of a unary call.
+     */
+    private abstract static class Unary<T> implements StreamObserver<T> {
+        private T response;
+        // What the call failed with, trailers included
+        Throwable error;
+
+        abstract void done(T response, Status status);
+
+        @Override
+        public void onNext(T value) {
+            response = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done(null, Status.fromThrowable(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            done(response, Status.OK);
+        }
+    }
+
+    /**
+     * Records latency and outcome for one load call and frees its slot.
+     */
+    private abstract class Timed<T> extends Unary<T> {
+        private final Stats stats;
+        private final long intendedStart;
+
+        Timed(Stats stats, long intendedStart) {
+            this.stats = stats;
+            this.intendedStart = intendedStart;
+        }
+
+        abstract boolean succeeded(T response);
+
+        abstract String message(T response);
+
+        @Override
+        final void done(T response, Status status) {
+            stats.latency.recordValue(Math.min(System.nanoTime() - intendedStart, TimeUnit.MINUTES.toNanos(1)));
+            if (response != null && succeeded(response)) {
+                stats.ok.increment();
+            } else if (response != null) {
+                stats.rejected.increment();
+                stats.count("rejected: " + message(response));
+            } else {
+                stats.errors.increment();
+                if (BookServiceClient.isRetryable(status)) {
+                    stats.retryable.increment();
+                }
+                stats.count("status " + status.getCode());
+            }
+            inFlight.release();
+        }
+    }
+
+    private final class BookTimed extends Timed<BookServiceProto.BookResponse> {
+        BookTimed(Stats stats, long intendedStart) {
+            super(stats, intendedStart);
+        }
+
+        @Override
+        boolean succeeded(BookServiceProto.BookResponse response) {
+            return response.getSuccess();
+        }
+
+        @Override
+        String message(BookServiceProto.BookResponse response) {
+            return response.getMessage();
+        }
+    }
+
+    /**
+     * A stretch of the run whose request rate moves linearly from fromRate
+     * to toRate.
+     */
+    static final class Phase {
+        final double fromRate;
+        final double toRate;
+        final long seconds;
+
+        Phase(double fromRate, double toRate, long seconds) {
+            this.fromRate = fromRate;
+            this.toRate = toRate;
+            this.seconds = seconds;
+        }
+
+        /**
+         * Parses "rate:seconds" or "from-to:seconds".
+         */
+        static Phase parse(String value) {
+            int colon = value.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected rate:seconds or from-to:seconds but got '" + value + "'");
+            }
+            String rates = value.substring(0, colon);
+            long seconds = Long.parseLong(value.substring(colon + 1));
+            if (seconds < 1) {
+                throw new IllegalArgumentException("Phase '" + value + "' must last at least a second");
+            }
+            int dash = rates.indexOf('-');
+            if (dash < 0) {
+                double rate = Double.parseDouble(rates);
+                return new Phase(rate, rate, seconds);
+            }
+            return new Phase(Double.parseDouble(rates.substring(0, dash)),
+                    Double.parseDouble(rates.substring(dash + 1)), seconds);
+        }
+
+        @Override
+        public String toString() {
+            return fromRate == toRate
+                    ? String.format("%.0f/s for %ds", fromRate, seconds)
+                    : String.format("%.0f-%.0f/s over %ds", fromRate, toRate, seconds);
+        }
+    }
+
+    /**
+     * Load settings, parsed from --name=value arguments:
+     * <ul>
+     *   <li>--host, --port: server address (localhost:8980)</li>
+     *   <li>--phases: comma-separated "rate:seconds" or "from-to:seconds" steps (0-500:10,500:30)</li>
+     *   <li>--concurrency: calls in flight at most (256)</li>
+     *   <li>--channels: connections to spread calls over (4)</li>
+     *   <li>--mix: weights per RPC (get=70,update=15,add=8,delete=5,list=2)</li>
+     *   <li>--books: catalogue size seeded before the run (10000)</li>
+     *   <li>--zipf: key skew in [0, 1), 0 for uniform (0.99)</li>
+     *   <li>--list-page-size: books per ListBooks call (100)</li>
+     *   <li>--deadline-ms: deadline per call (2000)</li>
+     * </ul>
+     */
+    static final class Options {
+        String host = "localhost";
+        int port = 8980;
+        List<Phase> phases = parsePhases("0-500:10,500:30");
+        int concurrency = 256;
+        int channels = 4;
+        Map<Operation, Integer> mix = parseMix("get=70,update=15,add=8,delete=5,list=2");
+        int mixTotal = 100;
+        int books = 10_000;
+        double zipfExponent = 0.99;
+        int listPageSize = 100;
+        long deadlineMillis = 2000;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got '" + arg + "'");
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                switch (name) {
+                    case "host":
+                        options.host = value;
+                        break;
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "phases":
+                        options.phases = parsePhases(value);
+                        break;
+                    case "concurrency":
+                        options.concurrency = Integer.parseInt(value);
+                        break;
+                    case "channels":
+                        options.channels = Integer.parseInt(value);
+                        break;
+                    case "mix":
+                        options.mix = parseMix(value);
+                        break;
+                    case "books":
+                        options.books = Integer.parseInt(value);
+                        break;
+                    case "zipf":
+                        options.zipfExponent = Double.parseDouble(value);
+                        break;
+                    case "list-page-size":
+                        options.listPageSize = Integer.parseInt(value);
+                        break;
+                    case "deadline-ms":
+                        options.deadlineMillis = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            options.mixTotal = 0;
+            for (int weight : options.mix.values()) {
+                options.mixTotal += weight;
+            }
+            if (options.mixTotal <= 0) {
+                throw new IllegalArgumentException("--mix needs at least one positive weight");
+            }
+            if (options.concurrency < 1 || options.channels < 1 || options.books < 1) {
+                throw new IllegalArgumentException("--concurrency, --channels and --books must be at least 1");
+            }
+            return options;
+        }
+
+        private static List<Phase> parsePhases(String value) {
+            List<Phase> phases = new ArrayList<>();
+            for (String phase : value.split(",")) {
+                phases.add(Phase.parse(phase.trim()));
+            }
+            return phases;
+        }
+
+        private static Map<Operation, Integer> parseMix(String value) {
+            Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                mix.put(operation, 0);
+            }
+            for (String part : value.split(",")) {
+                String[] pair = part.trim().split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected rpc=weight but got '" + part + "'");
+                }
+                Operation operation;
+                try {
+                    operation = Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Unknown rpc '" + pair[0] + "', expected add, get, update, delete or list");
+                }
+                mix.put(operation, Integer.parseInt(pair[1].trim()));
+            }
+            return mix;
+        }
+    }
+}
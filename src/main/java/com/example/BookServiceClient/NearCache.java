@@ -0,0 +1,408 @@
+package com.example.BookServiceClient;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded client-side cache of books, kept fresh by the server's
+ * WatchBooks feed.
+ *
+ * Eviction follows W-TinyLFU: new entries land in a small LRU window, and
+ * an entry pushed out of the window only displaces the main region's LRU
+ * victim if a frequency sketch says it has been asked for more often. A
+ * burst of one-off reads therefore cannot flush the hot set.
+ *
+ * Every entry expires after the TTL, which bounds staleness on its own.
+ * While the watch is connected, changes replace or drop entries within
+ * moments of being made. Entries carry the book version and never go
+ * backwards. Deleted books are cached as tombstones, since ids are never
+ * reused. A read in flight when its book changes is not cached, so a slow
+ * response cannot bring back an older version. If the watch reports missed
+ * changes the cache is cleared; a dropped watch is resumed after the last
+ * change seen. A cache over a sharded catalogue watches every shard.
+ */
+public final class NearCache implements AutoCloseable {
+
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final long ttlNanos;
+    private final int windowSize;
+    private final int mainSize;
+    private final FrequencySketch sketch;
+    // Both guarded by this; iteration order is least recently used first
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    // Reads in flight; a change to the book removes the token so the read is not cached
+    private final ConcurrentHashMap<String, Object> pendingLoads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnectScheduler;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private volatile boolean closed;
+
+    public NearCache(BookServiceGrpc.BookServiceStub stub, int maximumSize, long ttl, TimeUnit unit) {
+        this(Collections.singletonList(stub), maximumSize, ttl, unit);
+    }
+
+    /**
+     * @param stubs one stub per shard of the catalogue
+     */
+    public NearCache(List<BookServiceGrpc.BookServiceStub> stubs, int maximumSize, long ttl, TimeUnit unit) {
+        if (maximumSize < 2) {
+            throw new IllegalArgumentException("maximumSize must be at least 2");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.windowSize = Math.max(1, maximumSize / 100);
+        this.mainSize = maximumSize - windowSize;
+        this.sketch = new FrequencySketch(maximumSize);
+        this.reconnectScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "near-cache-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (BookServiceGrpc.BookServiceStub stub : stubs) {
+            Subscription subscription = new Subscription(stub);
+            subscriptions.add(subscription);
+            subscription.subscribe();
+        }
+    }
+
+    /**
+     * Returns the cached book, or calls loader and caches its result.
+     * @param loader fetches the current book, or null if there is none
+     * @return the book, or null if it does not exist
+     */
+    public BookServiceProto.Book get(String bookId, Supplier<BookServiceProto.Book> loader) {
+        synchronized (this) {
+            sketch.increment(bookId);
+            Entry entry = lookup(bookId);
+            if (entry != null) {
+                hits.increment();
+                return entry.book;
+            }
+        }
+        misses.increment();
+
+        Object token = new Object();
+        pendingLoads.put(bookId, token);
+        BookServiceProto.Book book;
+        try {
+            book = loader.get();
+        } catch (RuntimeException e) {
+            pendingLoads.remove(bookId, token);
+            throw e;
+        }
+        // Only cache the result if no change to the book arrived while it was loading
+        if (pendingLoads.remove(bookId, token) && book != null) {
+            put(bookId, book, book.getVersion());
+        }
+        return book;
+    }
+
+    /**
+     * Records a write this client made, so its own reads see it before the
+     * watch delivers it.
+     */
+    public void written(BookServiceProto.Book book) {
+        apply(book.getId(), book, book.getVersion());
+    }
+
+    /**
+     * Records a delete this client made.
+     */
+    public void deleted(String bookId) {
+        apply(bookId, null, Long.MAX_VALUE);
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
+        pendingLoads.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), resyncs.sum());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        reconnectScheduler.shutdownNow();
+    }
+
+    // Caller holds the lock on this
+    private Entry lookup(String bookId) {
+        Entry entry = window.get(bookId);
+        if (entry == null) {
+            entry = main.get(bookId);
+        }
+        if (entry != null && System.nanoTime() - entry.loadedAt > ttlNanos) {
+            window.remove(bookId);
+            main.remove(bookId);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Applies a change from the watch or from this client's own writes to a
+     * cached book. A null book is a delete, cached as a tombstone.
+     */
+    private void apply(String bookId, BookServiceProto.Book book, long version) {
+        pendingLoads.remove(bookId);
+        synchronized (this) {
+            Map<String, Entry> region = regionOf(bookId);
+            if (region != null && region.get(bookId).version < version) {
+                region.put(bookId, new Entry(book, version));
+                invalidations.increment();
+            }
+        }
+    }
+
+    // Caller holds the lock on this
+    private Map<String, Entry> regionOf(String bookId) {
+        return window.containsKey(bookId) ? window : main.containsKey(bookId) ? main : null;
+    }
+
+    private synchronized void put(String bookId, BookServiceProto.Book book, long version) {
+        Map<String, Entry> region = regionOf(bookId);
+        if (region != null) {
+            if (region.get(bookId).version < version) {
+                region.put(bookId, new Entry(book, version));
+            }
+            return;
+        }
+        window.put(bookId, new Entry(book, version));
+        if (window.size() <= windowSize) {
+            return;
+        }
+
+        // The window's LRU entry competes with the main region's LRU entry for a place
+        Iterator<Map.Entry<String, Entry>> oldest = window.entrySet().iterator();
+        Map.Entry<String, Entry> candidate = oldest.next();
+        oldest.remove();
+        if (main.size() < mainSize) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> mainOldest = main.entrySet().iterator();
+        Map.Entry<String, Entry> victim = mainOldest.next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            mainOldest.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions.increment();
+    }
+
+    /**
+     * The watch on one server, resumed after the last change it delivered.
+     */
+    private final class Subscription {
+        private final BookServiceGrpc.BookServiceStub stub;
+        private volatile long lastSequence;
+        private volatile ClientCallStreamObserver<BookServiceProto.WatchBooksRequest> watch;
+        private long backoff = INITIAL_BACKOFF_MILLIS;
+
+        Subscription(BookServiceGrpc.BookServiceStub stub) {
+            this.stub = stub;
+        }
+
+        void subscribe() {
+            if (closed) {
+                return;
+            }
+            BookServiceProto.WatchBooksRequest request = BookServiceProto.WatchBooksRequest.newBuilder()
+                    .setAfterSequence(lastSequence)
+                    .setResyncOnOverflow(true)
+                    .build();
+            stub.watchBooks(request, new ClientResponseObserver<BookServiceProto.WatchBooksRequest, BookServiceProto.BookChange>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<BookServiceProto.WatchBooksRequest> requestStream) {
+                    watch = requestStream;
+                }
+
+                @Override
+                public void onNext(BookServiceProto.BookChange change) {
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                    switch (change.getType()) {
+                        case ADDED:
+                        case UPDATED:
+                            apply(change.getBook().getId(), change.getBook(), change.getBook().getVersion());
+                            break;
+                        case DELETED:
+                            apply(change.getBook().getId(), null, Long.MAX_VALUE);
+                            break;
+                        case RESYNC:
+                            resyncs.increment();
+                            clear();
+                            break;
+                        default:
+                            break;
+                    }
+                    lastSequence = change.getSequence();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    if (closed) {
+                        return;
+                    }
+                    if (Status.fromThrowable(t).getCode() == Status.Code.OUT_OF_RANGE) {
+                        // Cannot happen with resync_on_overflow, but treat it the same way
+                        resyncs.increment();
+                        clear();
+                        lastSequence = 0;
+                    }
+                    reconnectLater();
+                }
+
+                @Override
+                public void onCompleted() {
+                    reconnectLater();
+                }
+            });
+        }
+
+        void reconnectLater() {
+            if (closed) {
+                return;
+            }
+            long delay = backoff;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            reconnectScheduler.schedule(this::subscribe, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            ClientCallStreamObserver<BookServiceProto.WatchBooksRequest> current = watch;
+            if (current != null) {
+                current.cancel("Near cache closed", null);
+            }
+        }
+    }
+
+    private static final class Entry {
+        // Null for a deleted book
+        final BookServiceProto.Book book;
+        final long version;
+        final long loadedAt = System.nanoTime();
+
+        Entry(BookServiceProto.Book book, long version) {
+            this.book = book;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Approximate access counts in a count-min sketch of 4-bit counters,
+     * halved every few times the cache size so old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb8d0ae27, 0x7f4a7c15, 0x9e3779b9};
+
+        private final byte[][] counters = new byte[DEPTH][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, maximumSize) * 2 - 1);
+            for (int i = 0; i < DEPTH; i++) {
+                counters[i] = new byte[width];
+            }
+            this.mask = width - 1;
+            this.sampleSize = 10 * maximumSize;
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (counters[i][index] < MAX_COUNT) {
+                    counters[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (byte[] row : counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            return (h ^ (h >>> 15)) & mask;
+        }
+    }
+
+    /**
+     * Counters since the cache was created.
+     */
+    public static final class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long invalidations;
+        public final long resyncs;
+
+        Stats(long hits, long misses, long evictions, long invalidations, long resyncs) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.resyncs = resyncs;
+        }
+
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.3f evictions=%d invalidations=%d resyncs=%d",
+                    hits, misses, hitRate(), evictions, invalidations, resyncs);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.BookServiceClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns single requests from concurrent callers into batch calls. The first
+ * request for a shard opens a window; every request for that shard made
+ * before the window closes goes out in the same call, and a batch that
+ * reaches its size limit goes out at once. A caller on its own waits for one
+ * window longer than it would have.
+ *
+ * @param <Q> what one caller asks for
+ * @param <R> what one caller gets back
+ */
+final class RequestCoalescer<Q, R> implements AutoCloseable {
+
+    /**
+     * Sends one batch to a shard.
+     */
+    interface BatchCall<Q, R> {
+        /**
+         * @return one result per request, in the same order
+         */
+        List<R> send(int shard, List<Q> requests) throws Exception;
+    }
+
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final BatchCall<Q, R> call;
+    // Per shard, the batch whose window is open; guarded by this
+    private final List<Batch> open;
+    private final ScheduledExecutorService windows = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "batch-window");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "batch-call");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RequestCoalescer(int shards, long window, TimeUnit unit, int maxBatchSize, BatchCall<Q, R> call) {
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.call = call;
+        this.open = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            open.add(null);
+        }
+    }
+
+    CompletableFuture<R> submit(int shard, Q request) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = open.get(shard);
+            if (batch == null) {
+                Batch opened = new Batch(shard);
+                windows.schedule(() -> close(opened), windowNanos, TimeUnit.NANOSECONDS);
+                open.set(shard, opened);
+                batch = opened;
+            }
+            batch.requests.add(request);
+            batch.results.add(result);
+            if (batch.requests.size() >= maxBatchSize) {
+                open.set(shard, null);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            senders.execute(full::send);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        windows.shutdownNow();
+        senders.shutdown();
+    }
+
+    private void close(Batch batch) {
+        synchronized (this) {
+            if (open.get(batch.shard) != batch) {
+                // Already sent because it filled up
+                return;
+            }
+            open.set(batch.shard, null);
+        }
+        senders.execute(batch::send);
+    }
+
+    private final class Batch {
+        private final int shard;
+        private final List<Q> requests = new ArrayList<>();
+        private final List<CompletableFuture<R>> results = new ArrayList<>();
+
+        Batch(int shard) {
+            this.shard = shard;
+        }
+
+        void send() {
+            try {
+                List<R> responses = call.send(shard, requests);
+                for (int i = 0; i < results.size(); i++) {
+                    results.get(i).complete(responses.get(i));
+                }
+            } catch (Throwable t) {
+                for (CompletableFuture<R> result : results) {
+                    result.completeExceptionally(t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.BookServiceClient;
+
+import com.example.BookServiceGrpc;
+import com.example.codec.Codecs;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Picks the server for each call when the catalogue is split across several
+ * BookServiceServers, the one at position i in the target list having been
+ * started with --shard=i.
+ *
+ * A sharded server puts its shard in every id it hands out ("S2-B17"), so
+ * calls about an existing book go straight to the server named by its id.
+ * New books are placed on a consistent-hash ring of the shards keyed by
+ * normalized ISBN, which keeps every copy of an ISBN on one server where its
+ * uniqueness check can see it; books without an ISBN are spread round-robin.
+ * Adding a shard to the ring moves only about 1/N of the ISBNs to a new
+ * owner, but books already stored stay where their ids say they are, so an
+ * ISBN that changed owners is only checked for duplicates on its new shard.
+ *
+ * A single target without a shard number in its ids is the unsharded case,
+ * and every call goes to it.
+ *
+ * A target may also name read-only followers of the shard's leader, as
+ * "leader:port+follower:port+...". Writes always go to the leader; reads
+ * taken with {@link #readStub} rotate over the followers.
+ */
+public final class ShardRouter implements AutoCloseable {
+
+    private static final int VIRTUAL_NODES_PER_SHARD = 128;
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<BookServiceGrpc.BookServiceBlockingStub> blockingStubs = new ArrayList<>();
+    private final List<BookServiceGrpc.BookServiceStub> asyncStubs = new ArrayList<>();
+    // Per shard; empty when the shard has no followers
+    private final List<List<BookServiceGrpc.BookServiceBlockingStub>> followerStubs = new ArrayList<>();
+    private final AtomicInteger nextFollower = new AtomicInteger();
+    // Ring position -> shard
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+    private final AtomicInteger nextUnkeyed = new AtomicInteger();
+    // Null with a single shard, where calls run on the caller's thread
+    private final ExecutorService fanOutExecutor;
+
+    /**
+     * @param targets "host:port" of each shard, in shard order, each optionally
+     *        followed by "+host:port" for each of its followers
+     */
+    public ShardRouter(List<String> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("At least one target is required");
+        }
+        for (String target : targets) {
+            String[] servers = target.split("\\+");
+            ManagedChannel channel = connect(servers[0]);
+            blockingStubs.add(BookServiceGrpc.newBlockingStub(channel));
+            asyncStubs.add(BookServiceGrpc.newStub(channel));
+            List<BookServiceGrpc.BookServiceBlockingStub> followers = new ArrayList<>();
+            for (int i = 1; i < servers.length; i++) {
+                followers.add(BookServiceGrpc.newBlockingStub(connect(servers[i])));
+            }
+            followerStubs.add(followers);
+        }
+        for (int shard = 0; shard < targets.size(); shard++) {
+            for (int v = 0; v < VIRTUAL_NODES_PER_SHARD; v++) {
+                ring.put(mix(((long) shard << 32) | v), shard);
+            }
+        }
+        this.fanOutExecutor = targets.size() == 1 ? null : Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "shard-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int shardCount() {
+        return blockingStubs.size();
+    }
+
+    /**
+     * The shard named in the id, or shard 0 if the id names none or one
+     * outside the cluster; that server then answers "Book not found".
+     */
+    public int shardOf(String bookId) {
+        if (bookId == null || bookId.length() < 4 || bookId.charAt(0) != 'S') {
+            return 0;
+        }
+        int shard = 0;
+        for (int i = 1; i < bookId.length(); i++) {
+            char c = bookId.charAt(i);
+            if (c == '-') {
+                return i > 1 && shard < blockingStubs.size() ? shard : 0;
+            }
+            if (c < '0' || c > '9' || i > 9) {
+                return 0;
+            }
+            shard = shard * 10 + (c - '0');
+        }
+        return 0;
+    }
+
+    /**
+     * The shard a new book with this ISBN belongs on.
+     */
+    public int shardForIsbn(String isbn) {
+        String key = isbn.replace("-", "").replace(" ", "").toUpperCase(Locale.ROOT);
+        if (key.isEmpty()) {
+            return Math.floorMod(nextUnkeyed.getAndIncrement(), blockingStubs.size());
+        }
+        Map.Entry<Integer, Integer> owner = ring.ceilingEntry(mix(key.hashCode()));
+        return (owner != null ? owner : ring.firstEntry()).getValue();
+    }
+
+    public BookServiceGrpc.BookServiceBlockingStub forBook(String bookId) {
+        return blockingStubs.get(shardOf(bookId));
+    }
+
+    public BookServiceGrpc.BookServiceBlockingStub forNewBook(String isbn) {
+        return blockingStubs.get(shardForIsbn(isbn));
+    }
+
+    /**
+     * The shard's leader.
+     */
+    public BookServiceGrpc.BookServiceBlockingStub blockingStub(int shard) {
+        return blockingStubs.get(shard);
+    }
+
+    /**
+     * One of the shard's followers in turn, or its leader if it has none.
+     */
+    public BookServiceGrpc.BookServiceBlockingStub readStub(int shard) {
+        List<BookServiceGrpc.BookServiceBlockingStub> followers = followerStubs.get(shard);
+        return followers.isEmpty()
+                ? blockingStubs.get(shard)
+                : followers.get(Math.floorMod(nextFollower.getAndIncrement(), followers.size()));
+    }
+
+    public BookServiceGrpc.BookServiceStub asyncStub(int shard) {
+        return asyncStubs.get(shard);
+    }
+
+    public List<BookServiceGrpc.BookServiceStub> asyncStubs() {
+        return Collections.unmodifiableList(asyncStubs);
+    }
+
+    /**
+     * Runs call for every shard at once and waits for all of them.
+     * @param call takes the shard number
+     * @return each shard's result, in shard order
+     * @throws RuntimeException the first failure, once every call has finished
+     */
+    public <T> List<T> fanOut(IntFunction<T> call) {
+        if (fanOutExecutor == null) {
+            return Collections.singletonList(call.apply(0));
+        }
+        List<CompletableFuture<T>> calls = new ArrayList<>(blockingStubs.size());
+        for (int shard = 0; shard < blockingStubs.size(); shard++) {
+            int target = shard;
+            calls.add(CompletableFuture.supplyAsync(() -> call.apply(target), fanOutExecutor));
+        }
+        List<T> results = new ArrayList<>(calls.size());
+        RuntimeException failure = null;
+        for (CompletableFuture<T> pending : calls) {
+            try {
+                results.add(pending.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : Status.fromThrowable(e.getCause()).asRuntimeException();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        for (ManagedChannel channel : channels) {
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (fanOutExecutor != null) {
+            fanOutExecutor.shutdown();
+        }
+    }
+
+    private ManagedChannel connect(String target) {
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(target.trim())
+                .usePlaintext()
+                .compressorRegistry(Codecs.compressors())
+                .decompressorRegistry(Codecs.decompressors())
+                .build();
+        channels.add(channel);
+        return channel;
+    }
+
+    // Spreads nearby inputs across the ring (the murmur3 finalizer)
+    private static int mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.BookServiceClient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws ranks in [0, items) where rank 0 is the most popular and the chance
+ * of rank k falls off as 1 / (k + 1)^exponent. Uses the inversion from Gray
+ * et al., "Quickly Generating Billion-Record Synthetic Databases", as YCSB
+ * does; setup is linear in the number of items, each draw is constant time.
+ */
+final class ZipfianGenerator {
+    private final long items;
+    private final double exponent;
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+    private final double halfPowTheta;
+
+    /**
+     * @param exponent skew in [0, 1); 0.99 is YCSB's default, 0 draws uniformly
+     */
+    ZipfianGenerator(long items, double exponent) {
+        if (items < 1) {
+            throw new IllegalArgumentException("Need at least one item");
+        }
+        if (exponent < 0 || exponent >= 1) {
+            throw new IllegalArgumentException("Zipf exponent must be in [0, 1) but was " + exponent);
+        }
+        this.items = items;
+        this.exponent = exponent;
+        this.alpha = 1.0 / (1.0 - exponent);
+        this.zetaN = zeta(items, exponent);
+        this.halfPowTheta = 1.0 + Math.pow(0.5, exponent);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - exponent)) / (1 - zeta(2, exponent) / zetaN);
+    }
+
+    long next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (exponent == 0) {
+            return random.nextLong(items);
+        }
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < halfPowTheta) {
+            return Math.min(1, items - 1);
+        }
+        long rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(rank, items - 1);
+    }
+
+    private static double zeta(long n, double exponent) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, exponent);
+        }
+        return sum;
+    }
+}
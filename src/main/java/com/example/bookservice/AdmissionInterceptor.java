@@ -0,0 +1,101 @@
+package com.example.bookservice;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns unary calls away with RESOURCE_EXHAUSTED once the
+ * {@link ConcurrencyLimiter} is full, with a grpc-retry-pushback-ms trailer
+ * saying when to try again. Streaming calls are let through: they stay open
+ * for as long as their data lasts, and their latency says nothing about load.
+ */
+final class AdmissionInterceptor implements ServerInterceptor {
+
+    /**
+     * The trailer gRPC clients read as the number of milliseconds to wait
+     * before retrying.
+     */
+    static final Metadata.Key<String> RETRY_PUSHBACK_MS =
+            Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final ServerCall.Listener<Object> REJECTED = new ServerCall.Listener<Object>() {
+    };
+
+    private final ConcurrencyLimiter limiter;
+
+    AdmissionInterceptor(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * A RESOURCE_EXHAUSTED failure that tells the client when to retry.
+     */
+    static StatusRuntimeException overloaded(String description, long pushbackMillis) {
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_PUSHBACK_MS, Long.toString(pushbackMillis));
+        return Status.RESOURCE_EXHAUSTED.withDescription(description).asRuntimeException(trailers);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (call.getMethodDescriptor().getType() != MethodDescriptor.MethodType.UNARY) {
+            return next.startCall(call, headers);
+        }
+        if (!limiter.tryAcquire()) {
+            StatusRuntimeException overloaded = overloaded("Server is at its concurrency limit of "
+                    + limiter.limit() + " calls", limiter.pushbackMillis());
+            call.close(overloaded.getStatus(), overloaded.getTrailers());
+            return (ServerCall.Listener<ReqT>) REJECTED;
+        }
+
+        Permit permit = new Permit();
+        ServerCall<ReqT, RespT> admitted = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                permit.release(true);
+                super.close(status, trailers);
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(admitted, headers);
+        } catch (RuntimeException e) {
+            permit.release(false);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                permit.release(false);
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * Gives the slot back exactly once, whether the call is closed or
+     * cancelled first.
+     */
+    private final class Permit {
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release(boolean measured) {
+            if (released.compareAndSet(false, true)) {
+                limiter.release(System.nanoTime() - startNanos, measured);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.bookservice;
+
+/**
+ * Book ids are "B" followed by a non-negative decimal number. The number is
+ * used as the ordering key for listings.
+ *
+ * A server that owns one shard of a sharded catalogue puts the shard in front,
+ * as in "S2-B17", so any node or client can tell from an id alone where the
+ * book lives. Keys stay nearly dense within each shard.
+ *
+ * Inside the server a book is known only by its key; the id string is built
+ * once, when the book is added, and parsed straight back to the key on
+ * every lookup without allocating.
+ */
+final class BookIds {
+    static final BookIds UNSHARDED = new BookIds("B");
+
+    // Keeps key * 10 + digit from overflowing
+    private static final int MAX_DIGITS = 18;
+
+    private final String prefix;
+
+    private BookIds(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param shard the shard this server owns, or -1 if the catalogue is not sharded
+     */
+    static BookIds forShard(int shard) {
+        return shard < 0 ? UNSHARDED : new BookIds("S" + shard + "-B");
+    }
+
+    String format(long key) {
+        return prefix + key;
+    }
+
+    /**
+     * @return the numeric part of the id, or -1 if the id is not well formed
+     *     or belongs to another shard. Leading zeros are not well formed, so
+     *     each key has exactly one id.
+     */
+    long parse(String id) {
+        if (id == null || id.length() <= prefix.length() || id.length() > prefix.length() + MAX_DIGITS
+                || !id.startsWith(prefix)) {
+            return -1;
+        }
+        if (id.charAt(prefix.length()) == '0' && id.length() > prefix.length() + 1) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = prefix.length(); i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Secondary indexes from ISBN, author and publication year to book ids, and
+ * the full-text {@link TextIndex} over titles and authors.
+ *
+ * Lookups never lock. Writers call {@link #refresh} after their CAS has
+ * landed; refreshes for the same id are serialized on a lock stripe so the
+ * indexes always converge on the latest version even when two updates race.
+ * Results can still briefly include ids whose book no longer matches, so
+ * callers re-check the current book before returning it.
+ */
+final class BookIndexes {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentHashMap<String, String> byIsbn = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byAuthor = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Set<String>> byYear = new ConcurrentSkipListMap<>();
+    private final TextIndex text = new TextIndex();
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    private final BookIds ids;
+
+    BookIndexes(BookIds ids) {
+        this.ids = ids;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    static String normalizeIsbn(String isbn) {
+        return isbn.replace("-", "").replace(" ", "").toUpperCase(Locale.ROOT);
+    }
+
+    static String normalizeAuthor(String author) {
+        return author.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Reserves the ISBN for the book before it is written.
+     * @return false if another book already holds the ISBN
+     */
+    boolean claimIsbn(String isbn, String bookId) {
+        String key = normalizeIsbn(isbn);
+        if (key.isEmpty()) {
+            return true;
+        }
+        String owner = byIsbn.putIfAbsent(key, bookId);
+        return owner == null || owner.equals(bookId);
+    }
+
+    /**
+     * Gives up an ISBN reserved by {@link #claimIsbn} whose write did not happen.
+     */
+    void releaseIsbn(String isbn, String bookId, Supplier<BookServiceProto.Book> current) {
+        String key = normalizeIsbn(isbn);
+        if (key.isEmpty()) {
+            return;
+        }
+        synchronized (stripe(bookId)) {
+            BookServiceProto.Book book = current.get();
+            if (book == null || !normalizeIsbn(book.getIsbn()).equals(key)) {
+                byIsbn.remove(key, bookId);
+            }
+        }
+    }
+
+    /**
+     * Moves the id from the keys of the version it replaced to the keys of
+     * whatever version is current now. A null previous means the book is new;
+     * a null current means it has been deleted.
+     */
+    void refresh(String bookId, BookServiceProto.Book previous, Supplier<BookServiceProto.Book> current) {
+        synchronized (stripe(bookId)) {
+            BookServiceProto.Book book = current.get();
+            if (previous != null) {
+                removeStale(bookId, previous, book);
+            }
+            if (book != null) {
+                add(bookId, book);
+            }
+            text.update(ids.parse(bookId), previous, book);
+        }
+    }
+
+    String findByIsbn(String isbn) {
+        return byIsbn.get(normalizeIsbn(isbn));
+    }
+
+    Set<String> findByAuthor(String author) {
+        Set<String> ids = byAuthor.get(normalizeAuthor(author));
+        return ids == null ? Collections.emptySet() : ids;
+    }
+
+    /**
+     * @param minYear inclusive lower bound, or 0 for none
+     * @param maxYear inclusive upper bound, or 0 for none
+     */
+    NavigableMap<Integer, Set<String>> findByYear(int minYear, int maxYear) {
+        NavigableMap<Integer, Set<String>> range = byYear;
+        if (minYear != 0) {
+            range = range.tailMap(minYear, true);
+        }
+        if (maxYear != 0) {
+            range = range.headMap(maxYear, true);
+        }
+        return range;
+    }
+
+    /**
+     * @param bookCount books in the catalogue, for weighting terms
+     */
+    List<TextIndex.Hit> findByText(List<TextIndex.Term> terms, boolean matchAll, int limit, int bookCount) {
+        return text.search(terms, matchAll, limit, bookCount);
+    }
+
+    private void add(String bookId, BookServiceProto.Book book) {
+        String isbn = normalizeIsbn(book.getIsbn());
+        if (!isbn.isEmpty()) {
+            byIsbn.putIfAbsent(isbn, bookId);
+        }
+        // Added inside compute so a concurrent removal cannot drop the set from under us
+        byAuthor.compute(normalizeAuthor(book.getAuthor()), (k, ids) -> {
+            Set<String> set = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+            set.add(bookId);
+            return set;
+        });
+        // There are only a few hundred distinct years, so their sets are never dropped
+        byYear.computeIfAbsent(book.getPublicationYear(), k -> ConcurrentHashMap.newKeySet()).add(bookId);
+    }
+
+    private void removeStale(String bookId, BookServiceProto.Book previous, BookServiceProto.Book current) {
+        String isbn = normalizeIsbn(previous.getIsbn());
+        if (!isbn.isEmpty() && (current == null || !isbn.equals(normalizeIsbn(current.getIsbn())))) {
+            byIsbn.remove(isbn, bookId);
+        }
+        String author = normalizeAuthor(previous.getAuthor());
+        if (current == null || !author.equals(normalizeAuthor(current.getAuthor()))) {
+            byAuthor.computeIfPresent(author, (k, ids) -> {
+                ids.remove(bookId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        int year = previous.getPublicationYear();
+        if (current == null || year != current.getPublicationYear()) {
+            Set<String> ids = byYear.get(year);
+            if (ids != null) {
+                ids.remove(bookId);
+            }
+        }
+    }
+
+    private Object stripe(String bookId) {
+        return stripes[(bookId.hashCode() & 0x7fffffff) % stripes.length];
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.store.StoredBook;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.FieldMask;
+import io.grpc.Status;
+
+/**
+ * The Book fields named by a request's field mask: the ones a read returns,
+ * or the ones an update changes. An empty mask names every field.
+ */
+final class BookMask {
+
+    static final BookMask ALL = new BookMask(0);
+
+    private static final int UPDATABLE = bit(BookServiceProto.Book.TITLE_FIELD_NUMBER)
+            | bit(BookServiceProto.Book.AUTHOR_FIELD_NUMBER)
+            | bit(BookServiceProto.Book.ISBN_FIELD_NUMBER)
+            | bit(BookServiceProto.Book.PUBLICATION_YEAR_FIELD_NUMBER);
+
+    // One bit per Book field number; 0 for every field
+    private final int fields;
+
+    private BookMask(int fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if a path is not a Book field
+     */
+    static BookMask forRead(FieldMask mask) {
+        return mask.getPathsCount() == 0 ? ALL : new BookMask(parse(mask, "read_mask"));
+    }
+
+    /**
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if a path is not
+     *         a Book field or names one an update cannot change
+     */
+    static BookMask forUpdate(FieldMask mask) {
+        if (mask.getPathsCount() == 0) {
+            return ALL;
+        }
+        int fields = parse(mask, "update_mask");
+        if ((fields & ~UPDATABLE) != 0) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("update_mask may only name title, author, isbn and publication_year")
+                    .asRuntimeException();
+        }
+        return new BookMask(fields);
+    }
+
+    boolean isAll() {
+        return fields == 0;
+    }
+
+    boolean includes(int fieldNumber) {
+        return fields == 0 || (fields & bit(fieldNumber)) != 0;
+    }
+
+    /**
+     * The book with only the masked fields set.
+     */
+    BookServiceProto.Book apply(BookServiceProto.Book book) {
+        if (fields == 0) {
+            return book;
+        }
+        BookServiceProto.Book.Builder projected = BookServiceProto.Book.newBuilder();
+        if (includes(BookServiceProto.Book.ID_FIELD_NUMBER)) {
+            projected.setId(book.getId());
+        }
+        if (includes(BookServiceProto.Book.TITLE_FIELD_NUMBER)) {
+            projected.setTitle(book.getTitle());
+        }
+        if (includes(BookServiceProto.Book.AUTHOR_FIELD_NUMBER)) {
+            projected.setAuthor(book.getAuthor());
+        }
+        if (includes(BookServiceProto.Book.ISBN_FIELD_NUMBER)) {
+            projected.setIsbn(book.getIsbn());
+        }
+        if (includes(BookServiceProto.Book.PUBLICATION_YEAR_FIELD_NUMBER)) {
+            projected.setPublicationYear(book.getPublicationYear());
+        }
+        if (includes(BookServiceProto.Book.VERSION_FIELD_NUMBER)) {
+            projected.setVersion(book.getVersion());
+        }
+        return projected.build();
+    }
+
+    /**
+     * The stored encoding as is when every field is wanted, otherwise the
+     * encoding of the projected book.
+     */
+    ByteString encode(StoredBook book) {
+        return fields == 0 ? book.bytes() : apply(book.book()).toByteString();
+    }
+
+    /**
+     * The next version of current, with the masked fields taken from the request.
+     */
+    BookServiceProto.Book patch(BookServiceProto.Book current, BookServiceProto.UpdateBookRequest request) {
+        BookServiceProto.Book.Builder next = current.toBuilder().setVersion(current.getVersion() + 1);
+        if (includes(BookServiceProto.Book.TITLE_FIELD_NUMBER)) {
+            next.setTitle(request.getTitle());
+        }
+        if (includes(BookServiceProto.Book.AUTHOR_FIELD_NUMBER)) {
+            next.setAuthor(request.getAuthor());
+        }
+        if (includes(BookServiceProto.Book.ISBN_FIELD_NUMBER)) {
+            next.setIsbn(request.getIsbn());
+        }
+        if (includes(BookServiceProto.Book.PUBLICATION_YEAR_FIELD_NUMBER)) {
+            next.setPublicationYear(request.getPublicationYear());
+        }
+        return next.build();
+    }
+
+    private static int parse(FieldMask mask, String name) {
+        int fields = 0;
+        for (String path : mask.getPathsList()) {
+            Descriptors.FieldDescriptor field = BookServiceProto.Book.getDescriptor().findFieldByName(path);
+            if (field == null) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription(name + " names " + path + ", which is not a Book field")
+                        .asRuntimeException();
+            }
+            fields |= bit(field.getNumber());
+        }
+        return fields;
+    }
+
+    private static int bit(int fieldNumber) {
+        return 1 << fieldNumber;
+    }
+}
@@ -2,62 +2,351 @@ package com.example.bookservice;
 
 import com.example.BookServiceGrpc;
 import com.example.BookServiceProto;
+import com.example.bookservice.metrics.ReplicationMetrics;
+import com.example.bookservice.metrics.StoreMetrics;
+import com.example.bookservice.store.BookStore;
+import com.example.bookservice.store.HeapBookStore;
+import com.example.bookservice.store.StoredBook;
+import com.example.bookservice.store.VersionedBookStore;
+import com.example.bookservice.wal.RecoveryListener;
+import com.example.bookservice.wal.SnapshotSource;
+import com.example.bookservice.wal.WriteAheadLog;
+import com.google.protobuf.ByteString;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class BookServiceImpl extends BookServiceGrpc.BookServiceImplBase {
 
-    private static final long LOCK_WAIT_TIMEOUT_MS = 100;
-    private static final int LOCK_MAX_ATTEMPTS = 50;
-    
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_QUERY_LIMIT = 10;
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    // Longest an ImportBooks book waits for its batch to fill before it is committed and acked
+    private static final long IMPORT_ACK_DELAY_MILLIS = 50;
+    private static final String DUPLICATE_ISBN = "A book with this ISBN already exists";
+    private static final CompletableFuture<Long> NOT_LOGGED = CompletableFuture.completedFuture(0L);
+    private static final ScheduledExecutorService IMPORT_ACKS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "book-import-acks");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int MAX_BATCH_SIZE = 1000;
+    // Power of two
+    private static final int KEY_LOCK_STRIPES = 64;
+    // How long a write turned away from a book another writer holds should wait before retrying
+    private static final long BUSY_PUSHBACK_MILLIS = 50;
+    private static final int DEFAULT_HOT_KEYS = 10;
+    private static final int MAX_HOT_KEYS = 100;
+    // How long a follower holds a read that asked for a change it has not applied yet
+    private static final long MIN_SEQUENCE_WAIT_MILLIS = 500;
 
-    private final ConcurrentHashMap<String, BookEntry> books = new ConcurrentHashMap<>();
-    private final AtomicInteger bookIdCounter = new AtomicInteger(0);
+    // Listings and searches read snapshots of it, so they never mix books from before and after a write
+    private final VersionedBookStore books;
+    private final BookIds ids;
+    private final BookIndexes indexes;
+    private final ChangeFeed changes = new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY, ForkJoinPool.commonPool());
+    private final KeyAllocator keys = new KeyAllocator();
+    // Single updates and deletes hold the read side, so they run side by
+    // side; an all-or-nothing batch holds the write side, so nothing else
+    // writes its books between checking them and applying the last update
+    private final ReentrantReadWriteLock[] writeLocks = newWriteLocks(KEY_LOCK_STRIPES);
+    // Held by updates that lost a race for the book, while they retry
+    private final ReentrantLock[] keyLocks = newLocks(KEY_LOCK_STRIPES);
+    private final StoreMetrics metrics = new StoreMetrics();
+    private final HotKeys hotKeys = new HotKeys();
+    // Unmasked GetBooks of hot books share lookups
+    private final ReadCoalescer<BookServiceProto.BookResponse> hotReads =
+            new ReadCoalescer<>(changes::lastSequence, metrics::readCoalesced);
+    private final ReadCoalescer<ByteString> hotEncodedReads =
+            new ReadCoalescer<>(changes::lastSequence, metrics::readCoalesced);
+    private final ReplicationMetrics replicationMetrics = new ReplicationMetrics();
+    // Null on the leader
+    private volatile ReplicationFollower follower;
+    // Identifies this leader's history to followers. A promoted follower
+    // takes a new epoch, and remembers where the old leader's history ended.
+    private volatile long epoch = newEpoch();
+    private volatile long previousEpoch;
+    private volatile long previousEpochEnd;
+    // Null when the catalogue is kept in memory only
+    private final WriteAheadLog log;
+    // The first failed append. Memory may then hold writes the log does not, so no more writes are taken.
+    private final AtomicReference<Throwable> logFailure = new AtomicReference<>();
+    private volatile Runnable onLogFailure = () -> { };
+    // Set once the store stops taking writes
+    private final AtomicReference<Throwable> storeFailure = new AtomicReference<>();
+
+    public BookServiceImpl() {
+        this(new HeapBookStore());
+    }
+
+    public BookServiceImpl(BookStore books) {
+        this(books, -1);
+    }
+
+    /**
+     * A service that owns one shard of a sharded catalogue: the ids it hands
+     * out carry the shard, and it treats ids of other shards as unknown.
+     * @param shard the shard this server owns, or -1 if the catalogue is not sharded
+     */
+    public BookServiceImpl(BookStore books, int shard) {
+        this.books = new VersionedBookStore(books);
+        metrics.retainedVersions(this.books::retainedVersions);
+        this.log = null;
+        this.ids = BookIds.forShard(shard);
+        this.indexes = new BookIndexes(ids);
+    }
+
+    public BookServiceImpl(WriteAheadLog log) throws IOException {
+        this(new HeapBookStore(), log);
+    }
+
+    public BookServiceImpl(BookStore books, WriteAheadLog log) throws IOException {
+        this(books, log, -1);
+    }
+
+    /**
+     * Rebuilds the catalogue from the log, then logs every change from here on.
+     * Mutations are acknowledged once the log reports them durable. The log
+     * must have been written by a server that owned the same shard.
+     */
+    public BookServiceImpl(BookStore books, WriteAheadLog log, int shard) throws IOException {
+        this.books = new VersionedBookStore(books);
+        metrics.retainedVersions(this.books::retainedVersions);
+        this.log = log;
+        this.ids = BookIds.forShard(shard);
+        this.indexes = new BookIndexes(ids);
+        Recovery recovery = new Recovery();
+        long nextKey = Math.max(log.recover(recovery), recovery.nextKey);
+        for (Iterator<BookServiceProto.Book> it = books.booksAfter(-1); it.hasNext(); ) {
+            BookServiceProto.Book book = it.next();
+            long key = ids.parse(book.getId());
+            indexes.refresh(book.getId(), null, () -> books.get(key));
+            nextKey = Math.max(nextKey, key + 1);
+        }
+        keys.advanceTo(nextKey);
+        log.start(new SnapshotSource() {
+            @Override
+            public long nextBookKey() {
+                return keys.limit();
+            }
+
+            @Override
+            public Iterator<BookServiceProto.Book> books() {
+                return books.booksAfter(-1);
+            }
+        });
+    }
+
+    /**
+     * Runs action once, when an append to the log first fails. Writes are
+     * applied in memory before they are logged, so readers and watchers
+     * may already have seen a write that a restart will not bring back.
+     * The service refuses writes from then on; the action should stop the
+     * server so that it recovers from the log.
+     */
+    public void onLogFailure(Runnable action) {
+        this.onLogFailure = action;
+    }
+
+    /**
+     * Tells the service that its store has stopped taking writes. The
+     * service refuses writes from then on and runs the onLogFailure action
+     * once, since a restart recovers the books from the log.
+     */
+    public void storeFailed(Throwable failure) {
+        if (storeFailure.compareAndSet(null, failure)) {
+            System.err.println("The book store failed, refusing further writes: " + failure);
+            onLogFailure.run();
+        }
+    }
+
+    public StoreMetrics metrics() {
+        return metrics;
+    }
+
+    public ReplicationMetrics replicationMetrics() {
+        return replicationMetrics;
+    }
+
+    /**
+     * Makes this service a read-only follower of whichever of the leaders
+     * accepts it. Call before the service takes traffic. Writes fail with
+     * FAILED_PRECONDITION until the follower is promoted.
+     * @param leaders "host:port" of each server that may be the leader
+     */
+    public void follow(List<String> leaders) {
+        if (follower != null) {
+            throw new IllegalStateException("Already following");
+        }
+        ReplicationFollower replication = new ReplicationFollower(leaders, new Replica(), replicationMetrics);
+        follower = replication;
+        replication.start();
+    }
+
+    /**
+     * Stops replicating, for shutdown. Writes are still refused.
+     */
+    public void stopFollowing() {
+        ReplicationFollower current = follower;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * Same as {@link #bindService()}, except that GetBook, BatchGetBooks and
+     * ListBooks answer with pre-encoded responses. Clients see the same
+     * messages; calling the methods directly still builds them as usual.
+     * Both run the same reads and differ only in how the result is rendered.
+     */
+    public ServerServiceDefinition bindEncodedService() {
+        ServerServiceDefinition generated = bindService();
+        MethodDescriptor<BookServiceProto.GetBookRequest, ByteString> getBook = BookServiceGrpc.getGetBookMethod()
+                .toBuilder(BookServiceGrpc.getGetBookMethod().getRequestMarshaller(), EncodedResponses.MARSHALLER)
+                .build();
+        MethodDescriptor<BookServiceProto.BatchGetBooksRequest, ByteString> batchGetBooks =
+                BookServiceGrpc.getBatchGetBooksMethod()
+                        .toBuilder(BookServiceGrpc.getBatchGetBooksMethod().getRequestMarshaller(),
+                                EncodedResponses.MARSHALLER)
+                        .build();
+        MethodDescriptor<BookServiceProto.ListBooksRequest, ByteString> listBooks = BookServiceGrpc.getListBooksMethod()
+                .toBuilder(BookServiceGrpc.getListBooksMethod().getRequestMarshaller(), EncodedResponses.MARSHALLER)
+                .build();
+
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(BookServiceGrpc.SERVICE_NAME)
+                .setSchemaDescriptor(generated.getServiceDescriptor().getSchemaDescriptor())
+                .addMethod(getBook)
+                .addMethod(batchGetBooks)
+                .addMethod(listBooks);
+        List<ServerMethodDefinition<?, ?>> unchanged = new ArrayList<>();
+        for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+            String name = method.getMethodDescriptor().getFullMethodName();
+            if (!name.equals(getBook.getFullMethodName())
+                    && !name.equals(batchGetBooks.getFullMethodName())
+                    && !name.equals(listBooks.getFullMethodName())) {
+                descriptor.addMethod(method.getMethodDescriptor());
+                unchanged.add(method);
+            }
+        }
+
+        ServerServiceDefinition.Builder definition = ServerServiceDefinition.builder(descriptor.build())
+                .addMethod(getBook, ServerCalls.asyncUnaryCall(
+                        (request, responseObserver) -> getBook(request, responseObserver, hotEncodedReads,
+                                BookServiceImpl::encodedFound)))
+                .addMethod(batchGetBooks, ServerCalls.asyncUnaryCall(
+                        (request, responseObserver) -> batchGetBooks(request, responseObserver,
+                                EncodedResponses::batchGet)))
+                .addMethod(listBooks, ServerCalls.asyncUnaryCall(
+                        (request, responseObserver) -> listBooks(request, responseObserver,
+                                EncodedResponses::listBooks)));
+        for (ServerMethodDefinition<?, ?> method : unchanged) {
+            definition.addMethod(method);
+        }
+        return definition.build();
+    }
 
     @Override
     public void addBook(BookServiceProto.AddBookRequest request,
                         StreamObserver<BookServiceProto.BookResponse> responseObserver) {
         try {
-            String bookId = "B" + (bookIdCounter.getAndIncrement());
-
-            BookServiceProto.Book book = BookServiceProto.Book.newBuilder()
-                    .setId(bookId)
-                    .setTitle(request.getTitle())
-                    .setAuthor(request.getAuthor())
-                    .setIsbn(request.getIsbn())
-                    .setPublicationYear(request.getPublicationYear())
-                    .build();
+            checkWritable();
+            BookServiceProto.Book book = insert(keys.next(), request);
+
+            if (book == null) {
+                metrics.isbnConflict();
+                BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
+                        .setMessage(DUPLICATE_ISBN)
+                        .setSuccess(false)
+                        .build();
 
-            books.put(bookId, new BookEntry(book));
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+                return;
+            }
 
             BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
                     .setMessage("Book added successfully")
                     .setSuccess(true)
                     .setBook(book)
+                    .setWriteSequence(changes.lastSequence())
                     .build();
 
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+            respondWhenLogged(logPut(book), response, responseObserver);
 
         } catch (Exception e) {
             responseObserver.onError(e);
         }
     }
 
+    @Override
+    public StreamObserver<BookServiceProto.AddBookRequest> bulkAddBooks(
+            StreamObserver<BookServiceProto.BulkAddBooksResponse> responseObserver) {
+        if (follower != null) {
+            responseObserver.onError(notLeader());
+            return new IgnoredRequests<>();
+        }
+        return new BulkImport(responseObserver, null);
+    }
+
+    @Override
+    public StreamObserver<BookServiceProto.AddBookRequest> importBooks(
+            StreamObserver<BookServiceProto.AddBookAck> responseObserver) {
+        if (follower != null) {
+            responseObserver.onError(notLeader());
+            return new IgnoredRequests<>();
+        }
+        return new BulkImport(null, responseObserver);
+    }
+
     @Override
     public void deleteBook(BookServiceProto.DeleteBookRequest request,
                            StreamObserver<BookServiceProto.DeleteBookResponse> responseObserver) {
         try {
+            checkWritable();
             String bookId = request.getId();
-            BookEntry entry = books.get(bookId);
+            long key = ids.parse(bookId);
+            BookServiceProto.Book removed = null;
+            if (key >= 0) {
+                Lock lock = take(writeLocks[keyStripe(key)].readLock(), "Book " + bookId + " is being written");
+                try {
+                    removed = books.remove(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
 
-            if (entry == null) {
+            if (removed == null) {
                 BookServiceProto.DeleteBookResponse response = BookServiceProto.DeleteBookResponse.newBuilder()
                         .setMessage("Book not found")
                         .setSuccess(false)
@@ -68,41 +357,16 @@ public class BookServiceImpl extends BookServiceGrpc.BookServiceImplBase {
                 return;
             }
 
-            Lock writeLock = entry.writeLock();
-            boolean acquired = false;
-            try {
-                acquired = acquireWithRetry(writeLock);
-                if (!acquired) {
-                    BookServiceProto.DeleteBookResponse response = BookServiceProto.DeleteBookResponse.newBuilder()
-                            .setMessage("Book is currently being modified, please retry later")
-                            .setSuccess(false)
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
-                }
-
-                entry.clear();
-                books.remove(bookId, entry);
+            indexes.refresh(bookId, removed, () -> books.get(key));
+            changes.delete(bookId, removed);
 
-                BookServiceProto.DeleteBookResponse response = BookServiceProto.DeleteBookResponse.newBuilder()
-                        .setMessage("Book deleted successfully")
-                        .setSuccess(true)
-                        .build();
+            BookServiceProto.DeleteBookResponse response = BookServiceProto.DeleteBookResponse.newBuilder()
+                    .setMessage("Book deleted successfully")
+                    .setSuccess(true)
+                    .setWriteSequence(changes.lastSequence())
+                    .build();
 
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                if (acquired) {
-                    writeLock.unlock();
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            responseObserver.onError(Status.CANCELLED
-                    .withDescription("Interrupted while waiting to delete book")
-                    .withCause(e)
-                    .asRuntimeException());
+            respondWhenLogged(logDelete(removed), response, responseObserver);
         } catch (Exception e) {
             responseObserver.onError(e);
         }
@@ -111,216 +375,1408 @@ public class BookServiceImpl extends BookServiceGrpc.BookServiceImplBase {
     @Override
     public void getBook(BookServiceProto.GetBookRequest request,
                         StreamObserver<BookServiceProto.BookResponse> responseObserver) {
-        try {
-            String bookId = request.getId();
-            BookEntry entry = books.get(bookId);
-
-            if (entry == null) {
-                BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                        .setMessage("Book not found")
-                        .setSuccess(false)
-                        .build();
+        getBook(request, responseObserver, hotReads, BookServiceImpl::found);
+    }
 
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+    /**
+     * Looks the book up and answers with whatever render makes of it: the
+     * BookResponse message, or its encoding for {@link #bindEncodedService()}.
+     * @param hot shares the lookups of unmasked reads of hot books
+     */
+    private <T> void getBook(BookServiceProto.GetBookRequest request, StreamObserver<T> responseObserver,
+                             ReadCoalescer<T> hot, BiFunction<StoredBook, BookMask, T> render) {
+        if (!hasApplied(request.getMinSequence())) {
+            afterApplied(request.getMinSequence(), responseObserver,
+                    () -> getBook(request, responseObserver, hot, render));
+            return;
+        }
+        try {
+            BookMask mask = BookMask.forRead(request.getReadMask());
+            long key = ids.parse(request.getId());
+            if (key >= 0 && hotKeys.read(key) && mask.isAll()) {
+                hot.read(key, () -> render.apply(books.read(key), mask), responseObserver);
                 return;
             }
+            readAsync(key, responseObserver, book -> render.apply(book, mask));
+        } catch (Exception e) {
+            responseObserver.onError(e);
+        }
+    }
 
-            Lock readLock = entry.readLock();
-            boolean acquired = false;
-            try {
-                acquired = acquireWithRetry(readLock);
-                if (!acquired) {
-                    BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                            .setMessage("Book is currently being modified, please retry later")
-                            .setSuccess(false)
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
-                }
+    private static BookServiceProto.BookResponse found(StoredBook book, BookMask mask) {
+        if (book == null) {
+            return BookServiceProto.BookResponse.newBuilder()
+                    .setMessage("Book not found")
+                    .setSuccess(false)
+                    .build();
+        }
+        return BookServiceProto.BookResponse.newBuilder()
+                .setMessage("Book found")
+                .setSuccess(true)
+                .setBook(mask.apply(book.book()))
+                .build();
+    }
 
-                BookServiceProto.Book book = entry.snapshot();
-                if (book != null) {
-                    BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                            .setMessage("Book found")
-                            .setSuccess(true)
-                            .setBook(book)
-                            .build();
+    private static ByteString encodedFound(StoredBook book, BookMask mask) {
+        return book != null ? EncodedResponses.bookFound(mask.encode(book)) : EncodedResponses.BOOK_NOT_FOUND;
+    }
 
-                    responseObserver.onNext(response);
-                } else {
-                    BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                            .setMessage("Book not found")
-                            .setSuccess(false)
-                            .build();
-                    responseObserver.onNext(response);
-                }
+    /**
+     * Answers with the book once the store has it. A book held in memory is
+     * answered on this thread; one the store has to fetch from disk is
+     * answered on the store's thread, so this one is not held up.
+     */
+    private <T> void readAsync(long key, StreamObserver<T> responseObserver, Function<StoredBook, T> respond) {
+        CompletableFuture<StoredBook> book = key < 0 ? CompletableFuture.completedFuture(null) : books.readAsync(key);
+        book.whenComplete((stored, error) -> {
+            if (error != null) {
+                responseObserver.onError(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            try {
+                responseObserver.onNext(respond.apply(stored));
                 responseObserver.onCompleted();
-            } finally {
-                if (acquired) {
-                    readLock.unlock();
-                }
+            } catch (Exception e) {
+                responseObserver.onError(e);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            responseObserver.onError(Status.CANCELLED
-                    .withDescription("Interrupted while waiting to read book")
-                    .withCause(e)
-                    .asRuntimeException());
+        });
+    }
+
+    @Override
+    public void batchGetBooks(BookServiceProto.BatchGetBooksRequest request,
+                              StreamObserver<BookServiceProto.BatchGetBooksResponse> responseObserver) {
+        batchGetBooks(request, responseObserver, BookServiceImpl::batchGetResponse);
+    }
+
+    private <T> void batchGetBooks(BookServiceProto.BatchGetBooksRequest request, StreamObserver<T> responseObserver,
+                                   BiFunction<List<StoredBook>, BookMask, T> render) {
+        if (!hasApplied(request.getMinSequence())) {
+            afterApplied(request.getMinSequence(), responseObserver,
+                    () -> batchGetBooks(request, responseObserver, render));
+            return;
+        }
+        try {
+            BookMask mask = BookMask.forRead(request.getReadMask());
+            responseObserver.onNext(render.apply(readAll(request), mask));
+            responseObserver.onCompleted();
         } catch (Exception e) {
             responseObserver.onError(e);
         }
     }
 
+    /**
+     * @param books one per requested id, null where there is no such book
+     */
+    private static BookServiceProto.BatchGetBooksResponse batchGetResponse(List<StoredBook> books, BookMask mask) {
+        BookServiceProto.BatchGetBooksResponse.Builder responseBuilder =
+                BookServiceProto.BatchGetBooksResponse.newBuilder();
+        for (StoredBook book : books) {
+            BookServiceProto.BookResponse.Builder result = BookServiceProto.BookResponse.newBuilder();
+            if (book != null) {
+                result.setMessage("Book found").setSuccess(true).setBook(mask.apply(book.book()));
+            } else {
+                result.setMessage("Book not found").setSuccess(false);
+            }
+            responseBuilder.addResults(result);
+        }
+        return responseBuilder.build();
+    }
+
     @Override
     public void listBooks(BookServiceProto.ListBooksRequest request,
                           StreamObserver<BookServiceProto.ListBooksResponse> responseObserver) {
-        try {
-            BookServiceProto.ListBooksResponse.Builder responseBuilder =
-                    BookServiceProto.ListBooksResponse.newBuilder();
+        listBooks(request, responseObserver, BookServiceImpl::listResponse);
+    }
 
-            for (Map.Entry<String, BookEntry> entry : books.entrySet()) {
-                BookEntry bookEntry = entry.getValue();
-                Lock readLock = bookEntry.readLock();
-                boolean acquired = false;
-                try {
-                    acquired = readLock.tryLock(LOCK_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    if (!acquired) {
-                        continue;
-                    }
+    private <T> void listBooks(BookServiceProto.ListBooksRequest request, StreamObserver<T> responseObserver,
+                               PageResponse<T> render) {
+        if (!hasApplied(request.getMinSequence())) {
+            afterApplied(request.getMinSequence(), responseObserver,
+                    () -> listBooks(request, responseObserver, render));
+            return;
+        }
+        try (VersionedBookStore.Snapshot snapshot = books.snapshot()) {
+            int pageSize = pageSize(request);
+            BookMask mask = BookMask.forRead(request.getReadMask());
+            Iterator<StoredBook> entries = booksAfter(snapshot, request.getPageToken());
+            List<StoredBook> page = new ArrayList<>(pageSize);
 
-                    BookServiceProto.Book book = bookEntry.snapshot();
-                    if (book != null) {
-                        responseBuilder.addBooks(book);
-                    }
-                } finally {
-                    if (acquired) {
-                        readLock.unlock();
-                    }
-                }
-            }
+            StoredBook last = nextPage(entries, request, pageSize, page);
+            String nextPageToken = last != null && page.size() == pageSize && entries.hasNext()
+                    ? pageToken(last)
+                    : "";
 
-            responseObserver.onNext(responseBuilder.build());
+            responseObserver.onNext(render.build(page, mask, nextPageToken));
             responseObserver.onCompleted();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            responseObserver.onError(Status.CANCELLED
-                    .withDescription("Interrupted while listing books")
-                    .withCause(e)
-                    .asRuntimeException());
         } catch (Exception e) {
             responseObserver.onError(e);
         }
     }
 
+    private static BookServiceProto.ListBooksResponse listResponse(List<StoredBook> page, BookMask mask,
+                                                                   String nextPageToken) {
+        BookServiceProto.ListBooksResponse.Builder responseBuilder = BookServiceProto.ListBooksResponse.newBuilder()
+                .setNextPageToken(nextPageToken);
+        for (StoredBook book : page) {
+            responseBuilder.addBooks(mask.apply(book.book()));
+        }
+        return responseBuilder.build();
+    }
+
+    @Override
+    public void streamBooks(BookServiceProto.ListBooksRequest request,
+                            StreamObserver<BookServiceProto.ListBooksResponse> responseObserver) {
+        if (!hasApplied(request.getMinSequence())) {
+            afterApplied(request.getMinSequence(), responseObserver, () -> streamBooks(request, responseObserver));
+            return;
+        }
+        VersionedBookStore.Snapshot snapshot = books.snapshot();
+        try {
+            ServerCallStreamObserver<BookServiceProto.ListBooksResponse> call =
+                    (ServerCallStreamObserver<BookServiceProto.ListBooksResponse>) responseObserver;
+            BookStream stream = new BookStream(call, request, pageSize(request),
+                    BookMask.forRead(request.getReadMask()), snapshot, booksAfter(snapshot, request.getPageToken()));
+            call.setOnCancelHandler(stream::cancel);
+            call.setOnReadyHandler(stream::drain);
+            stream.drain();
+        } catch (Exception e) {
+            snapshot.close();
+            responseObserver.onError(e);
+        }
+    }
 
     @Override
     public void updateBook(BookServiceProto.UpdateBookRequest request,
                            StreamObserver<BookServiceProto.BookResponse> responseObserver) {
         try {
-            String bookId = request.getId();
-            BookEntry entry = books.get(bookId);
-
-            if (entry == null) {
-                BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                        .setMessage("Book not found")
-                        .setSuccess(false)
-                        .build();
+            checkWritable();
+            BookServiceProto.BookResponse response = update(request, updateMask(request));
 
+            if (!response.getSuccess()) {
                 responseObserver.onNext(response);
                 responseObserver.onCompleted();
                 return;
             }
 
-            Lock writeLock = entry.writeLock();
-            boolean acquired = false;
+            respondWhenLogged(logPut(response.getBook()), response, responseObserver);
+        } catch (Exception e) {
+            responseObserver.onError(e);
+        }
+    }
+
+    /**
+     * Applies the updates one after another, as UpdateBook would. With
+     * all_or_nothing, every book and expected version is checked and every
+     * ISBN reserved before the first update is applied, and no other write
+     * reaches the store until the last one is. Listings and searches then
+     * see all of the batch or none of it; a GetBook may still see some of
+     * it before the rest. The batch is logged as one record, so recovery
+     * after a crash also restores all of it or none.
+     */
+    @Override
+    public void batchUpdateBooks(BookServiceProto.BatchUpdateBooksRequest request,
+                                 StreamObserver<BookServiceProto.BatchUpdateBooksResponse> responseObserver) {
+        try {
+            checkWritable();
+            List<BookServiceProto.UpdateBookRequest> updates = request.getUpdatesList();
+            checkBatchSize(updates.size());
+            List<BookMask> masks = new ArrayList<>(updates.size());
+            for (BookServiceProto.UpdateBookRequest update : updates) {
+                masks.add(updateMask(update));
+            }
+            List<BookServiceProto.BookResponse> results = new ArrayList<>(updates.size());
+            CompletableFuture<Long> lastLogged = NOT_LOGGED;
+
+            List<Lock> held = request.getAllOrNothing() ? lockAll(updates) : Collections.emptyList();
             try {
-                acquired = acquireWithRetry(writeLock);
-                if (!acquired) {
-                    BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                            .setMessage("Book is currently being modified, please retry later")
-                            .setSuccess(false)
-                            .build();
-                    responseObserver.onNext(response);
-                    responseObserver.onCompleted();
-                    return;
+                if (!request.getAllOrNothing()) {
+                    lastLogged = applyAll(updates, masks, results);
+                } else if (reserveAll(updates, masks, results)) {
+                    lastLogged = installAll(updates, masks, results);
                 }
+            } finally {
+                for (Lock lock : held) {
+                    lock.unlock();
+                }
+            }
+            int updated = 0;
+            for (BookServiceProto.BookResponse result : results) {
+                if (result.getSuccess()) {
+                    updated++;
+                }
+            }
 
-                BookServiceProto.Book updatedBook = BookServiceProto.Book.newBuilder()
-                        .setId(bookId)
-                        .setTitle(request.getTitle())
-                        .setAuthor(request.getAuthor())
-                        .setIsbn(request.getIsbn())
-                        .setPublicationYear(request.getPublicationYear())
-                        .build();
+            BookServiceProto.BatchUpdateBooksResponse.Builder response =
+                    BookServiceProto.BatchUpdateBooksResponse.newBuilder()
+                            .addAllResults(results)
+                            .setSuccess(updated == updates.size());
+            if (updated == updates.size()) {
+                response.setMessage("Books updated successfully");
+            } else if (updated == 0 && request.getAllOrNothing()) {
+                response.setMessage("No books were updated");
+            } else {
+                response.setMessage("Updated " + updated + " of " + updates.size() + " books");
+            }
+            if (updated > 0) {
+                response.setWriteSequence(changes.lastSequence());
+            }
 
-                entry.replace(updatedBook);
+            // One wait per batch: the log makes writes durable in sequence order
+            respondWhenLogged(lastLogged, response.build(), responseObserver);
+        } catch (Exception e) {
+            responseObserver.onError(e);
+        }
+    }
 
-                BookServiceProto.BookResponse response = BookServiceProto.BookResponse.newBuilder()
-                        .setMessage("Book updated successfully")
-                        .setSuccess(true)
-                        .setBook(updatedBook)
-                        .build();
+    @Override
+    public void searchBooks(BookServiceProto.SearchBooksRequest request,
+                            StreamObserver<BookServiceProto.SearchBooksResponse> responseObserver) {
+        try {
+            int limit = request.getLimit();
+            if (limit < 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("limit must not be negative")
+                        .asRuntimeException();
+            }
+            limit = limit == 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
 
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
-            } finally {
-                if (acquired) {
-                    writeLock.unlock();
+            if (request.getIsbn().isEmpty() && request.getAuthor().isEmpty()
+                    && request.getMinPublicationYear() == 0 && request.getMaxPublicationYear() == 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("At least one of isbn, author or publication year must be set")
+                        .asRuntimeException();
+            }
+
+            BookServiceProto.SearchBooksResponse.Builder responseBuilder =
+                    BookServiceProto.SearchBooksResponse.newBuilder();
+
+            // Start from the most selective index, then check every criterion against the snapshot's book
+            try (VersionedBookStore.Snapshot snapshot = books.snapshot()) {
+                if (!request.getIsbn().isEmpty()) {
+                    String bookId = indexes.findByIsbn(request.getIsbn());
+                    if (bookId != null) {
+                        collectMatches(snapshot, Collections.singleton(bookId), request, limit, responseBuilder);
+                    }
+                } else if (!request.getAuthor().isEmpty()) {
+                    collectMatches(snapshot, indexes.findByAuthor(request.getAuthor()), request, limit,
+                            responseBuilder);
+                } else {
+                    for (Set<String> bookIds : indexes.findByYear(request.getMinPublicationYear(),
+                            request.getMaxPublicationYear()).values()) {
+                        if (collectMatches(snapshot, bookIds, request, limit, responseBuilder)) {
+                            break;
+                        }
+                    }
                 }
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            responseObserver.onError(Status.CANCELLED
-                    .withDescription("Interrupted while waiting to update book")
-                    .withCause(e)
-                    .asRuntimeException());
+
+            responseObserver.onNext(responseBuilder.build());
+            responseObserver.onCompleted();
         } catch (Exception e) {
             responseObserver.onError(e);
         }
     }
 
+    @Override
+    public void queryBooks(BookServiceProto.QueryBooksRequest request,
+                           StreamObserver<BookServiceProto.QueryBooksResponse> responseObserver) {
+        try {
+            int limit = request.getLimit();
+            if (limit < 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("limit must not be negative")
+                        .asRuntimeException();
+            }
+            limit = limit == 0 ? DEFAULT_QUERY_LIMIT : Math.min(limit, MAX_PAGE_SIZE);
+
+            List<TextIndex.Term> terms = TextIndex.parse(request.getQuery());
+            if (terms.isEmpty()) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("query must contain at least one word")
+                        .asRuntimeException();
+            }
+            if (terms.size() > TextIndex.MAX_TERMS) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("query must not contain more than " + TextIndex.MAX_TERMS + " words")
+                        .asRuntimeException();
+            }
 
-    private boolean acquireWithRetry(Lock lock) throws InterruptedException {
-        for (int attempt = 0; attempt < LOCK_MAX_ATTEMPTS; attempt++) {
-            if (lock.tryLock(LOCK_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
-                return true;
+            BookServiceProto.QueryBooksResponse.Builder responseBuilder =
+                    BookServiceProto.QueryBooksResponse.newBuilder();
+            try (VersionedBookStore.Snapshot snapshot = books.snapshot()) {
+                for (TextIndex.Hit hit : indexes.findByText(terms, request.getMatchAll(), limit, books.size())) {
+                    BookServiceProto.Book book = snapshot.get(hit.key);
+                    // The index can briefly lag a concurrent update or delete
+                    if (book != null && matches(book, terms, request.getMatchAll())) {
+                        responseBuilder.addResults(BookServiceProto.ScoredBook.newBuilder()
+                                .setBook(book)
+                                .setScore(hit.score));
+                    }
+                }
             }
+
+            responseObserver.onNext(responseBuilder.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(e);
         }
-        return false;
     }
 
+    @Override
+    public void watchBooks(BookServiceProto.WatchBooksRequest request,
+                           StreamObserver<BookServiceProto.BookChange> responseObserver) {
+        try {
+            if (request.getAfterSequence() < 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("after_sequence must not be negative")
+                        .asRuntimeException();
+            }
+            changes.watch(request, (ServerCallStreamObserver<BookServiceProto.BookChange>) responseObserver);
+        } catch (Exception e) {
+            responseObserver.onError(e);
+        }
+    }
 
     /**
-     * Combine book and lock
+     * Resumes the follower after the last change it applied if this leader's
+     * history contains it: the follower followed this leader, or followed
+     * the previous one no further than where this server took over. Any
+     * other follower gets a copy of the catalogue first.
      */
-    private static final class BookEntry {
-        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        private BookServiceProto.Book book;
-
-        BookEntry(BookServiceProto.Book book) {
-            this.book = book;
+    @Override
+    public void replicate(BookServiceProto.ReplicateRequest request,
+                          StreamObserver<BookServiceProto.ReplicationFrame> responseObserver) {
+        try {
+            checkWritable();
+            long applied = request.getAppliedSequence();
+            boolean resume = applied > 0
+                    && (request.getEpoch() == epoch
+                    || request.getEpoch() == previousEpoch && applied <= previousEpochEnd);
+            new ReplicationStream((ServerCallStreamObserver<BookServiceProto.ReplicationFrame>) responseObserver,
+                    changes, books, epoch, keys::limit, resume ? applied : -1, ForkJoinPool.commonPool(), replicationMetrics)
+                    .start();
+        } catch (Exception e) {
+            responseObserver.onError(e);
         }
+    }
 
-        Lock readLock() {
-            return lock.readLock();
+    @Override
+    public void promoteReplica(BookServiceProto.PromoteReplicaRequest request,
+                               StreamObserver<BookServiceProto.PromoteReplicaResponse> responseObserver) {
+        try {
+            BookServiceProto.PromoteReplicaResponse.Builder response =
+                    BookServiceProto.PromoteReplicaResponse.newBuilder();
+            synchronized (this) {
+                ReplicationFollower current = follower;
+                if (current == null) {
+                    response.setMessage("This server is already the leader").setSuccess(false);
+                } else {
+                    previousEpoch = current.stop();
+                    previousEpochEnd = current.appliedSequence();
+                    epoch = newEpoch();
+                    follower = null;
+                    response.setMessage("Promoted to leader").setSuccess(true);
+                }
+            }
+            responseObserver.onNext(response.setLastSequence(changes.lastSequence()).build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(e);
         }
+    }
+
+    @Override
+    public void getHotKeys(BookServiceProto.GetHotKeysRequest request,
+                           StreamObserver<BookServiceProto.GetHotKeysResponse> responseObserver) {
+        try {
+            int limit = request.getLimit();
+            if (limit < 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("limit must not be negative")
+                        .asRuntimeException();
+            }
+            limit = limit == 0 ? DEFAULT_HOT_KEYS : Math.min(limit, MAX_HOT_KEYS);
+
+            BookServiceProto.GetHotKeysResponse.Builder response = BookServiceProto.GetHotKeysResponse.newBuilder()
+                    .setWindowReads(hotKeys.windowReads());
+            for (long key : hotKeys.top(limit)) {
+                response.addKeys(BookServiceProto.HotKey.newBuilder()
+                        .setId(ids.format(key))
+                        .setEstimatedReads(hotKeys.estimatedReads(key)));
+            }
 
-        Lock writeLock() {
-            return lock.writeLock();
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(e);
         }
+    }
 
-        BookServiceProto.Book snapshot() {
-            return book;
+    /**
+     * @return true once the response holds limit books
+     */
+    private boolean collectMatches(VersionedBookStore.Snapshot snapshot,
+                                   Iterable<String> bookIds,
+                                   BookServiceProto.SearchBooksRequest request,
+                                   int limit,
+                                   BookServiceProto.SearchBooksResponse.Builder results) {
+        for (String bookId : bookIds) {
+            if (results.getBooksCount() >= limit) {
+                return true;
+            }
+            long key = ids.parse(bookId);
+            BookServiceProto.Book book = key < 0 ? null : snapshot.get(key);
+            if (book != null && matches(book, request)) {
+                results.addBooks(book);
+            }
+        }
+        return results.getBooksCount() >= limit;
+    }
+
+    private static boolean matches(BookServiceProto.Book book, BookServiceProto.SearchBooksRequest request) {
+        if (!request.getIsbn().isEmpty()
+                && !BookIndexes.normalizeIsbn(request.getIsbn()).equals(BookIndexes.normalizeIsbn(book.getIsbn()))) {
+            return false;
+        }
+        if (!request.getAuthor().isEmpty()
+                && !BookIndexes.normalizeAuthor(request.getAuthor()).equals(BookIndexes.normalizeAuthor(book.getAuthor()))) {
+            return false;
+        }
+        if (request.getMinPublicationYear() != 0 && book.getPublicationYear() < request.getMinPublicationYear()) {
+            return false;
+        }
+        return request.getMaxPublicationYear() == 0 || book.getPublicationYear() <= request.getMaxPublicationYear();
+    }
+
+    private static boolean matches(BookServiceProto.Book book, List<TextIndex.Term> terms, boolean matchAll) {
+        Set<String> tokens = TextIndex.tokens(book);
+        for (TextIndex.Term term : terms) {
+            if (term.matches(tokens) != matchAll) {
+                return !matchAll;
+            }
+        }
+        return matchAll;
+    }
+
+    private void checkWritable() {
+        if (follower != null) {
+            throw notLeader();
+        }
+        Throwable failure = logFailure.get();
+        if (failure != null) {
+            throw Status.UNAVAILABLE
+                    .withDescription("The write-ahead log failed; this server takes no more writes")
+                    .withCause(failure)
+                    .asRuntimeException();
+        }
+        failure = storeFailure.get();
+        if (failure != null) {
+            throw Status.UNAVAILABLE
+                    .withDescription("The book store failed; this server takes no more writes")
+                    .withCause(failure)
+                    .asRuntimeException();
+        }
+    }
+
+    private static RuntimeException notLeader() {
+        return Status.FAILED_PRECONDITION
+                .withDescription("This server is a read-only follower; send writes and Replicate to the leader")
+                .asRuntimeException();
+    }
+
+    private static long newEpoch() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return true if this server can answer a read that asked for the change
+     *         with this sequence
+     */
+    private boolean hasApplied(long minSequence) {
+        ReplicationFollower current = follower;
+        return minSequence <= 0 || current == null || current.hasApplied(minSequence);
+    }
+
+    /**
+     * Runs the read once the follower has applied the change, or fails it
+     * with UNAVAILABLE if that takes too long, so the client can go to the
+     * leader instead.
+     */
+    private void afterApplied(long minSequence, StreamObserver<?> responseObserver, Runnable read) {
+        follower.awaitApplied(minSequence, MIN_SEQUENCE_WAIT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((applied, error) -> {
+                    if (error == null) {
+                        read.run();
+                    } else {
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("This follower has not applied change " + minSequence + " yet")
+                                .asRuntimeException());
+                    }
+                });
+    }
+
+    private CompletableFuture<Long> logPut(BookServiceProto.Book book) {
+        return log == null ? NOT_LOGGED : watchFailure(log.appendPut(book));
+    }
+
+    private CompletableFuture<Long> logDelete(BookServiceProto.Book removed) {
+        return log == null ? NOT_LOGGED : watchFailure(log.appendDelete(removed.getId(), removed.getVersion()));
+    }
+
+    private CompletableFuture<Long> watchFailure(CompletableFuture<Long> logged) {
+        logged.whenComplete((sequence, error) -> {
+            if (error != null && logFailure.compareAndSet(null, error)) {
+                System.err.println("Failed to append to the write-ahead log, refusing further writes: " + error);
+                onLogFailure.run();
+            }
+        });
+        return logged;
+    }
+
+    private <T> void respondWhenLogged(CompletableFuture<Long> logged, T response,
+                                       StreamObserver<T> responseObserver) {
+        long startNanos = System.nanoTime();
+        logged.whenComplete((sequence, error) -> {
+            if (log != null) {
+                metrics.logCommit(System.nanoTime() - startNanos);
+            }
+            if (error != null) {
+                responseObserver.onError(Status.INTERNAL
+                        .withDescription("Failed to write the change to the log")
+                        .withCause(error)
+                        .asRuntimeException());
+            } else {
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * @return the current version of the book with this id, or null
+     */
+    private BookServiceProto.Book find(String bookId) {
+        long key = ids.parse(bookId);
+        return key < 0 ? null : books.get(key);
+    }
+
+    /**
+     * @return the fields the update changes
+     * @throws StatusRuntimeException INVALID_ARGUMENT if the mask or expected version is malformed
+     */
+    private static BookMask updateMask(BookServiceProto.UpdateBookRequest request) {
+        if (request.getExpectedVersion() < 0) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("expected_version must not be negative")
+                    .asRuntimeException();
+        }
+        return BookMask.forUpdate(request.getUpdateMask());
+    }
+
+    /**
+     * Writes the new version of one book to the store, the indexes and the
+     * change feed.
+     * @param mask the fields to take from the request; the rest keep their current values
+     * @return the response to send once the new version is logged
+     */
+    private BookServiceProto.BookResponse update(BookServiceProto.UpdateBookRequest request, BookMask mask) {
+        long key = ids.parse(request.getId());
+        if (key < 0) {
+            return BookServiceProto.BookResponse.newBuilder()
+                    .setMessage("Book not found")
+                    .setSuccess(false)
+                    .build();
+        }
+        Lock shared = take(writeLocks[keyStripe(key)].readLock(), "Book " + request.getId() + " is being written");
+        try {
+            return update(key, request, mask);
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    private BookServiceProto.BookResponse update(long key, BookServiceProto.UpdateBookRequest request,
+                                                 BookMask mask) {
+        String bookId = request.getId();
+        boolean exists = books.get(key) != null;
+        boolean changesIsbn = mask.includes(BookServiceProto.Book.ISBN_FIELD_NUMBER);
+
+        if (exists && changesIsbn && !indexes.claimIsbn(request.getIsbn(), bookId)) {
+            metrics.isbnConflict();
+            return BookServiceProto.BookResponse.newBuilder()
+                    .setMessage(DUPLICATE_ISBN)
+                    .setSuccess(false)
+                    .build();
+        }
+
+        BookServiceProto.Book previous = null;
+        BookServiceProto.Book updatedBook = null;
+        BookServiceProto.Book conflict = null;
+        ReentrantLock turn = null;
+        try {
+            while (exists) {
+                BookServiceProto.Book current = books.get(key);
+                if (current == null) {
+                    break;
+                }
+                if (request.getExpectedVersion() != 0 && current.getVersion() != request.getExpectedVersion()) {
+                    conflict = current;
+                    break;
+                }
+
+                BookServiceProto.Book candidate = mask.patch(current, request);
+
+                if (books.replace(key, current, candidate)) {
+                    previous = current;
+                    updatedBook = candidate;
+                    break;
+                }
+                metrics.casRetry();
+                if (turn == null) {
+                    // A hot book: take its lock to retry instead of spinning against its other writers
+                    turn = takeTurn(key);
+                    if (turn == null) {
+                        if (changesIsbn) {
+                            indexes.releaseIsbn(request.getIsbn(), bookId, () -> books.get(key));
+                        }
+                        throw AdmissionInterceptor.overloaded("Too many concurrent updates to book " + bookId,
+                                BUSY_PUSHBACK_MILLIS);
+                    }
+                }
+            }
+        } finally {
+            if (turn != null) {
+                turn.unlock();
+            }
+        }
+
+        if (updatedBook == null) {
+            if (exists && changesIsbn) {
+                indexes.releaseIsbn(request.getIsbn(), bookId, () -> books.get(key));
+            }
+            if (conflict != null) {
+                metrics.versionConflict();
+                return versionConflict(conflict, request.getExpectedVersion());
+            }
+            return BookServiceProto.BookResponse.newBuilder()
+                    .setMessage("Book not found")
+                    .setSuccess(false)
+                    .build();
+        }
+
+        indexes.refresh(bookId, previous, () -> books.get(key));
+        changes.put(bookId, updatedBook, () -> books.get(key));
+
+        return BookServiceProto.BookResponse.newBuilder()
+                .setMessage("Book updated successfully")
+                .setSuccess(true)
+                .setBook(updatedBook)
+                .setWriteSequence(changes.lastSequence())
+                .build();
+    }
+
+    /**
+     * Applies a batch's updates in order, adding each result to results.
+     * @return when the last update applied will be logged
+     */
+    private CompletableFuture<Long> applyAll(List<BookServiceProto.UpdateBookRequest> updates, List<BookMask> masks,
+                                             List<BookServiceProto.BookResponse> results) {
+        CompletableFuture<Long> lastLogged = NOT_LOGGED;
+        for (int i = 0; i < updates.size(); i++) {
+            BookServiceProto.BookResponse result;
+            try {
+                result = update(updates.get(i), masks.get(i));
+            } catch (StatusRuntimeException e) {
+                // Only a book too busy to wait for; the rest of the batch goes ahead
+                result = BookServiceProto.BookResponse.newBuilder()
+                        .setMessage(e.getStatus().getDescription())
+                        .setSuccess(false)
+                        .build();
+            }
+            if (result.getSuccess()) {
+                lastLogged = logPut(result.getBook());
+            }
+            results.add(result);
+        }
+        return lastLogged;
+    }
+
+    /**
+     * Applies an all-or-nothing batch that reserveAll accepted. The new
+     * versions are built first and the store installs them as one write;
+     * the indexes, change feed and log are brought up to date after it.
+     * The caller holds the batch's write locks, so no book can change
+     * between the check and the install.
+     * @return when the batch will be logged
+     */
+    private CompletableFuture<Long> installAll(List<BookServiceProto.UpdateBookRequest> updates,
+                                               List<BookMask> masks, List<BookServiceProto.BookResponse> results) {
+        long[] keys = new long[updates.size()];
+        List<BookServiceProto.Book> previous = new ArrayList<>(updates.size());
+        List<BookServiceProto.Book> updated = new ArrayList<>(updates.size());
+        for (int i = 0; i < updates.size(); i++) {
+            keys[i] = ids.parse(updates.get(i).getId());
+            BookServiceProto.Book current = books.get(keys[i]);
+            previous.add(current);
+            updated.add(masks.get(i).patch(current, updates.get(i)));
+        }
+        if (!books.replaceAll(keys, previous, updated)) {
+            throw new IllegalStateException("A book of an all-or-nothing batch changed under its write lock");
+        }
+
+        for (int i = 0; i < updates.size(); i++) {
+            String bookId = updates.get(i).getId();
+            long key = keys[i];
+            indexes.refresh(bookId, previous.get(i), () -> books.get(key));
+            changes.put(bookId, updated.get(i), () -> books.get(key));
+            results.add(BookServiceProto.BookResponse.newBuilder()
+                    .setMessage("Book updated successfully")
+                    .setSuccess(true)
+                    .setBook(updated.get(i))
+                    .setWriteSequence(changes.lastSequence())
+                    .build());
+        }
+        return log == null ? NOT_LOGGED : watchFailure(log.appendBatch(updated));
+    }
+
+    private static BookServiceProto.BookResponse versionConflict(BookServiceProto.Book current, long expectedVersion) {
+        return BookServiceProto.BookResponse.newBuilder()
+                .setMessage("Book is at version " + current.getVersion() + ", not " + expectedVersion)
+                .setSuccess(false)
+                .setBook(current)
+                .build();
+    }
+
+    /**
+     * Checks that every book of an all-or-nothing batch exists at its
+     * expected version and reserves every new ISBN. If any check fails,
+     * gives back what was reserved and fills results with why each update
+     * was not applied. The caller holds the batch's write locks.
+     * @return true if the whole batch can be applied
+     */
+    private boolean reserveAll(List<BookServiceProto.UpdateBookRequest> updates, List<BookMask> masks,
+                               List<BookServiceProto.BookResponse> results) {
+        BookServiceProto.BookResponse failure = null;
+        int reserved = 0;
+        for (; reserved < updates.size(); reserved++) {
+            BookServiceProto.UpdateBookRequest update = updates.get(reserved);
+            BookServiceProto.Book current = find(update.getId());
+            if (current == null) {
+                failure = BookServiceProto.BookResponse.newBuilder()
+                        .setMessage("Book not found")
+                        .setSuccess(false)
+                        .build();
+                break;
+            }
+            if (update.getExpectedVersion() != 0 && current.getVersion() != update.getExpectedVersion()) {
+                metrics.versionConflict();
+                failure = versionConflict(current, update.getExpectedVersion());
+                break;
+            }
+            if (masks.get(reserved).includes(BookServiceProto.Book.ISBN_FIELD_NUMBER)
+                    && !indexes.claimIsbn(update.getIsbn(), update.getId())) {
+                metrics.isbnConflict();
+                failure = BookServiceProto.BookResponse.newBuilder()
+                        .setMessage(DUPLICATE_ISBN)
+                        .setSuccess(false)
+                        .build();
+                break;
+            }
+        }
+        if (failure == null) {
+            return true;
+        }
+
+        for (int i = 0; i < reserved; i++) {
+            BookServiceProto.UpdateBookRequest update = updates.get(i);
+            if (masks.get(i).includes(BookServiceProto.Book.ISBN_FIELD_NUMBER)) {
+                long key = ids.parse(update.getId());
+                indexes.releaseIsbn(update.getIsbn(), update.getId(), () -> books.get(key));
+            }
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            results.add(i == reserved ? failure : BookServiceProto.BookResponse.newBuilder()
+                    .setMessage("Not applied because another update in the batch failed")
+                    .setSuccess(false)
+                    .build());
+        }
+        return false;
+    }
+
+    /**
+     * Takes the write locks of every book in an all-or-nothing batch, or
+     * none of them if any is held. Nothing waits, so the calling thread is
+     * never parked behind another writer.
+     * @return the locks taken, for the caller to release
+     */
+    private List<Lock> lockAll(List<BookServiceProto.UpdateBookRequest> updates) {
+        Set<String> distinct = new HashSet<>();
+        BitSet stripes = new BitSet(writeLocks.length);
+        for (BookServiceProto.UpdateBookRequest update : updates) {
+            if (!distinct.add(update.getId())) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("An all-or-nothing batch must not update book " + update.getId() + " twice")
+                        .asRuntimeException();
+            }
+            long key = ids.parse(update.getId());
+            if (key >= 0) {
+                stripes.set(keyStripe(key));
+            }
+        }
+        List<Lock> held = new ArrayList<>(stripes.cardinality());
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            Lock lock = writeLocks[stripe].writeLock();
+            if (!lock.tryLock()) {
+                for (Lock taken : held) {
+                    taken.unlock();
+                }
+                metrics.hotKeyRejected();
+                throw AdmissionInterceptor.overloaded("Books in the batch are being written", BUSY_PUSHBACK_MILLIS);
+            }
+            held.add(lock);
+        }
+        return held;
+    }
+
+    /**
+     * Takes the lock if no one else holds it.
+     * @throws StatusRuntimeException RESOURCE_EXHAUSTED, with a pushback, if someone does
+     */
+    private Lock take(Lock lock, String busy) {
+        if (!lock.tryLock()) {
+            metrics.hotKeyRejected();
+            throw AdmissionInterceptor.overloaded(busy, BUSY_PUSHBACK_MILLIS);
+        }
+        return lock;
+    }
+
+    /**
+     * Takes the book's lock if no other update of it holds the lock.
+     * @return the lock, held, or null if the caller should give up
+     */
+    private ReentrantLock takeTurn(long key) {
+        ReentrantLock lock = keyLocks[keyStripe(key)];
+        if (!lock.tryLock()) {
+            metrics.hotKeyRejected();
+            return null;
+        }
+        metrics.hotKeyQueued();
+        return lock;
+    }
+
+    private static ReentrantLock[] newLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private static ReentrantReadWriteLock[] newWriteLocks(int count) {
+        ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
+    }
+
+    private int keyStripe(long key) {
+        return (int) (key & (keyLocks.length - 1));
+    }
+
+    /**
+     * Looks up every requested book, each on its own: the store is read
+     * without locks, so nothing is held while the rest are found.
+     * @return one entry per id, null where there is no such book
+     */
+    private List<StoredBook> readAll(BookServiceProto.BatchGetBooksRequest request) {
+        checkBatchSize(request.getIdsCount());
+        List<StoredBook> found = new ArrayList<>(request.getIdsCount());
+        for (String bookId : request.getIdsList()) {
+            long key = ids.parse(bookId);
+            found.add(key < 0 ? null : books.read(key));
+        }
+        return found;
+    }
+
+    private static void checkBatchSize(int size) {
+        if (size > MAX_BATCH_SIZE) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("A batch must not hold more than " + MAX_BATCH_SIZE + " items")
+                    .asRuntimeException();
+        }
+    }
+
+    /**
+     * Stores a new book under the given key.
+     * @return the stored book, or null if its ISBN is already taken
+     */
+    private BookServiceProto.Book insert(long key, BookServiceProto.AddBookRequest request) {
+        String bookId = ids.format(key);
+        if (!indexes.claimIsbn(request.getIsbn(), bookId)) {
+            return null;
+        }
+
+        BookServiceProto.Book book = BookServiceProto.Book.newBuilder()
+                .setId(bookId)
+                .setTitle(request.getTitle())
+                .setAuthor(request.getAuthor())
+                .setIsbn(request.getIsbn())
+                .setPublicationYear(request.getPublicationYear())
+                .setVersion(1)
+                .build();
+
+        books.insert(key, book);
+        indexes.refresh(bookId, null, () -> books.get(key));
+        changes.put(bookId, book, () -> books.get(key));
+        return book;
+    }
+
+    private static int pageSize(BookServiceProto.ListBooksRequest request) {
+        int pageSize = request.getPageSize();
+        if (pageSize < 0) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("page_size must not be negative")
+                    .asRuntimeException();
+        }
+        return pageSize == 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    private static Iterator<StoredBook> booksAfter(VersionedBookStore.Snapshot snapshot, String pageToken) {
+        if (pageToken.isEmpty()) {
+            return snapshot.readAfter(-1);
+        }
+        long lastKey;
+        try {
+            lastKey = Long.parseLong(pageToken);
+        } catch (NumberFormatException e) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("Invalid page_token")
+                    .asRuntimeException();
+        }
+        return snapshot.readAfter(lastKey);
+    }
+
+    private static String pageToken(StoredBook last) {
+        return Long.toString(last.key());
+    }
+
+    /**
+     * Adds up to pageSize books that match the request filters.
+     * @return the last book added, or null if none matched
+     */
+    private static StoredBook nextPage(Iterator<StoredBook> entries,
+                                       BookServiceProto.ListBooksRequest request,
+                                       int pageSize,
+                                       List<StoredBook> page) {
+        StoredBook last = null;
+        while (page.size() < pageSize && entries.hasNext()) {
+            StoredBook book = entries.next();
+            if (matches(book, request)) {
+                page.add(book);
+                last = book;
+            }
+        }
+        return last;
+    }
+
+    private static boolean matches(StoredBook stored, BookServiceProto.ListBooksRequest request) {
+        if (request.getAuthor().isEmpty()
+                && request.getMinPublicationYear() == 0
+                && request.getMaxPublicationYear() == 0) {
+            // Without filters the message is never needed, so encoded listings skip the parse
+            return true;
+        }
+        BookServiceProto.Book book = stored.book();
+        if (!request.getAuthor().isEmpty() && !request.getAuthor().equalsIgnoreCase(book.getAuthor())) {
+            return false;
+        }
+        if (request.getMinPublicationYear() != 0 && book.getPublicationYear() < request.getMinPublicationYear()) {
+            return false;
+        }
+        return request.getMaxPublicationYear() == 0 || book.getPublicationYear() <= request.getMaxPublicationYear();
+    }
+
+    /**
+     * Collects streamed AddBookRequests and commits them in batches, taking a
+     * whole block of ids from the counter per batch. Replies with either one
+     * summary at the end (bulkAddBooks) or one ack per book, sent once its
+     * batch is logged (importBooks). An importBooks batch is also committed
+     * once its first book has waited IMPORT_ACK_DELAY_MILLIS, so a client
+     * that streams slowly still gets its acks. Nothing waits for the log:
+     * replies are chained on each batch's log future, and over gRPC the
+     * stream asks for another book only once one has been logged, so at
+     * most IMPORT_BATCH_SIZE books are ever in flight.
+     */
+    private final class BulkImport implements StreamObserver<BookServiceProto.AddBookRequest> {
+        private final StreamObserver<BookServiceProto.BulkAddBooksResponse> summaryObserver;
+        private final StreamObserver<BookServiceProto.AddBookAck> ackObserver;
+        // Null when called directly rather than through gRPC; then nothing holds the client back
+        private final ServerCallStreamObserver<?> call;
+        private final List<BookServiceProto.AddBookRequest> pending = new ArrayList<>(IMPORT_BATCH_SIZE);
+        private long received;
+        private long added;
+        private long rejected;
+        // Completes once every batch committed so far is logged and acked
+        private CompletableFuture<Void> replies = CompletableFuture.completedFuture(null);
+        // Set once the call has ended, by the client or by a failed batch; later requests are ignored
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        BulkImport(StreamObserver<BookServiceProto.BulkAddBooksResponse> summaryObserver,
+                   StreamObserver<BookServiceProto.AddBookAck> ackObserver) {
+            this.summaryObserver = summaryObserver;
+            this.ackObserver = ackObserver;
+            StreamObserver<?> responses = summaryObserver != null ? summaryObserver : ackObserver;
+            this.call = responses instanceof ServerCallStreamObserver
+                    ? (ServerCallStreamObserver<?>) responses
+                    : null;
+            if (call != null) {
+                call.disableAutoRequest();
+                call.request(IMPORT_BATCH_SIZE);
+            }
+        }
+
+        @Override
+        public synchronized void onNext(BookServiceProto.AddBookRequest request) {
+            if (finished.get()) {
+                return;
+            }
+            pending.add(request);
+            if (pending.size() >= IMPORT_BATCH_SIZE) {
+                commit();
+            } else if (pending.size() == 1 && ackObserver != null) {
+                long batch = received;
+                IMPORT_ACKS.schedule(() -> commitIfWaiting(batch), IMPORT_ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            // The client gave up; books from batches already committed stay in place
+            finished.set(true);
+            pending.clear();
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            if (finished.get()) {
+                return;
+            }
+            commit();
+            long addedCount = added;
+            long rejectedCount = rejected;
+            replies.thenRun(() -> {
+                if (!finished.compareAndSet(false, true)) {
+                    return;
+                }
+                if (summaryObserver != null) {
+                    summaryObserver.onNext(BookServiceProto.BulkAddBooksResponse.newBuilder()
+                            .setAddedCount(addedCount)
+                            .setRejectedCount(rejectedCount)
+                            .build());
+                    summaryObserver.onCompleted();
+                } else {
+                    ackObserver.onCompleted();
+                }
+            });
+        }
+
+        // Commits the batch that started with book number batch, if it is still waiting
+        private synchronized void commitIfWaiting(long batch) {
+            if (finished.get() || received != batch || pending.isEmpty()) {
+                return;
+            }
+            commit();
+        }
+
+        private void commit() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            int count = pending.size();
+            List<BookServiceProto.AddBookAck> acks = new ArrayList<>(ackObserver != null ? count : 0);
+            CompletableFuture<Long> lastLogged = NOT_LOGGED;
+            try {
+                checkWritable();
+                long firstKey = keys.reserve(count);
+                for (int i = 0; i < count; i++) {
+                    BookServiceProto.Book book = insert(firstKey + i, pending.get(i));
+                    if (book != null) {
+                        // The log makes writes durable in sequence order, so the batch's last append covers it
+                        lastLogged = logPut(book);
+                        added++;
+                    } else {
+                        rejected++;
+                        metrics.isbnConflict();
+                    }
+                    if (ackObserver != null) {
+                        BookServiceProto.AddBookAck.Builder ack = BookServiceProto.AddBookAck.newBuilder()
+                                .setIndex(received)
+                                .setSuccess(book != null);
+                        if (book != null) {
+                            ack.setId(book.getId());
+                        } else {
+                            ack.setMessage(DUPLICATE_ISBN);
+                        }
+                        acks.add(ack.build());
+                    }
+                    received++;
+                }
+            } catch (RuntimeException e) {
+                lastLogged = CompletableFuture.failedFuture(e);
+            }
+            pending.clear();
+
+            // Each batch replies after the one before it, so acks and the summary go out in order
+            replies = replies.thenCombine(lastLogged, (done, sequence) -> done).thenRun(() -> {
+                for (BookServiceProto.AddBookAck ack : acks) {
+                    ackObserver.onNext(ack);
+                }
+                if (call != null) {
+                    call.request(count);
+                }
+            });
+            replies.exceptionally(this::fail);
+        }
+
+        // Ends the call with the first batch that failed; the batches after it fail along with it
+        private Void fail(Throwable error) {
+            if (finished.compareAndSet(false, true)) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                Throwable reported = cause instanceof StatusRuntimeException
+                        ? cause
+                        : Status.INTERNAL.withDescription("Failed to write the import to the log")
+                                .withCause(cause)
+                                .asRuntimeException();
+                if (summaryObserver != null) {
+                    summaryObserver.onError(reported);
+                } else {
+                    ackObserver.onError(reported);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Applies what the leader sends to the store, the indexes, the change
+     * feed and the log. Books only move forward in version, except while a
+     * copy is applied: the copy is the leader's word, so any version it
+     * sends replaces the local one, and books it does not mention are
+     * removed once it is complete.
+     */
+    private final class Replica implements ReplicationFollower.Target {
+        // Keys of the books the copy in progress has sent
+        private PostingList copied;
+
+        @Override
+        public void snapshotStarted() {
+            copied = new PostingList();
+        }
+
+        @Override
+        public void snapshotBook(BookServiceProto.Book book) {
+            long key = replicatedKey(book.getId());
+            copied.add(key);
+            BookServiceProto.Book current = books.get(key);
+            if (current == null || current.getVersion() != book.getVersion()) {
+                store(key, current, book);
+            }
+        }
+
+        @Override
+        public void snapshotFinished(long sequence) {
+            List<BookServiceProto.Book> gone = new ArrayList<>();
+            for (Iterator<StoredBook> it = books.readAfter(-1); it.hasNext(); ) {
+                StoredBook book = it.next();
+                if (!copied.contains(book.key())) {
+                    gone.add(book.book());
+                }
+            }
+            for (BookServiceProto.Book book : gone) {
+                remove(replicatedKey(book.getId()), book);
+            }
+            copied = null;
+            changes.resetTo(sequence);
+        }
+
+        @Override
+        public void change(BookServiceProto.BookChange change) {
+            BookServiceProto.Book book = change.getBook();
+            long key = replicatedKey(book.getId());
+            BookServiceProto.Book current = books.get(key);
+            if (change.getType() == BookServiceProto.BookChange.Type.DELETED) {
+                if (current != null && current.getVersion() <= book.getVersion()) {
+                    remove(key, current);
+                }
+            } else if (current == null || current.getVersion() < book.getVersion()) {
+                store(key, current, book);
+            }
+            changes.replicate(change);
+        }
+
+        @Override
+        public void nextBookKey(long key) {
+            keys.advanceTo(key);
+        }
+
+        // The follower is the only writer, so the store cannot change underneath it
+        private void store(long key, BookServiceProto.Book current, BookServiceProto.Book book) {
+            if (current == null) {
+                books.insert(key, book);
+            } else {
+                books.replace(key, current, book);
+            }
+            indexes.refresh(book.getId(), current, () -> books.get(key));
+            keys.advanceTo(key + 1);
+            logPut(book);
+        }
+
+        private void remove(long key, BookServiceProto.Book current) {
+            books.remove(key);
+            indexes.refresh(current.getId(), current, () -> books.get(key));
+            logDelete(current);
+        }
+
+        private long replicatedKey(String bookId) {
+            long key = ids.parse(bookId);
+            if (key < 0) {
+                throw new IllegalStateException("The leader sent book " + bookId
+                        + ", which this server's shard setting does not own");
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Applies replayed records straight to the lookup map, keeping the
+     * highest version of each book. Runs before the service takes traffic.
+     */
+    private final class Recovery implements RecoveryListener {
+        // Deleted ids and the version they were deleted at; only needed while replaying
+        private final Map<String, Long> deleted = new HashMap<>();
+        // Past every key the log mentions, deleted books included, so no id is handed out twice
+        long nextKey;
+
+        @Override
+        public void onPut(BookServiceProto.Book book) {
+            long key = recoveredKey(book.getId());
+            Long deletedVersion = deleted.get(book.getId());
+            if (deletedVersion != null && deletedVersion >= book.getVersion()) {
+                return;
+            }
+            BookServiceProto.Book current = books.get(key);
+            if (current == null) {
+                books.insert(key, book);
+            } else if (current.getVersion() < book.getVersion()) {
+                books.replace(key, current, book);
+            }
+        }
+
+        @Override
+        public void onDelete(String bookId, long version) {
+            deleted.merge(bookId, version, Math::max);
+            long key = recoveredKey(bookId);
+            BookServiceProto.Book current = books.get(key);
+            if (current != null && current.getVersion() <= version) {
+                books.remove(key);
+            }
+        }
+
+        private long recoveredKey(String bookId) {
+            long key = ids.parse(bookId);
+            if (key < 0) {
+                throw new IllegalStateException("The log holds book " + bookId
+                        + ", which this server's shard setting does not own");
+            }
+            nextKey = Math.max(nextKey, key + 1);
+            return key;
+        }
+    }
+
+    /**
+     * Sends one chunk each time the call can take more data, so a slow
+     * reader holds back the iteration instead of buffering the catalogue.
+     * The whole stream reads one snapshot, which it closes when it ends.
+     */
+    private static final class BookStream {
+        private final ServerCallStreamObserver<BookServiceProto.ListBooksResponse> call;
+        private final BookServiceProto.ListBooksRequest request;
+        private final int chunkSize;
+        private final BookMask mask;
+        private final VersionedBookStore.Snapshot snapshot;
+        private final Iterator<StoredBook> entries;
+        private boolean finished;
+
+        BookStream(ServerCallStreamObserver<BookServiceProto.ListBooksResponse> call,
+                   BookServiceProto.ListBooksRequest request,
+                   int chunkSize,
+                   BookMask mask,
+                   VersionedBookStore.Snapshot snapshot,
+                   Iterator<StoredBook> entries) {
+            this.call = call;
+            this.request = request;
+            this.chunkSize = chunkSize;
+            this.mask = mask;
+            this.snapshot = snapshot;
+            this.entries = entries;
+        }
+
+        synchronized void drain() {
+            try {
+                while (!finished && call.isReady()) {
+                    List<StoredBook> chunk = new ArrayList<>(chunkSize);
+                    StoredBook last = nextPage(entries, request, chunkSize, chunk);
+                    if (last != null) {
+                        BookServiceProto.ListBooksResponse.Builder response =
+                                BookServiceProto.ListBooksResponse.newBuilder();
+                        for (StoredBook book : chunk) {
+                            response.addBooks(mask.apply(book.book()));
+                        }
+                        call.onNext(response.setNextPageToken(pageToken(last)).build());
+                    }
+                    if (!entries.hasNext()) {
+                        finish();
+                        call.onCompleted();
+                    }
+                }
+            } catch (Exception e) {
+                finish();
+                call.onError(e);
+            }
+        }
+
+        synchronized void cancel() {
+            finish();
+        }
+
+        private void finish() {
+            finished = true;
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Renders a page of ListBooks, as the message or as its encoding.
+     */
+    private interface PageResponse<T> {
+        T build(List<StoredBook> page, BookMask mask, String nextPageToken);
+    }
+
+    /**
+     * Request stream for a call that has already failed.
+     */
+    private static final class IgnoredRequests<T> implements StreamObserver<T> {
+        @Override
+        public void onNext(T value) {
         }
 
-        void replace(BookServiceProto.Book updated) {
-            this.book = updated;
+        @Override
+        public void onError(Throwable t) {
         }
 
-        void clear() {
-            this.book = null;
+        @Override
+        public void onCompleted() {
         }
     }
 }
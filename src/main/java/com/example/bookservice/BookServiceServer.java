@@ -1,23 +1,118 @@
 package com.example.bookservice;
 
+import com.example.bookservice.metrics.MetricSet;
+import com.example.bookservice.metrics.MetricsHttpServer;
+import com.example.bookservice.metrics.MetricsInterceptor;
+import com.example.bookservice.metrics.ServerMetrics;
+import com.example.bookservice.metrics.TierMetrics;
+import com.example.bookservice.store.BookStore;
+import com.example.bookservice.store.TieredBookStore;
+import com.example.bookservice.wal.WriteAheadLog;
+import com.example.codec.Codecs;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class BookServiceServer {
-    private final int port;
     private final Server server;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final ExecutorService executor;
+    private final BookStore store;
+    private final WriteAheadLog log;
+    private final MetricsHttpServer metricsServer;
+    private final BookServiceImpl service;
+    private final int shard;
+    private final List<String> leaders;
 
-    public BookServiceServer(int port) {
-        this.port = port;
-        this.server = ServerBuilder.forPort(port)
-                .addService(new BookServiceImpl())
-                .build();
+    public BookServiceServer(int port) throws IOException {
+        this(ServerOptions.parse(new String[] {"--port=" + port}));
+    }
+
+    public BookServiceServer(ServerOptions options) throws IOException {
+        this.shard = options.shard();
+        this.leaders = options.replicateFrom();
+        this.store = options.storage().create(options.storeDir(), options.cacheBytes());
+        BookServiceImpl service;
+        if (options.dataDir() != null) {
+            this.log = WriteAheadLog.open(options.dataDir(), options.durability(),
+                    WriteAheadLog.DEFAULT_SEGMENT_BYTES, options.snapshotEveryRecords());
+            service = new BookServiceImpl(store, log, options.shard());
+        } else {
+            this.log = null;
+            service = new BookServiceImpl(store, options.shard());
+        }
+        if (log != null) {
+            // Exit rather than serve writes the log lost; a restart recovers what the log holds
+            service.onLogFailure(() -> new Thread(() -> System.exit(1), "log-failure-exit").start());
+        }
+        if (store instanceof TieredBookStore) {
+            ((TieredBookStore) store).onWriteFailure(service::storeFailed);
+        }
+        if (!options.replicateFrom().isEmpty()) {
+            service.follow(options.replicateFrom());
+        }
+        this.service = service;
+        ServerMetrics serverMetrics = new ServerMetrics();
+        List<MetricSet> metrics = new ArrayList<>(Arrays.asList(serverMetrics, service.metrics(), service.replicationMetrics()));
+        if (store instanceof TieredBookStore) {
+            metrics.add(new TierMetrics((TieredBookStore) store));
+        }
+        this.bossGroup = new NioEventLoopGroup(options.bossThreads());
+        this.workerGroup = new NioEventLoopGroup(options.workerThreads());
+        this.executor = options.executor().create(options.executorThreads());
+        NettyServerBuilder builder = NettyServerBuilder.forAddress(new InetSocketAddress(options.port()))
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .channelType(NioServerSocketChannel.class)
+                .initialFlowControlWindow(options.flowControlWindow())
+                .maxInboundMessageSize(options.maxInboundMessageSize())
+                .compressorRegistry(Codecs.compressors())
+                .decompressorRegistry(Codecs.decompressors())
+                .addService(service.bindEncodedService());
+        if (!options.compression().isEmpty()) {
+            builder.intercept(new CompressionInterceptor(options.compression(), options.compressionThreshold()));
+        }
+        if (options.concurrencyLimit() != 0) {
+            ConcurrencyLimiter limiter = options.concurrencyLimit() < 0
+                    ? ConcurrencyLimiter.adaptive(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT,
+                            ConcurrencyLimiter.DEFAULT_MIN_LIMIT, ConcurrencyLimiter.DEFAULT_MAX_LIMIT)
+                    : ConcurrencyLimiter.fixed(options.concurrencyLimit());
+            builder.intercept(new AdmissionInterceptor(limiter));
+            metrics.add(limiter);
+        }
+        // Added last so it runs first and also counts the calls turned away
+        builder.intercept(new MetricsInterceptor(serverMetrics));
+        if (executor != null) {
+            builder.executor(executor);
+        } else if (options.executor() == ServerExecutor.DIRECT) {
+            builder.directExecutor();
+        }
+        this.server = builder.build();
+        this.metricsServer = options.metricsPort() >= 0
+                ? new MetricsHttpServer(options.metricsPort(), metrics)
+                : null;
     }
 
     public void start() throws IOException {
         server.start();
-        System.out.println("Server started, listening on port " + port);
+        System.out.println("Server started, listening on port " + server.getPort()
+                + (shard >= 0 ? " as shard " + shard : "")
+                + (leaders.isEmpty() ? "" : ", following " + String.join(",", leaders)));
+        if (metricsServer != null) {
+            metricsServer.start();
+            System.out.println("Metrics available at http://localhost:" + metricsServer.port() + "/metrics");
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.err.println("*** Shutting down gRPC server since JVM is shutting down");
@@ -26,10 +121,44 @@ public class BookServiceServer {
         }));
     }
 
+    /**
+     * The port the server is bound to, which differs from the requested one
+     * when that was 0.
+     */
+    public int port() {
+        return server.getPort();
+    }
+
     public void stop() {
+        service.stopFollowing();
         if (server != null) {
             server.shutdown();
         }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        try {
+            server.awaitTermination(5, TimeUnit.SECONDS);
+            if (log != null) {
+                log.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Failed to close the write-ahead log: " + e.getMessage());
+        }
+        if (store instanceof Closeable) {
+            try {
+                ((Closeable) store).close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the book store: " + e.getMessage());
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -39,8 +168,8 @@ public class BookServiceServer {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        BookServiceServer server = new BookServiceServer(8980);
+        BookServiceServer server = new BookServiceServer(ServerOptions.parse(args));
         server.start();
         server.blockUntilShutdown();
     }
-}
\ No newline at end of file
+}
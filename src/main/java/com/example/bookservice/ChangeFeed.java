@@ -0,0 +1,246 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * The most recent changes to the catalogue, kept in a fixed-size ring, and
+ * the WatchBooks streams that read them.
+ *
+ * Changes to one book are published under a lock stripe for its id, and a
+ * put publishes whatever version is current by then. The changes for a book
+ * therefore appear in version order; a version that was replaced before it
+ * could be published is left out in favour of the one that replaced it,
+ * which may then appear twice.
+ *
+ * Publishing never waits for watchers. A watcher is just a position in the
+ * ring, drained on the executor while its call can take more messages. A
+ * watcher that falls a whole ring behind has lost changes and is either
+ * told to resync or dropped, as it asked.
+ *
+ * On a follower the feed carries the leader's changes under the leader's
+ * sequence numbers, so watchers and read-your-writes tokens can move
+ * between the leader and its followers.
+ */
+final class ChangeFeed {
+
+    static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final AtomicReferenceArray<BookServiceProto.BookChange> ring;
+    private final Executor executor;
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    private final Object appendLock = new Object();
+    private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+    // Called after every append, like a watcher's signal
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+    // Sequence of the newest change in the ring; only written under appendLock
+    private volatile long lastSequence;
+
+    ChangeFeed(int capacity, Executor executor) {
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.executor = executor;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        // Room for a million changes per millisecond before a restart could
+        // hand out a sequence number the previous run already used
+        this.lastSequence = System.currentTimeMillis() << 20;
+    }
+
+    /**
+     * Records an add or update, or the newer version that has replaced it
+     * already. Call after the write has landed in the store. Once this
+     * returns, {@link #lastSequence} covers the write.
+     */
+    void put(String bookId, BookServiceProto.Book written, Supplier<BookServiceProto.Book> current) {
+        synchronized (stripe(bookId)) {
+            BookServiceProto.Book book = current.get();
+            if (book == null || book.getVersion() < written.getVersion()) {
+                // Deleted meanwhile; the delete is published by whoever made it
+                return;
+            }
+            append(book.getVersion() == 1
+                    ? BookServiceProto.BookChange.Type.ADDED
+                    : BookServiceProto.BookChange.Type.UPDATED, book);
+        }
+    }
+
+    /**
+     * Records a delete. Ids are never reused, so it is always the last
+     * change for its book.
+     */
+    void delete(String bookId, BookServiceProto.Book removed) {
+        synchronized (stripe(bookId)) {
+            append(BookServiceProto.BookChange.Type.DELETED, removed);
+        }
+    }
+
+    /**
+     * Publishes a change a follower received from its leader, keeping the
+     * leader's sequence number. Changes must arrive in sequence order.
+     */
+    void replicate(BookServiceProto.BookChange change) {
+        synchronized (appendLock) {
+            if (change.getSequence() <= lastSequence) {
+                return;
+            }
+            ring.set(slot(change.getSequence()), change);
+            lastSequence = change.getSequence();
+        }
+        signalAll();
+    }
+
+    /**
+     * Moves the feed to the leader's sequence after a follower copied the
+     * whole catalogue. Watchers find the changes before it missing and
+     * resync.
+     */
+    void resetTo(long sequence) {
+        synchronized (appendLock) {
+            lastSequence = sequence;
+        }
+        signalAll();
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts streaming changes after request.after_sequence to the call.
+     */
+    void watch(BookServiceProto.WatchBooksRequest request,
+               ServerCallStreamObserver<BookServiceProto.BookChange> call) {
+        long after = request.getAfterSequence() == 0 ? lastSequence : request.getAfterSequence();
+        Watcher watcher = new Watcher(call, after, request.getResyncOnOverflow());
+        call.setOnCancelHandler(watcher::cancel);
+        call.setOnReadyHandler(watcher::drain);
+        watchers.add(watcher);
+        watcher.drain();
+    }
+
+    private void append(BookServiceProto.BookChange.Type type, BookServiceProto.Book book) {
+        synchronized (appendLock) {
+            long sequence = lastSequence + 1;
+            ring.set(slot(sequence), BookServiceProto.BookChange.newBuilder()
+                    .setSequence(sequence)
+                    .setType(type)
+                    .setBook(book)
+                    .build());
+            lastSequence = sequence;
+        }
+        signalAll();
+    }
+
+    private void signalAll() {
+        for (Watcher watcher : watchers) {
+            watcher.signal();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return the change with this sequence, or null if the ring no longer holds it
+     */
+    BookServiceProto.BookChange changeAt(long sequence) {
+        BookServiceProto.BookChange change = ring.get(slot(sequence));
+        return change != null && change.getSequence() == sequence ? change : null;
+    }
+
+    private int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) ring.length());
+    }
+
+    private Object stripe(String bookId) {
+        return stripes[(bookId.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    private final class Watcher {
+        private final ServerCallStreamObserver<BookServiceProto.BookChange> call;
+        private final boolean resyncOnOverflow;
+        // Set while a drain is queued on the executor, so publishers queue at most one
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Sequence of the last change sent
+        private long cursor;
+        private boolean finished;
+
+        Watcher(ServerCallStreamObserver<BookServiceProto.BookChange> call, long cursor, boolean resyncOnOverflow) {
+            this.call = call;
+            this.cursor = cursor;
+            this.resyncOnOverflow = resyncOnOverflow;
+        }
+
+        void signal() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        synchronized void drain() {
+            scheduled.set(false);
+            try {
+                while (!finished && call.isReady()) {
+                    long last = lastSequence;
+                    if (cursor == last) {
+                        return;
+                    }
+                    BookServiceProto.BookChange change = cursor < last ? changeAt(cursor + 1) : null;
+                    if (change == null) {
+                        overflow(last);
+                    } else {
+                        call.onNext(change);
+                        cursor++;
+                    }
+                }
+            } catch (Exception e) {
+                finish();
+                call.onError(e);
+            }
+        }
+
+        synchronized void cancel() {
+            finish();
+        }
+
+        // A cursor ahead of the ring comes from an earlier run whose clock was ahead of ours
+        private void overflow(long last) {
+            if (!resyncOnOverflow) {
+                finish();
+                call.onError(Status.OUT_OF_RANGE
+                        .withDescription("Changes after sequence " + cursor
+                                + " are no longer buffered; reload the catalogue and watch again")
+                        .asRuntimeException());
+                return;
+            }
+            call.onNext(BookServiceProto.BookChange.newBuilder()
+                    .setSequence(last)
+                    .setType(BookServiceProto.BookChange.Type.RESYNC)
+                    .build());
+            cursor = last;
+        }
+
+        private void finish() {
+            finished = true;
+            watchers.remove(this);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.bookservice;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import java.util.List;
+
+/**
+ * Compresses responses of at least thresholdBytes with the first of the
+ * server's encodings that the client lists in grpc-accept-encoding; smaller
+ * responses, such as a GetBook, go out as they are. The headers name the
+ * encoding for the whole call, and each message, the first of a stream or
+ * any later one, is compressed or not by its own size.
+ */
+final class CompressionInterceptor implements ServerInterceptor {
+
+    private static final Metadata.Key<String> ACCEPT_ENCODING =
+            Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final List<String> encodings;
+    private final int thresholdBytes;
+
+    /**
+     * @param encodings registered encodings, most preferred first
+     */
+    CompressionInterceptor(List<String> encodings, int thresholdBytes) {
+        this.encodings = encodings;
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String encoding = choose(headers.get(ACCEPT_ENCODING));
+        return next.startCall(encoding == null ? call : new SizedCompression<>(call, encoding), headers);
+    }
+
+    /**
+     * @return the preferred encoding the client accepts, or null if there is none
+     */
+    private String choose(String accepted) {
+        if (accepted == null) {
+            return null;
+        }
+        for (String encoding : encodings) {
+            for (String offered : accepted.split(",")) {
+                if (offered.trim().equals(encoding)) {
+                    return encoding;
+                }
+            }
+        }
+        return null;
+    }
+
+    private final class SizedCompression<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+        private final String encoding;
+
+        SizedCompression(ServerCall<ReqT, RespT> call, String encoding) {
+            super(call);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+            // The compressor can only be chosen before the headers go out
+            super.setCompression(encoding);
+            super.sendHeaders(headers);
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            // Small messages go out with the compressed flag off, which every gRPC client accepts
+            super.setMessageCompression(sizeOf(message) >= thresholdBytes);
+            super.sendMessage(message);
+        }
+    }
+
+    private static int sizeOf(Object message) {
+        if (message instanceof MessageLite) {
+            // Protobuf caches the size, so marshalling does not compute it again
+            return ((MessageLite) message).getSerializedSize();
+        }
+        if (message instanceof ByteString) {
+            return ((ByteString) message).size();
+        }
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.bookservice;
+
+import com.example.bookservice.metrics.MetricSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How many unary calls the server runs at once. The limit adapts to the
+ * latency calls see, much as TCP Vegas adapts its window: while recent
+ * latency stays near the long-run latency the limit creeps up, and as
+ * requests start to queue and recent latency rises above it, the limit is
+ * cut in proportion. Calls beyond the limit are turned away at once rather
+ * than left to queue behind the ones running.
+ *
+ * The long-run latency follows the short-run one down quickly, so a burst
+ * that raised it does not hold the limit low after the burst is gone.
+ */
+final class ConcurrencyLimiter implements MetricSet {
+
+    static final int DEFAULT_INITIAL_LIMIT = 64;
+    static final int DEFAULT_MIN_LIMIT = 8;
+    static final int DEFAULT_MAX_LIMIT = 1000;
+
+    // Recent latency may be this much above the long-run latency before the limit is cut
+    private static final double TOLERANCE = 1.5;
+    private static final double SHORT_WEIGHT = 0.1;
+    private static final double LONG_WEIGHT = 1.0 / 500;
+    private static final double SMOOTHING = 0.2;
+    private static final long MIN_PUSHBACK_MILLIS = 10;
+    private static final long MAX_PUSHBACK_MILLIS = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int limit;
+    // Guarded by this
+    private double estimatedLimit;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    /**
+     * A limit that adapts between minLimit and maxLimit, starting at initialLimit.
+     */
+    static ConcurrencyLimiter adaptive(int initialLimit, int minLimit, int maxLimit) {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, true);
+    }
+
+    static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(limit, limit, limit, false);
+    }
+
+    private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    /**
+     * @return true if the call may run; it must then call {@link #release}
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos how long the call ran
+     * @param measured false if the call ended too early to say anything
+     *        about load, such as one the client cancelled
+     */
+    void release(long latencyNanos, boolean measured) {
+        int running = inFlight.getAndDecrement();
+        if (adaptive && measured) {
+            update(latencyNanos, running);
+        }
+    }
+
+    /**
+     * How long a turned-away caller should wait before trying again: about
+     * as long as a couple of calls take to finish at the current latency.
+     */
+    long pushbackMillis() {
+        double rtt;
+        synchronized (this) {
+            rtt = shortRttNanos;
+        }
+        return Math.max(MIN_PUSHBACK_MILLIS, Math.min(MAX_PUSHBACK_MILLIS, (long) (2 * rtt / 1_000_000)));
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    private synchronized void update(long latencyNanos, int running) {
+        if (longRttNanos == 0) {
+            shortRttNanos = latencyNanos;
+            longRttNanos = latencyNanos;
+            return;
+        }
+        shortRttNanos += (latencyNanos - shortRttNanos) * SHORT_WEIGHT;
+        longRttNanos += (latencyNanos - longRttNanos) * LONG_WEIGHT;
+        if (longRttNanos > 2 * shortRttNanos) {
+            // Load has dropped; let the baseline catch up instead of growing the limit for minutes
+            longRttNanos = 0.95 * longRttNanos + 0.05 * shortRttNanos;
+        }
+        // With half the limit unused the latency says nothing about whether it is too low
+        if (running < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+        double queueAllowance = Math.sqrt(estimatedLimit);
+        double target = estimatedLimit * gradient + queueAllowance;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+                estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+        limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public void appendPrometheus(StringBuilder out) {
+        out.append("# TYPE bookservice_admission_limit gauge\n");
+        out.append("bookservice_admission_limit ").append(limit).append('\n');
+        out.append("# TYPE bookservice_admission_in_flight gauge\n");
+        out.append("bookservice_admission_in_flight ").append(inFlight.get()).append('\n');
+        out.append("# TYPE bookservice_admission_admitted_total counter\n");
+        out.append("bookservice_admission_admitted_total ").append(admitted.sum()).append('\n');
+        out.append("# TYPE bookservice_admission_rejected_total counter\n");
+        out.append("bookservice_admission_rejected_total ").append(rejected.sum()).append('\n');
+    }
+}
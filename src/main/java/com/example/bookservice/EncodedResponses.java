@@ -0,0 +1,200 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.store.StoredBook;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds BookResponse, BatchGetBooksResponse and ListBooksResponse wire
+ * bytes around books that are already encoded, so read paths copy each
+ * book's bytes into the response instead of building a message and
+ * serializing it again. Clients cannot
+ * tell the difference: the bytes are exactly what the generated code writes.
+ * A read mask costs the copy: only books projected to fewer fields are
+ * encoded afresh.
+ */
+final class EncodedResponses {
+
+    private static final ByteString BOOK_FOUND = BookServiceProto.BookResponse.newBuilder()
+            .setMessage("Book found")
+            .setSuccess(true)
+            .build()
+            .toByteString();
+
+    static final ByteString BOOK_NOT_FOUND = BookServiceProto.BookResponse.newBuilder()
+            .setMessage("Book not found")
+            .setSuccess(false)
+            .build()
+            .toByteString();
+
+    /**
+     * Response marshaller for methods whose handlers produce encoded
+     * responses. Parsing is only there for completeness; the server never
+     * reads its own responses.
+     */
+    static final MethodDescriptor.Marshaller<ByteString> MARSHALLER = new MethodDescriptor.Marshaller<ByteString>() {
+        @Override
+        public InputStream stream(ByteString value) {
+            return new EncodedStream(value);
+        }
+
+        @Override
+        public ByteString parse(InputStream stream) {
+            try {
+                return ByteString.readFrom(stream);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private EncodedResponses() {
+    }
+
+    static ByteString bookFound(ByteString book) {
+        byte[] response = new byte[BOOK_FOUND.size()
+                + CodedOutputStream.computeBytesSize(BookServiceProto.BookResponse.BOOK_FIELD_NUMBER, book)];
+        CodedOutputStream out = CodedOutputStream.newInstance(response);
+        try {
+            out.writeRawBytes(BOOK_FOUND);
+            out.writeBytes(BookServiceProto.BookResponse.BOOK_FIELD_NUMBER, book);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Response size was miscalculated", e);
+        }
+        return UnsafeByteOperations.unsafeWrap(response);
+    }
+
+    /**
+     * @param books one per requested id, null where there is no such book
+     */
+    static ByteString batchGet(List<StoredBook> books, BookMask mask) {
+        List<ByteString> encoded = encode(books, mask);
+        int size = 0;
+        for (ByteString book : encoded) {
+            int result = resultSize(book);
+            size += CodedOutputStream.computeTagSize(BookServiceProto.BatchGetBooksResponse.RESULTS_FIELD_NUMBER)
+                    + CodedOutputStream.computeUInt32SizeNoTag(result) + result;
+        }
+        byte[] response = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(response);
+        try {
+            for (ByteString book : encoded) {
+                out.writeTag(BookServiceProto.BatchGetBooksResponse.RESULTS_FIELD_NUMBER,
+                        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(resultSize(book));
+                if (book == null) {
+                    out.writeRawBytes(BOOK_NOT_FOUND);
+                } else {
+                    out.writeRawBytes(BOOK_FOUND);
+                    out.writeBytes(BookServiceProto.BookResponse.BOOK_FIELD_NUMBER, book);
+                }
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Response size was miscalculated", e);
+        }
+        return UnsafeByteOperations.unsafeWrap(response);
+    }
+
+    static ByteString listBooks(List<StoredBook> books, BookMask mask, String nextPageToken) {
+        List<ByteString> encoded = encode(books, mask);
+        int size = nextPageToken.isEmpty()
+                ? 0
+                : CodedOutputStream.computeStringSize(BookServiceProto.ListBooksResponse.NEXT_PAGE_TOKEN_FIELD_NUMBER,
+                        nextPageToken);
+        for (ByteString book : encoded) {
+            size += CodedOutputStream.computeBytesSize(BookServiceProto.ListBooksResponse.BOOKS_FIELD_NUMBER, book);
+        }
+        byte[] response = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(response);
+        try {
+            for (ByteString book : encoded) {
+                out.writeBytes(BookServiceProto.ListBooksResponse.BOOKS_FIELD_NUMBER, book);
+            }
+            if (!nextPageToken.isEmpty()) {
+                out.writeString(BookServiceProto.ListBooksResponse.NEXT_PAGE_TOKEN_FIELD_NUMBER, nextPageToken);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Response size was miscalculated", e);
+        }
+        return UnsafeByteOperations.unsafeWrap(response);
+    }
+
+    private static List<ByteString> encode(List<StoredBook> books, BookMask mask) {
+        List<ByteString> encoded = new ArrayList<>(books.size());
+        for (StoredBook book : books) {
+            encoded.add(book == null ? null : mask.encode(book));
+        }
+        return encoded;
+    }
+
+    private static int resultSize(ByteString book) {
+        return book == null
+                ? BOOK_NOT_FOUND.size()
+                : BOOK_FOUND.size() + CodedOutputStream.computeBytesSize(
+                        BookServiceProto.BookResponse.BOOK_FIELD_NUMBER, book);
+    }
+
+    /**
+     * Hands gRPC the bytes with their length up front, so the framer copies
+     * them straight into the transport buffer in one write.
+     */
+    private static final class EncodedStream extends InputStream implements Drainable, KnownLength {
+        private ByteString bytes;
+        // Only created if gRPC reads the stream byte by byte instead of draining it
+        private InputStream partial;
+
+        EncodedStream(ByteString bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int drained = available();
+            if (partial == null) {
+                bytes.writeTo(target);
+            } else {
+                partial.transferTo(target);
+            }
+            bytes = ByteString.EMPTY;
+            partial = null;
+            return drained;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return input().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return input().read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return partial == null ? bytes.size() : partial.available();
+        }
+
+        private InputStream input() {
+            if (partial == null) {
+                partial = bytes.newInput();
+            }
+            return partial;
+        }
+    }
+}
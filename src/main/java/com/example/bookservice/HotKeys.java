@@ -0,0 +1,115 @@
+package com.example.bookservice;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which books are being read most, estimated from a sample of reads: one in
+ * SAMPLE_EVERY is counted in a count-min sketch, and every count is halved
+ * each WINDOW samples so a book that stops being read drops out within a
+ * couple of windows. A book is hot while its estimate is at least
+ * 1/HOT_SHARE of a window, and hot books are remembered so the top ones can
+ * be listed.
+ *
+ * Counting is lock-free; two threads halving at once, or counting while a
+ * halving runs, can only make the estimates a little less exact.
+ */
+final class HotKeys {
+
+    static final int SAMPLE_EVERY = 8;
+    private static final int WINDOW = 1 << 16;
+    private static final int HOT_SHARE = 1000;
+    private static final int HOT_COUNT = WINDOW / HOT_SHARE;
+    private static final int MAX_TRACKED = 1024;
+    private static final int DEPTH = 4;
+    // Power of two
+    private static final int WIDTH = 4096;
+    private static final long[] SEEDS = {0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0xc4ceb9fe1a85ec53L};
+
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final AtomicLong samples = new AtomicLong();
+    // Keys whose estimate has reached HOT_COUNT since they were last pruned
+    private final ConcurrentHashMap<Long, Boolean> tracked = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a read of the key, if it is sampled.
+     * @return true if the key is hot
+     */
+    boolean read(long key) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) != 0) {
+            return estimate(key) >= HOT_COUNT;
+        }
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(key, row)));
+        }
+        if (estimate >= HOT_COUNT && tracked.size() < MAX_TRACKED) {
+            tracked.putIfAbsent(key, Boolean.TRUE);
+        }
+        if (samples.incrementAndGet() % WINDOW == 0) {
+            age();
+        }
+        return estimate >= HOT_COUNT;
+    }
+
+    /**
+     * @return the estimated reads of the key over about the last window
+     */
+    long estimatedReads(long key) {
+        return (long) estimate(key) * SAMPLE_EVERY;
+    }
+
+    /**
+     * @return the estimated reads of all keys over the same span as {@link #estimatedReads}
+     */
+    long windowReads() {
+        long sampled = samples.get();
+        // Counts are halved every window, so they hold about one window plus half the one before
+        return (sampled < WINDOW ? sampled : WINDOW + sampled % WINDOW) * SAMPLE_EVERY;
+    }
+
+    /**
+     * @return up to limit hot keys, most read first
+     */
+    List<Long> top(int limit) {
+        List<Long> hot = new ArrayList<>();
+        for (Long key : tracked.keySet()) {
+            if (estimate(key) >= HOT_COUNT) {
+                hot.add(key);
+            }
+        }
+        hot.sort(Comparator.comparingInt((Long key) -> estimate(key)).reversed());
+        return hot.size() > limit ? hot.subList(0, limit) : hot;
+    }
+
+    private int estimate(long key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(index(key, row)));
+        }
+        return estimate;
+    }
+
+    private void age() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, count -> count >> 1);
+        }
+        tracked.keySet().removeIf(key -> estimate(key) < HOT_COUNT / 2);
+    }
+
+    // A different seed per row, then the murmur3 finalizer
+    private static int index(long key, int row) {
+        long h = key ^ SEEDS[row];
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return row * WIDTH + (int) (h & (WIDTH - 1));
+    }
+}
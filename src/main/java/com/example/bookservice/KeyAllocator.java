@@ -0,0 +1,103 @@
+package com.example.bookservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands out the 64-bit keys of new books. Threads draw keys from a few
+ * stripes, picked by thread id, and each stripe holds a block of
+ * BLOCK_SIZE keys claimed from the shared counter. Concurrent inserts
+ * therefore touch the shared counter once per block instead of once per
+ * book, and mostly increment different cache lines.
+ *
+ * Keys are unique and nearly dense, but not in arrival order: two threads
+ * adding books at once take them from different blocks. Keys still held
+ * in a block are skipped for good if the server restarts, as are the rest
+ * of a block claimed by a thread that lost the race to install it.
+ *
+ * Keys stop at {@link #MAX_KEY}: the text index and the off-heap store
+ * split keys into pages of 65536 held in arrays, and their page tables
+ * must be able to double without overflowing an int.
+ */
+public final class KeyAllocator {
+
+    public static final long MAX_KEY = (1L << 46) - 1;
+    static final int BLOCK_SIZE = 64;
+    private static final int MAX_STRIPES = 64;
+
+    private static final Block EMPTY = new Block(0, 0);
+
+    // First key not yet claimed by any block or reservation
+    private final AtomicLong unclaimed = new AtomicLong();
+    private final AtomicReferenceArray<Block> stripes;
+
+    public KeyAllocator() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripes how many blocks to draw from at once; rounded up to a power of two
+     */
+    public KeyAllocator(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(stripes, MAX_STRIPES)) * 2 - 1);
+        this.stripes = new AtomicReferenceArray<>(count);
+        for (int i = 0; i < count; i++) {
+            this.stripes.set(i, EMPTY);
+        }
+    }
+
+    public long next() {
+        int stripe = (int) Thread.currentThread().getId() & (stripes.length() - 1);
+        Block block = stripes.get(stripe);
+        long key = block.next.getAndIncrement();
+        if (key < block.end) {
+            return key;
+        }
+        long start = claim(BLOCK_SIZE);
+        stripes.compareAndSet(stripe, block, new Block(start + 1, start + BLOCK_SIZE));
+        return start;
+    }
+
+    /**
+     * Claims count consecutive keys at once, for a bulk import.
+     * @return the first of them
+     */
+    public long reserve(int count) {
+        return claim(count);
+    }
+
+    /**
+     * @return a key above every key handed out so far
+     */
+    public long limit() {
+        return unclaimed.get();
+    }
+
+    /**
+     * Moves the counter past keys recovered from the log or replicated
+     * from a leader. Keys already in a stripe's block are not affected, so
+     * this is only for a server that is not adding books itself yet.
+     */
+    public void advanceTo(long key) {
+        unclaimed.accumulateAndGet(key, Math::max);
+    }
+
+    private long claim(int count) {
+        long start = unclaimed.getAndAdd(count);
+        if (start + count - 1 > MAX_KEY) {
+            throw new IllegalStateException("Book keys are used up");
+        }
+        return start;
+    }
+
+    private static final class Block {
+        final long end;
+        // Runs past end once the block is used up; only values below end are handed out
+        final AtomicLong next;
+
+        Block(long next, long end) {
+            this.next = new AtomicLong(next);
+            this.end = end;
+        }
+    }
+}
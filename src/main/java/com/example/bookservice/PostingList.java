@@ -0,0 +1,159 @@
+package com.example.bookservice;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set of non-negative book keys, laid out like a roaring bitmap: keys are
+ * split by their high bits into chunks of 65536, and each chunk is either a
+ * sorted char array (up to {@link #ARRAY_LIMIT} keys) or a 1024-word bitmap.
+ * Chunks are kept in an array indexed by chunk number, which covers every
+ * key up to {@link KeyAllocator#MAX_KEY}.
+ *
+ * Readers never lock. Writers are serialized on the list; array chunks are
+ * replaced copy-on-write and bitmap chunks are updated one atomic word at a
+ * time, so a reader sees each key either in or out, never a torn chunk.
+ */
+final class PostingList {
+
+    static final int CHUNK_BITS = 16;
+    static final int WORDS_PER_CHUNK = (1 << CHUNK_BITS) / 64;
+    // Past this many keys a bitmap (8 KB) is smaller than the char array
+    private static final int ARRAY_LIMIT = 4096;
+    private static final char[] EMPTY = new char[0];
+
+    private volatile AtomicReferenceArray<Object> chunks = new AtomicReferenceArray<>(0);
+    private volatile int cardinality;
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * One past the highest chunk index that may hold keys.
+     */
+    int chunkCount() {
+        return chunks.length();
+    }
+
+    boolean contains(long key) {
+        AtomicReferenceArray<Object> current = chunks;
+        if (key >>> CHUNK_BITS >= current.length()) {
+            return false;
+        }
+        Object chunk = current.get((int) (key >>> CHUNK_BITS));
+        char low = (char) key;
+        if (chunk instanceof AtomicLongArray) {
+            return (((AtomicLongArray) chunk).get(low >>> 6) & 1L << low) != 0;
+        }
+        return chunk != null && Arrays.binarySearch((char[]) chunk, low) >= 0;
+    }
+
+    synchronized void add(long key) {
+        int index = Math.toIntExact(key >>> CHUNK_BITS);
+        char low = (char) key;
+        AtomicReferenceArray<Object> current = chunks;
+        if (index >= current.length()) {
+            AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(Math.max(index + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            chunks = grown;
+            current = grown;
+        }
+        Object chunk = current.get(index);
+        if (chunk instanceof AtomicLongArray) {
+            AtomicLongArray bits = (AtomicLongArray) chunk;
+            long word = bits.get(low >>> 6);
+            long bit = 1L << low;
+            if ((word & bit) == 0) {
+                bits.set(low >>> 6, word | bit);
+                cardinality++;
+            }
+            return;
+        }
+        char[] keys = chunk == null ? EMPTY : (char[]) chunk;
+        int at = Arrays.binarySearch(keys, low);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (keys.length >= ARRAY_LIMIT) {
+            AtomicLongArray bits = new AtomicLongArray(WORDS_PER_CHUNK);
+            for (char k : keys) {
+                bits.set(k >>> 6, bits.get(k >>> 6) | 1L << k);
+            }
+            bits.set(low >>> 6, bits.get(low >>> 6) | 1L << low);
+            current.set(index, bits);
+        } else {
+            char[] copy = new char[keys.length + 1];
+            System.arraycopy(keys, 0, copy, 0, at);
+            copy[at] = low;
+            System.arraycopy(keys, at, copy, at + 1, keys.length - at);
+            current.set(index, copy);
+        }
+        cardinality++;
+    }
+
+    synchronized void remove(long key) {
+        AtomicReferenceArray<Object> current = chunks;
+        if (key >>> CHUNK_BITS >= current.length()) {
+            return;
+        }
+        int index = (int) (key >>> CHUNK_BITS);
+        char low = (char) key;
+        Object chunk = current.get(index);
+        if (chunk instanceof AtomicLongArray) {
+            // Bitmaps are not shrunk back to arrays; a chunk that was once dense usually fills up again
+            AtomicLongArray bits = (AtomicLongArray) chunk;
+            long word = bits.get(low >>> 6);
+            long bit = 1L << low;
+            if ((word & bit) != 0) {
+                bits.set(low >>> 6, word & ~bit);
+                cardinality--;
+            }
+            return;
+        }
+        char[] keys = chunk == null ? EMPTY : (char[]) chunk;
+        int at = Arrays.binarySearch(keys, low);
+        if (at < 0) {
+            return;
+        }
+        if (keys.length == 1) {
+            current.set(index, null);
+        } else {
+            char[] copy = new char[keys.length - 1];
+            System.arraycopy(keys, 0, copy, 0, at);
+            System.arraycopy(keys, at + 1, copy, at, keys.length - at - 1);
+            current.set(index, copy);
+        }
+        cardinality--;
+    }
+
+    /**
+     * ORs the keys in one chunk into a {@link #WORDS_PER_CHUNK}-word bitmap.
+     * @return false if the chunk is empty
+     */
+    boolean orChunkInto(int index, long[] words) {
+        AtomicReferenceArray<Object> current = chunks;
+        if (index >= current.length()) {
+            return false;
+        }
+        Object chunk = current.get(index);
+        if (chunk == null) {
+            return false;
+        }
+        if (chunk instanceof AtomicLongArray) {
+            AtomicLongArray bits = (AtomicLongArray) chunk;
+            for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+                words[i] |= bits.get(i);
+            }
+        } else {
+            for (char k : (char[]) chunk) {
+                words[k >>> 6] |= 1L << k;
+            }
+        }
+        return true;
+    }
+}
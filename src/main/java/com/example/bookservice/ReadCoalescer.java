@@ -0,0 +1,108 @@
+package com.example.bookservice;
+
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent reads of one book share a single lookup: the first read
+ * of a key looks it up and answers every read of the key that arrived
+ * while it was running, all with the same response.
+ *
+ * A read only joins a lookup that started after every change it could
+ * have seen acknowledged, judged by the change feed's sequence, so sharing
+ * never hands a client a book older than one it has already written.
+ *
+ * @param <T> the response
+ */
+final class ReadCoalescer<T> {
+
+    private final LongSupplier lastSequence;
+    private final Runnable coalesced;
+    private final ConcurrentHashMap<Long, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param lastSequence the sequence of the newest change applied to the store
+     * @param coalesced called for each read answered by another's lookup
+     */
+    ReadCoalescer(LongSupplier lastSequence, Runnable coalesced) {
+        this.lastSequence = lastSequence;
+        this.coalesced = coalesced;
+    }
+
+    void read(long key, Supplier<T> lookup, StreamObserver<T> responseObserver) {
+        long arrived = lastSequence.getAsLong();
+        Flight running = flights.get(key);
+        if (running != null && running.join(arrived, responseObserver)) {
+            coalesced.run();
+            return;
+        }
+
+        Flight mine = new Flight(arrived);
+        if (running == null ? flights.putIfAbsent(key, mine) != null : !flights.replace(key, running, mine)) {
+            // Another read started a lookup first; this one makes its own rather than wait for the next
+            mine = null;
+        }
+        T response;
+        try {
+            response = lookup.get();
+        } catch (RuntimeException e) {
+            if (mine != null) {
+                flights.remove(key, mine);
+                mine.fail(e);
+            }
+            responseObserver.onError(e);
+            return;
+        }
+        if (mine != null) {
+            flights.remove(key, mine);
+            mine.finish(response);
+        }
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * One lookup in progress and the reads waiting for it.
+     */
+    private final class Flight {
+        // The store held every change up to here when the lookup started
+        private final long startSequence;
+        // Null once the lookup has finished
+        private List<StreamObserver<T>> waiting = new ArrayList<>();
+
+        Flight(long startSequence) {
+            this.startSequence = startSequence;
+        }
+
+        synchronized boolean join(long arrived, StreamObserver<T> responseObserver) {
+            if (waiting == null || arrived > startSequence) {
+                return false;
+            }
+            waiting.add(responseObserver);
+            return true;
+        }
+
+        void finish(T response) {
+            for (StreamObserver<T> waiter : close()) {
+                waiter.onNext(response);
+                waiter.onCompleted();
+            }
+        }
+
+        void fail(RuntimeException error) {
+            for (StreamObserver<T> waiter : close()) {
+                waiter.onError(error);
+            }
+        }
+
+        private synchronized List<StreamObserver<T>> close() {
+            List<StreamObserver<T>> waiters = waiting;
+            waiting = null;
+            return waiters;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.bookservice;
+
+import com.example.BookServiceGrpc;
+import com.example.BookServiceProto;
+import com.example.bookservice.metrics.ReplicationMetrics;
+import com.example.codec.Codecs;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A follower's end of replication: keeps a Replicate call open to whichever
+ * of the candidate leaders accepts it, and hands every frame to the
+ * {@link Target} in order.
+ *
+ * A broken call is reopened on the next candidate, resuming after the last
+ * change applied; the leader decides whether that is still possible or
+ * starts over with a copy. A call that goes three heartbeats without a
+ * frame is treated as broken.
+ */
+final class ReplicationFollower {
+
+    /**
+     * Where frames are applied. Calls come from one thread at a time, in
+     * stream order.
+     */
+    interface Target {
+        void snapshotStarted();
+
+        void snapshotBook(BookServiceProto.Book book);
+
+        /**
+         * The copy is complete and reflects every change up to sequence.
+         */
+        void snapshotFinished(long sequence);
+
+        void change(BookServiceProto.BookChange change);
+
+        /**
+         * Keys below this one may have been used by the leader.
+         */
+        void nextBookKey(long key);
+    }
+
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final long SILENCE_LIMIT_MILLIS = 3 * ReplicationStream.HEARTBEAT_MILLIS;
+
+    private final List<String> leaders;
+    private final Target target;
+    private final ReplicationMetrics metrics;
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replication-follower");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Reads waiting for a change to be applied, by sequence
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters = new ConcurrentSkipListMap<>();
+    private volatile long epoch;
+    private volatile long appliedSequence;
+    private volatile long lastFrameMillis;
+    private volatile ClientCallStreamObserver<BookServiceProto.ReplicateRequest> call;
+    private volatile boolean stopped;
+    private boolean inSnapshot;
+    private int nextLeader;
+    private long backoff = INITIAL_BACKOFF_MILLIS;
+
+    /**
+     * @param leaders "host:port" of each server that may be the leader
+     */
+    ReplicationFollower(List<String> leaders, Target target, ReplicationMetrics metrics) {
+        this.leaders = leaders;
+        this.target = target;
+        this.metrics = metrics;
+        for (String leader : leaders) {
+            // Accepting zstd lets the leader compress the catalogue copy and change batches
+            channels.add(ManagedChannelBuilder.forTarget(leader.trim())
+                    .usePlaintext()
+                    .decompressorRegistry(Codecs.decompressors())
+                    .build());
+        }
+    }
+
+    void start() {
+        metrics.following(true);
+        scheduler.scheduleAtFixedRate(this::checkSilence, SILENCE_LIMIT_MILLIS, ReplicationStream.HEARTBEAT_MILLIS,
+                TimeUnit.MILLISECONDS);
+        connect();
+    }
+
+    /**
+     * Stops replicating and lets every waiting read go ahead.
+     * @return the epoch of the leader last followed
+     */
+    long stop() {
+        stopped = true;
+        ClientCallStreamObserver<BookServiceProto.ReplicateRequest> current = call;
+        if (current != null) {
+            current.cancel("Replication stopped", null);
+        }
+        scheduler.shutdownNow();
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        metrics.following(false);
+        for (Map.Entry<Long, CompletableFuture<Void>> waiter : waiters.entrySet()) {
+            waiter.getValue().complete(null);
+        }
+        waiters.clear();
+        return epoch;
+    }
+
+    long appliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return true if the change with this sequence has been applied, or
+     *         replication has stopped and nothing more will be
+     */
+    boolean hasApplied(long sequence) {
+        return sequence <= appliedSequence || stopped;
+    }
+
+    /**
+     * Completes once the change with this sequence has been applied, or
+     * fails after timeout.
+     */
+    CompletableFuture<Void> awaitApplied(long sequence, long timeout, TimeUnit unit) {
+        if (sequence <= appliedSequence || stopped) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> applied = waiters.computeIfAbsent(sequence, s -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.orTimeout(timeout, unit).whenComplete((ignored, error) -> waiters.remove(s, future));
+            return future;
+        });
+        // The sequence may have been applied before the waiter was registered
+        if (sequence <= appliedSequence || stopped) {
+            applied.complete(null);
+        }
+        return applied;
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        String leader = leaders.get(nextLeader);
+        BookServiceGrpc.BookServiceStub stub = BookServiceGrpc.newStub(channels.get(nextLeader));
+        BookServiceProto.ReplicateRequest request = BookServiceProto.ReplicateRequest.newBuilder()
+                .setEpoch(epoch)
+                .setAppliedSequence(appliedSequence)
+                .build();
+        lastFrameMillis = System.currentTimeMillis();
+        // A copy cut short is started again from the top or not needed any more
+        inSnapshot = false;
+        stub.replicate(request, new ClientResponseObserver<BookServiceProto.ReplicateRequest, BookServiceProto.ReplicationFrame>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<BookServiceProto.ReplicateRequest> requestStream) {
+                call = requestStream;
+            }
+
+            @Override
+            public void onNext(BookServiceProto.ReplicationFrame frame) {
+                if (stopped) {
+                    return;
+                }
+                if (backoff != INITIAL_BACKOFF_MILLIS) {
+                    System.out.println("Replicating from " + leader);
+                }
+                backoff = INITIAL_BACKOFF_MILLIS;
+                metrics.connected(true);
+                apply(frame);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                disconnected(leader, Status.fromThrowable(t));
+            }
+
+            @Override
+            public void onCompleted() {
+                disconnected(leader, Status.UNAVAILABLE.withDescription("stream ended"));
+            }
+        });
+    }
+
+    private void apply(BookServiceProto.ReplicationFrame frame) {
+        lastFrameMillis = System.currentTimeMillis();
+        if (frame.getSnapshotStart()) {
+            inSnapshot = true;
+            metrics.snapshotStarted();
+            target.snapshotStarted();
+        }
+        for (BookServiceProto.Book book : frame.getSnapshotBooksList()) {
+            target.snapshotBook(book);
+        }
+        if (inSnapshot && frame.getAppliedSequence() > 0) {
+            inSnapshot = false;
+            target.snapshotFinished(frame.getAppliedSequence());
+        }
+        for (BookServiceProto.BookChange change : frame.getChangesList()) {
+            target.change(change);
+        }
+        target.nextBookKey(frame.getNextBookKey());
+        epoch = frame.getEpoch();
+        if (frame.getAppliedSequence() > 0) {
+            appliedSequence = frame.getAppliedSequence();
+            Map<Long, CompletableFuture<Void>> ready = waiters.headMap(appliedSequence, true);
+            for (CompletableFuture<Void> waiter : ready.values()) {
+                waiter.complete(null);
+            }
+            ready.clear();
+        }
+        metrics.frameApplied(frame.getChangesCount(), frame.getAppliedSequence(), frame.getLeaderSequence());
+    }
+
+    private void disconnected(String leader, Status status) {
+        if (stopped) {
+            return;
+        }
+        metrics.connected(false);
+        if (backoff == INITIAL_BACKOFF_MILLIS) {
+            System.err.println("Lost replication from " + leader + ": " + status.getCode()
+                    + (status.getDescription() != null ? " " + status.getDescription() : ""));
+        }
+        nextLeader = (nextLeader + 1) % leaders.size();
+        long delay = backoff;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        try {
+            scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+        }
+    }
+
+    private void checkSilence() {
+        ClientCallStreamObserver<BookServiceProto.ReplicateRequest> current = call;
+        if (current != null && System.currentTimeMillis() - lastFrameMillis > SILENCE_LIMIT_MILLIS) {
+            lastFrameMillis = System.currentTimeMillis();
+            current.cancel("No frame from the leader in " + SILENCE_LIMIT_MILLIS + " ms", null);
+        }
+    }
+}
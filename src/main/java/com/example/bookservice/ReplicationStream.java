@@ -0,0 +1,191 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.metrics.ReplicationMetrics;
+import com.example.bookservice.store.BookStore;
+import com.example.bookservice.store.StoredBook;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * The leader's end of one follower's Replicate call.
+ *
+ * A follower that cannot resume first gets a copy of the catalogue: the
+ * feed's newest sequence is noted, then every book is sent as it is at the
+ * moment it is read. The copy is followed by every change after the noted
+ * sequence, so a book that changed while it was being copied is corrected by
+ * the change. A follower that falls a whole feed behind is sent a new copy.
+ *
+ * Like a watcher, the stream is a position in the {@link ChangeFeed},
+ * drained on the executor while the call can take more data. Each frame
+ * carries as many books or changes as are waiting, up to a size limit, so a
+ * busy leader sends few large frames. An idle leader sends an empty frame
+ * every second, which tells the follower the connection is alive and that
+ * it is still up to date.
+ */
+final class ReplicationStream {
+
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private static final int MAX_FRAME_ITEMS = 1024;
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replication-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ServerCallStreamObserver<BookServiceProto.ReplicationFrame> call;
+    private final ChangeFeed changes;
+    private final BookStore books;
+    private final long epoch;
+    private final LongSupplier nextBookKey;
+    private final Executor executor;
+    private final ReplicationMetrics metrics;
+    private final Runnable signal = this::signal;
+    // Set while a drain is queued on the executor, so publishers queue at most one
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledFuture<?> heartbeat;
+    // Sequence of the last change sent, or the one a copy in progress leads up to
+    private long cursor;
+    // Non-null while a copy is being sent
+    private Iterator<StoredBook> snapshot;
+    private boolean snapshotStarted;
+    private volatile boolean heartbeatDue;
+    private boolean finished;
+
+    /**
+     * @param resumeAfter the last change the follower applied, or -1 to send a copy first
+     */
+    ReplicationStream(ServerCallStreamObserver<BookServiceProto.ReplicationFrame> call, ChangeFeed changes,
+                      BookStore books, long epoch, LongSupplier nextBookKey, long resumeAfter, Executor executor,
+                      ReplicationMetrics metrics) {
+        this.call = call;
+        this.changes = changes;
+        this.books = books;
+        this.epoch = epoch;
+        this.nextBookKey = nextBookKey;
+        this.executor = executor;
+        this.metrics = metrics;
+        if (resumeAfter < 0) {
+            startSnapshot();
+        } else {
+            this.cursor = resumeAfter;
+        }
+        this.heartbeat = HEARTBEATS.scheduleAtFixedRate(() -> {
+            heartbeatDue = true;
+            signal();
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void start() {
+        call.setOnCancelHandler(this::cancel);
+        call.setOnReadyHandler(this::drain);
+        changes.addListener(signal);
+        metrics.followerConnected();
+        drain();
+    }
+
+    private void signal() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    synchronized void drain() {
+        scheduled.set(false);
+        try {
+            while (!finished && call.isReady()) {
+                BookServiceProto.ReplicationFrame frame = snapshot != null ? nextSnapshotFrame() : nextChangeFrame();
+                if (frame == null) {
+                    return;
+                }
+                call.onNext(frame);
+                metrics.frameSent();
+                heartbeatDue = false;
+            }
+        } catch (Exception e) {
+            finish();
+            call.onError(e);
+        }
+    }
+
+    synchronized void cancel() {
+        finish();
+    }
+
+    private void startSnapshot() {
+        cursor = changes.lastSequence();
+        snapshot = books.readAfter(-1);
+        snapshotStarted = false;
+    }
+
+    private BookServiceProto.ReplicationFrame nextSnapshotFrame() {
+        BookServiceProto.ReplicationFrame.Builder frame = frame()
+                .setSnapshotStart(!snapshotStarted);
+        snapshotStarted = true;
+        int bytes = 0;
+        while (snapshot.hasNext() && frame.getSnapshotBooksCount() < MAX_FRAME_ITEMS && bytes < MAX_FRAME_BYTES) {
+            StoredBook book = snapshot.next();
+            frame.addSnapshotBooks(book.book());
+            bytes += book.bytes().size();
+        }
+        if (!snapshot.hasNext()) {
+            snapshot = null;
+            frame.setAppliedSequence(cursor);
+        }
+        return frame.build();
+    }
+
+    /**
+     * @return the changes after the cursor, an empty frame if a heartbeat is
+     *         due, or null if there is nothing to send
+     */
+    private BookServiceProto.ReplicationFrame nextChangeFrame() {
+        long last = changes.lastSequence();
+        if (cursor == last) {
+            return heartbeatDue ? frame().setAppliedSequence(cursor).build() : null;
+        }
+        // A cursor ahead of the feed comes from a history this leader does not share
+        BookServiceProto.BookChange first = cursor < last ? changes.changeAt(cursor + 1) : null;
+        if (first == null) {
+            startSnapshot();
+            return nextSnapshotFrame();
+        }
+        BookServiceProto.ReplicationFrame.Builder frame = frame();
+        int bytes = 0;
+        for (BookServiceProto.BookChange change = first;
+             change != null && frame.getChangesCount() < MAX_FRAME_ITEMS && bytes < MAX_FRAME_BYTES;
+             change = cursor < last ? changes.changeAt(cursor + 1) : null) {
+            frame.addChanges(change);
+            bytes += change.getSerializedSize();
+            cursor++;
+        }
+        // A change overwritten while the frame was built is noticed on the next drain
+        return frame.setAppliedSequence(cursor).build();
+    }
+
+    private BookServiceProto.ReplicationFrame.Builder frame() {
+        return BookServiceProto.ReplicationFrame.newBuilder()
+                .setEpoch(epoch)
+                .setLeaderSequence(changes.lastSequence())
+                .setNextBookKey(nextBookKey.getAsLong());
+    }
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            changes.removeListener(signal);
+            heartbeat.cancel(false);
+            metrics.followerDisconnected();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.bookservice;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Which threads run the service methods once a call has been read off the wire.
+ */
+public enum ServerExecutor {
+    /** grpc-java's shared cached thread pool, which grows without bound. */
+    DEFAULT,
+    /** A new virtual thread per call; needs JDK 21 or later. */
+    VIRTUAL,
+    /** A ForkJoinPool in async mode with a fixed number of threads. */
+    FORK_JOIN,
+    /**
+     * The Netty event loop itself. Saves a thread hop per call, but any
+     * handler that blocks stalls every connection on that event loop.
+     */
+    DIRECT;
+
+    public static ServerExecutor parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Unknown executor '" + value + "', expected default, virtual, fork-join or direct");
+        }
+    }
+
+    /**
+     * Creates the executor the server should own and shut down, or null for
+     * {@link #DEFAULT} and {@link #DIRECT}, which need none.
+     */
+    ExecutorService create(int threads) {
+        switch (this) {
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            case FORK_JOIN:
+                return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            default:
+                return null;
+        }
+    }
+
+    // Looked up reflectively because the project targets Java 11
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need JDK 21 or later, running on "
+                    + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+}
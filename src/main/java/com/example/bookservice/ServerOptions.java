@@ -0,0 +1,264 @@
+package com.example.bookservice;
+
+import com.example.bookservice.store.StorageEngine;
+import com.example.bookservice.store.TieredBookStore;
+import com.example.bookservice.wal.Durability;
+import com.example.bookservice.wal.WriteAheadLog;
+import com.example.codec.Codecs;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup settings for BookServiceServer, parsed from --name=value arguments.
+ */
+public class ServerOptions {
+    private int port = 8980;
+    private Path dataDir;
+    private Durability durability = Durability.GROUP;
+    private long snapshotEveryRecords = WriteAheadLog.DEFAULT_SNAPSHOT_EVERY_RECORDS;
+    private int metricsPort = -1;
+    private ServerExecutor executor = ServerExecutor.DEFAULT;
+    private int executorThreads = Runtime.getRuntime().availableProcessors();
+    private int bossThreads = 1;
+    private int workerThreads = 0;
+    private int flowControlWindow = 1024 * 1024;
+    private int maxInboundMessageSize = 4 * 1024 * 1024;
+    private StorageEngine storage = StorageEngine.HEAP;
+    private Path storeDir;
+    private long cacheBytes = TieredBookStore.DEFAULT_CACHE_BYTES;
+    private int shard = -1;
+    private List<String> replicateFrom = Collections.emptyList();
+    // -1 adapts the limit, 0 turns it off
+    private int concurrencyLimit = -1;
+    // Most preferred first; empty sends every response uncompressed
+    private List<String> compression = Arrays.asList(Codecs.ZSTD, Codecs.GZIP);
+    private int compressionThreshold = 1024;
+
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got '" + arg + "'");
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "data-dir":
+                    options.dataDir = Paths.get(value);
+                    break;
+                case "durability":
+                    options.durability = Durability.parse(value);
+                    break;
+                case "snapshot-every":
+                    options.snapshotEveryRecords = Long.parseLong(value);
+                    break;
+                case "metrics-port":
+                    options.metricsPort = Integer.parseInt(value);
+                    break;
+                case "executor":
+                    options.executor = ServerExecutor.parse(value);
+                    break;
+                case "executor-threads":
+                    options.executorThreads = Integer.parseInt(value);
+                    break;
+                case "boss-threads":
+                    options.bossThreads = Integer.parseInt(value);
+                    break;
+                case "worker-threads":
+                    options.workerThreads = Integer.parseInt(value);
+                    break;
+                case "flow-control-window":
+                    options.flowControlWindow = Integer.parseInt(value);
+                    break;
+                case "max-inbound-message-size":
+                    options.maxInboundMessageSize = Integer.parseInt(value);
+                    break;
+                case "storage":
+                    options.storage = StorageEngine.parse(value);
+                    break;
+                case "store-dir":
+                    options.storeDir = Paths.get(value);
+                    break;
+                case "cache-bytes":
+                    options.cacheBytes = Long.parseLong(value);
+                    if (options.cacheBytes < 0) {
+                        throw new IllegalArgumentException("--cache-bytes must not be negative");
+                    }
+                    break;
+                case "shard":
+                    options.shard = Integer.parseInt(value);
+                    if (options.shard < 0) {
+                        throw new IllegalArgumentException("--shard must not be negative");
+                    }
+                    break;
+                case "replicate-from":
+                    options.replicateFrom = Arrays.asList(value.split(","));
+                    break;
+                case "concurrency-limit":
+                    if (value.equals("adaptive")) {
+                        options.concurrencyLimit = -1;
+                    } else if (value.equals("off")) {
+                        options.concurrencyLimit = 0;
+                    } else {
+                        options.concurrencyLimit = Integer.parseInt(value);
+                        if (options.concurrencyLimit < 1) {
+                            throw new IllegalArgumentException("--concurrency-limit must be adaptive, off or at least 1");
+                        }
+                    }
+                    break;
+                case "compression":
+                    options.compression = value.equals("off") ? Collections.emptyList() : Arrays.asList(value.split(","));
+                    for (String encoding : options.compression) {
+                        if (Codecs.compressors().lookupCompressor(encoding) == null) {
+                            throw new IllegalArgumentException("--compression must be off or a list of "
+                                    + Codecs.ZSTD + " and " + Codecs.GZIP + ", not '" + encoding + "'");
+                        }
+                    }
+                    break;
+                case "compression-threshold":
+                    options.compressionThreshold = Integer.parseInt(value);
+                    if (options.compressionThreshold < 0) {
+                        throw new IllegalArgumentException("--compression-threshold must not be negative");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (options.executor == ServerExecutor.DIRECT && options.dataDir != null
+                && options.durability == Durability.SYNC) {
+            // Every write would force the log on the event loop that received it
+            throw new IllegalArgumentException("--executor=direct cannot be used with --durability=sync");
+        }
+        return options;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Directory for the write-ahead log and snapshots, or null to keep the
+     * catalogue in memory only.
+     */
+    public Path dataDir() {
+        return dataDir;
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    public long snapshotEveryRecords() {
+        return snapshotEveryRecords;
+    }
+
+    /**
+     * Port for the Prometheus /metrics endpoint, or -1 to leave it off.
+     */
+    public int metricsPort() {
+        return metricsPort;
+    }
+
+    public ServerExecutor executor() {
+        return executor;
+    }
+
+    /**
+     * Parallelism of the {@link ServerExecutor#FORK_JOIN} pool.
+     */
+    public int executorThreads() {
+        return executorThreads;
+    }
+
+    /**
+     * Threads accepting connections.
+     */
+    public int bossThreads() {
+        return bossThreads;
+    }
+
+    /**
+     * Netty event-loop threads serving connections, or 0 for Netty's default
+     * of twice the number of cores.
+     */
+    public int workerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Initial HTTP/2 flow-control window per stream, in bytes.
+     */
+    public int flowControlWindow() {
+        return flowControlWindow;
+    }
+
+    public int maxInboundMessageSize() {
+        return maxInboundMessageSize;
+    }
+
+    public StorageEngine storage() {
+        return storage;
+    }
+
+    /**
+     * Directory for the tiered store's files. Defaults to "store" under the
+     * data directory, or to a temporary directory without one.
+     */
+    public Path storeDir() {
+        return storeDir != null || dataDir == null ? storeDir : dataDir.resolve("store");
+    }
+
+    /**
+     * Memory budget of the tiered store's cache, in bytes.
+     */
+    public long cacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * The shard of a sharded catalogue this server owns, or -1 if it holds
+     * the whole catalogue.
+     */
+    public int shard() {
+        return shard;
+    }
+
+    /**
+     * "host:port" of each server that may be the leader to follow, or empty
+     * if this server is the leader.
+     */
+    public List<String> replicateFrom() {
+        return replicateFrom;
+    }
+
+    /**
+     * How many unary calls may run at once: a fixed number, -1 for a limit
+     * that adapts to latency, or 0 for no limit.
+     */
+    public int concurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Encodings to compress responses with, most preferred first; each call
+     * uses the first one its client accepts. Empty to never compress.
+     */
+    public List<String> compression() {
+        return compression;
+    }
+
+    /**
+     * Responses smaller than this many bytes are sent uncompressed.
+     */
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.bookservice;
+
+import com.example.BookServiceProto;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Inverted index from the words of each book's title and author to the
+ * numeric keys of the books that contain them.
+ *
+ * Queries are evaluated one 65536-key chunk at a time: each query term is
+ * turned into a bitmap of the chunk, the bitmaps are ANDed or ORed, and the
+ * surviving keys are scored. A term scores its inverse document frequency,
+ * halved when it only matched as a prefix of a longer word, so rarer and
+ * exact matches rank first; ties go to the older book.
+ */
+final class TextIndex {
+
+    static final int MAX_TERMS = 16;
+    // Caps the work a short prefix such as "a*" can cause
+    static final int MAX_PREFIX_EXPANSIONS = 256;
+    private static final float PREFIX_ONLY_WEIGHT = 0.5f;
+
+    private final ConcurrentSkipListMap<String, PostingList> postings = new ConcurrentSkipListMap<>();
+
+    /**
+     * Lower-cased runs of letters and digits, without duplicates.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    static Set<String> tokens(BookServiceProto.Book book) {
+        Set<String> tokens = tokenize(book.getTitle());
+        tokens.addAll(tokenize(book.getAuthor()));
+        return tokens;
+    }
+
+    /**
+     * Parses a query of whitespace-separated words. A word ending in '*'
+     * matches as a prefix; punctuation inside a word splits it the same way
+     * the indexed text was split.
+     */
+    static List<Term> parse(String query) {
+        List<Term> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> parts = new ArrayList<>(tokenize(prefix ? word.substring(0, word.length() - 1) : word));
+            for (int i = 0; i < parts.size(); i++) {
+                terms.add(new Term(parts.get(i), prefix && i == parts.size() - 1));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Moves the key from the words of the version it replaced to the words of
+     * the current one. Like {@link BookIndexes#refresh}, callers serialize
+     * this per key; previous is null for a new book and current is null for
+     * a deleted one.
+     */
+    void update(long key, BookServiceProto.Book previous, BookServiceProto.Book current) {
+        Set<String> after = current == null ? Collections.emptySet() : tokens(current);
+        if (previous != null) {
+            for (String token : tokens(previous)) {
+                if (!after.contains(token)) {
+                    // Empty lists are kept: dropping them would race with a concurrent add
+                    PostingList list = postings.get(token);
+                    if (list != null) {
+                        list.remove(key);
+                    }
+                }
+            }
+        }
+        // Adding every word, not just new ones, keeps refreshes that ran out of order convergent
+        for (String token : after) {
+            postings.computeIfAbsent(token, k -> new PostingList()).add(key);
+        }
+    }
+
+    /**
+     * @param matchAll true to require every term, false to require any
+     * @param bookCount books in the catalogue, for weighting terms
+     * @return up to limit keys, best first
+     */
+    List<Hit> search(List<Term> terms, boolean matchAll, int limit, int bookCount) {
+        int clauseCount = terms.size();
+        List<List<PostingList>> exact = new ArrayList<>(clauseCount);
+        List<List<PostingList>> prefixOnly = new ArrayList<>(clauseCount);
+        float[] weights = new float[clauseCount];
+        int chunkCount = 0;
+        int total = Math.max(1, bookCount);
+
+        for (Term term : terms) {
+            List<PostingList> exactLists = new ArrayList<>(1);
+            List<PostingList> prefixLists = new ArrayList<>();
+            PostingList list = postings.get(term.word);
+            if (list != null) {
+                exactLists.add(list);
+            }
+            if (term.prefix) {
+                for (PostingList expansion : postings.subMap(term.word, false, term.word + Character.MAX_VALUE, false)
+                        .values()) {
+                    if (prefixLists.size() == MAX_PREFIX_EXPANSIONS) {
+                        break;
+                    }
+                    prefixLists.add(expansion);
+                }
+            }
+            long frequency = 0;
+            for (PostingList l : exactLists) {
+                frequency += l.cardinality();
+                chunkCount = Math.max(chunkCount, l.chunkCount());
+            }
+            for (PostingList l : prefixLists) {
+                frequency += l.cardinality();
+                chunkCount = Math.max(chunkCount, l.chunkCount());
+            }
+            if (matchAll && frequency == 0) {
+                return Collections.emptyList();
+            }
+            frequency = Math.min(frequency, total);
+            // BM25's idf, which stays positive for terms in most books
+            weights[exact.size()] = (float) Math.log(1 + (total - frequency + 0.5) / (frequency + 0.5));
+            exact.add(exactLists);
+            prefixOnly.add(prefixLists);
+        }
+
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, Hit.WORST_FIRST);
+        long[][] exactWords = new long[clauseCount][PostingList.WORDS_PER_CHUNK];
+        long[][] anyWords = new long[clauseCount][PostingList.WORDS_PER_CHUNK];
+        long[] matched = new long[PostingList.WORDS_PER_CHUNK];
+
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            boolean anyClause = false;
+            boolean allClauses = true;
+            for (int c = 0; c < clauseCount; c++) {
+                Arrays.fill(exactWords[c], 0);
+                Arrays.fill(anyWords[c], 0);
+                boolean found = false;
+                for (PostingList list : exact.get(c)) {
+                    found |= list.orChunkInto(chunk, exactWords[c]);
+                }
+                if (found) {
+                    System.arraycopy(exactWords[c], 0, anyWords[c], 0, PostingList.WORDS_PER_CHUNK);
+                }
+                for (PostingList list : prefixOnly.get(c)) {
+                    found |= list.orChunkInto(chunk, anyWords[c]);
+                }
+                anyClause |= found;
+                allClauses &= found;
+            }
+            if (matchAll ? !allClauses : !anyClause) {
+                continue;
+            }
+
+            for (int w = 0; w < PostingList.WORDS_PER_CHUNK; w++) {
+                long word = matchAll ? -1L : 0L;
+                for (int c = 0; c < clauseCount; c++) {
+                    word = matchAll ? word & anyWords[c][w] : word | anyWords[c][w];
+                }
+                matched[w] = word;
+            }
+
+            long base = (long) chunk << PostingList.CHUNK_BITS;
+            for (int w = 0; w < PostingList.WORDS_PER_CHUNK; w++) {
+                long word = matched[w];
+                if (word == 0) {
+                    continue;
+                }
+                if (best.size() == limit) {
+                    // Skip the 64 keys at once when none of them could beat the worst hit kept so far
+                    float bound = 0;
+                    for (int c = 0; c < clauseCount; c++) {
+                        if (exactWords[c][w] != 0) {
+                            bound += weights[c];
+                        } else if (anyWords[c][w] != 0) {
+                            bound += weights[c] * PREFIX_ONLY_WEIGHT;
+                        }
+                    }
+                    if (bound <= best.peek().score) {
+                        continue;
+                    }
+                }
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    long mask = 1L << bit;
+                    float score = 0;
+                    for (int c = 0; c < clauseCount; c++) {
+                        if ((exactWords[c][w] & mask) != 0) {
+                            score += weights[c];
+                        } else if ((anyWords[c][w] & mask) != 0) {
+                            score += weights[c] * PREFIX_ONLY_WEIGHT;
+                        }
+                    }
+                    long key = base + w * 64 + bit;
+                    if (best.size() < limit) {
+                        best.add(new Hit(key, score));
+                    } else if (score > best.peek().score) {
+                        // Keys arrive in increasing order, so an equal score never beats an older book
+                        best.poll();
+                        best.add(new Hit(key, score));
+                    }
+                }
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Hit.WORST_FIRST.reversed());
+        return hits;
+    }
+
+    /**
+     * One word of a query.
+     */
+    static final class Term {
+        final String word;
+        final boolean prefix;
+
+        Term(String word, boolean prefix) {
+            this.word = word;
+            this.prefix = prefix;
+        }
+
+        boolean matches(Set<String> tokens) {
+            if (!prefix) {
+                return tokens.contains(word);
+            }
+            for (String token : tokens) {
+                if (token.startsWith(word)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A matching book key and its score.
+     */
+    static final class Hit {
+        static final Comparator<Hit> WORST_FIRST = Comparator.<Hit>comparingDouble(h -> h.score)
+                .thenComparing(Comparator.<Hit>comparingLong(h -> h.key).reversed());
+
+        final long key;
+        final float score;
+
+        Hit(long key, float score) {
+            this.key = key;
+            this.score = score;
+        }
+    }
+}
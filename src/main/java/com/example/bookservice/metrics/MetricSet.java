@@ -0,0 +1,9 @@
+package com.example.bookservice.metrics;
+
+/**
+ * A group of metrics that can be rendered in the Prometheus text format.
+ */
+public interface MetricSet {
+
+    void appendPrometheus(StringBuilder out);
+}
@@ -0,0 +1,48 @@
+package com.example.bookservice.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serves the registered metric sets at /metrics in the Prometheus text format.
+ */
+public final class MetricsHttpServer {
+    private final HttpServer server;
+    private final List<MetricSet> metricSets;
+
+    public MetricsHttpServer(int port, List<MetricSet> metricSets) throws IOException {
+        this.metricSets = metricSets;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        StringBuilder out = new StringBuilder(4096);
+        for (MetricSet metricSet : metricSets) {
+            metricSet.appendPrometheus(out);
+        }
+        byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(body);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.bookservice.metrics;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records latency, in-flight count, message sizes and status code for every
+ * call. Only LongAdders and HdrHistogram recorders are touched per call.
+ */
+public final class MetricsInterceptor implements ServerInterceptor {
+    private final ServerMetrics metrics;
+
+    public MetricsInterceptor(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        ServerMetrics.MethodMetrics method = metrics.method(call.getMethodDescriptor().getFullMethodName());
+        CallTimer timer = new CallTimer(method);
+
+        ServerCall<ReqT, RespT> measured = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                recordSize(method.responseBytes, message);
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                timer.finish(status.getCode());
+                super.close(status, trailers);
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(measured, headers);
+        } catch (RuntimeException e) {
+            timer.finish(Status.Code.UNKNOWN);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                recordSize(method.requestBytes, message);
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                timer.finish(Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    private static void recordSize(Summary sizes, Object message) {
+        if (message instanceof MessageLite) {
+            // Protobuf caches the size, so marshalling does not compute it again
+            sizes.record(((MessageLite) message).getSerializedSize());
+        } else if (message instanceof ByteString) {
+            // A response the service encoded itself
+            sizes.record(((ByteString) message).size());
+        }
+    }
+
+    /**
+     * Counts a call exactly once, whether it is closed or cancelled first.
+     */
+    private static final class CallTimer {
+        private final ServerMetrics.MethodMetrics method;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        CallTimer(ServerMetrics.MethodMetrics method) {
+            this.method = method;
+            method.inFlight.increment();
+        }
+
+        void finish(Status.Code code) {
+            if (finished.compareAndSet(false, true)) {
+                method.inFlight.decrement();
+                method.handled[code.ordinal()].increment();
+                method.latency.record(System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
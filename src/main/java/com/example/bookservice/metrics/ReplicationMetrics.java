@@ -0,0 +1,109 @@
+package com.example.bookservice.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replication from both ends: how many followers a leader is streaming to,
+ * and on a follower, how far behind the leader it is.
+ *
+ * Lag is measured on the follower's clock. In changes, it is how many of
+ * the leader's changes the last frame said were still to come; in seconds,
+ * how long since the follower last held everything the leader had, or 0 if
+ * the latest frame brought it up to date.
+ */
+public final class ReplicationMetrics implements MetricSet {
+    private static final long STALE_AFTER_MILLIS = 3_000;
+
+    private final AtomicInteger followers = new AtomicInteger();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesApplied = new LongAdder();
+    private final LongAdder changesApplied = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private volatile boolean following;
+    private volatile boolean connected;
+    private volatile long appliedSequence;
+    private volatile long leaderSequence;
+    private volatile long lastFrameMillis;
+    private volatile long inSyncMillis;
+
+    public void followerConnected() {
+        followers.incrementAndGet();
+    }
+
+    public void followerDisconnected() {
+        followers.decrementAndGet();
+    }
+
+    public void frameSent() {
+        framesSent.increment();
+    }
+
+    public void following(boolean following) {
+        this.following = following;
+        if (!following) {
+            connected = false;
+        }
+    }
+
+    public void connected(boolean connected) {
+        this.connected = connected;
+    }
+
+    public void snapshotStarted() {
+        snapshots.increment();
+    }
+
+    /**
+     * @param appliedSequence the leader change the follower is now up to, or 0 mid-copy
+     * @param leaderSequence the leader's newest change when it sent the frame
+     */
+    public void frameApplied(int changes, long appliedSequence, long leaderSequence) {
+        long now = System.currentTimeMillis();
+        framesApplied.increment();
+        changesApplied.add(changes);
+        if (appliedSequence > 0) {
+            this.appliedSequence = appliedSequence;
+            if (appliedSequence >= leaderSequence) {
+                inSyncMillis = now;
+            }
+        }
+        this.leaderSequence = leaderSequence;
+        lastFrameMillis = now;
+    }
+
+    public long lagChanges() {
+        return Math.max(0, leaderSequence - appliedSequence);
+    }
+
+    public double lagSeconds() {
+        long now = System.currentTimeMillis();
+        boolean current = connected && now - lastFrameMillis < STALE_AFTER_MILLIS && lagChanges() == 0;
+        return current || inSyncMillis == 0 ? 0 : (now - inSyncMillis) / 1000.0;
+    }
+
+    @Override
+    public void appendPrometheus(StringBuilder out) {
+        out.append("# TYPE bookservice_replication_followers gauge\n");
+        out.append("bookservice_replication_followers ").append(followers.get()).append('\n');
+        out.append("# TYPE bookservice_replication_frames_sent_total counter\n");
+        out.append("bookservice_replication_frames_sent_total ").append(framesSent.sum()).append('\n');
+        if (!following) {
+            return;
+        }
+        out.append("# TYPE bookservice_replication_connected gauge\n");
+        out.append("bookservice_replication_connected ").append(connected ? 1 : 0).append('\n');
+        out.append("# TYPE bookservice_replication_applied_sequence gauge\n");
+        out.append("bookservice_replication_applied_sequence ").append(appliedSequence).append('\n');
+        out.append("# TYPE bookservice_replication_lag_changes gauge\n");
+        out.append("bookservice_replication_lag_changes ").append(lagChanges()).append('\n');
+        out.append("# TYPE bookservice_replication_lag_seconds gauge\n");
+        out.append("bookservice_replication_lag_seconds ").append(lagSeconds()).append('\n');
+        out.append("# TYPE bookservice_replication_frames_applied_total counter\n");
+        out.append("bookservice_replication_frames_applied_total ").append(framesApplied.sum()).append('\n');
+        out.append("# TYPE bookservice_replication_changes_applied_total counter\n");
+        out.append("bookservice_replication_changes_applied_total ").append(changesApplied.sum()).append('\n');
+        out.append("# TYPE bookservice_replication_snapshots_total counter\n");
+        out.append("bookservice_replication_snapshots_total ").append(snapshots.sum()).append('\n');
+    }
+}
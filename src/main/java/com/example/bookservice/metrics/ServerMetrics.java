@@ -0,0 +1,69 @@
+package com.example.bookservice.metrics;
+
+import io.grpc.Status;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-method RPC metrics recorded by {@link MetricsInterceptor}.
+ */
+public final class ServerMetrics implements MetricSet {
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    MethodMetrics method(String fullMethodName) {
+        return methods.computeIfAbsent(fullMethodName, MethodMetrics::new);
+    }
+
+    @Override
+    public void appendPrometheus(StringBuilder out) {
+        Map<String, MethodMetrics> sorted = new TreeMap<>(methods);
+
+        out.append("# TYPE bookservice_rpc_in_flight gauge\n");
+        for (MethodMetrics method : sorted.values()) {
+            out.append("bookservice_rpc_in_flight{").append(method.labels).append("} ")
+                    .append(method.inFlight.sum()).append('\n');
+        }
+        out.append("# TYPE bookservice_rpc_handled_total counter\n");
+        for (MethodMetrics method : sorted.values()) {
+            for (Status.Code code : Status.Code.values()) {
+                long count = method.handled[code.ordinal()].sum();
+                if (count > 0) {
+                    out.append("bookservice_rpc_handled_total{").append(method.labels)
+                            .append(",code=\"").append(code).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        out.append("# TYPE bookservice_rpc_latency_seconds summary\n");
+        for (MethodMetrics method : sorted.values()) {
+            method.latency.appendPrometheus(out, "bookservice_rpc_latency_seconds", method.labels, NANOS_PER_SECOND);
+        }
+        out.append("# TYPE bookservice_rpc_request_bytes summary\n");
+        for (MethodMetrics method : sorted.values()) {
+            method.requestBytes.appendPrometheus(out, "bookservice_rpc_request_bytes", method.labels, 1);
+        }
+        out.append("# TYPE bookservice_rpc_response_bytes summary\n");
+        for (MethodMetrics method : sorted.values()) {
+            method.responseBytes.appendPrometheus(out, "bookservice_rpc_response_bytes", method.labels, 1);
+        }
+    }
+
+    static final class MethodMetrics {
+        final String labels;
+        final LongAdder inFlight = new LongAdder();
+        final LongAdder[] handled = new LongAdder[Status.Code.values().length];
+        final Summary latency = new Summary();
+        final Summary requestBytes = new Summary();
+        final Summary responseBytes = new Summary();
+
+        MethodMetrics(String fullMethodName) {
+            this.labels = "method=\"" + fullMethodName + "\"";
+            for (int i = 0; i < handled.length; i++) {
+                handled[i] = new LongAdder();
+            }
+        }
+    }
+}
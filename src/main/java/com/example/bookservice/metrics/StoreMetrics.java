@@ -0,0 +1,81 @@
+package com.example.bookservice.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters from inside BookServiceImpl: contention on book records, ISBN
+ * and version conflicts, reads of hot books that shared a lookup, book
+ * versions kept for snapshot reads, and how long writes wait for the
+ * write-ahead log.
+ */
+public final class StoreMetrics implements MetricSet {
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final LongAdder casRetries = new LongAdder();
+    private final LongAdder isbnConflicts = new LongAdder();
+    private final LongAdder versionConflicts = new LongAdder();
+    private final LongAdder readsCoalesced = new LongAdder();
+    private final LongAdder hotKeyQueued = new LongAdder();
+    private final LongAdder hotKeyRejected = new LongAdder();
+    private final Summary logCommitLatency = new Summary();
+    private volatile IntSupplier retainedVersions = () -> 0;
+
+    /** An update lost a compare-and-set race and had to re-read the book. */
+    public void casRetry() {
+        casRetries.increment();
+    }
+
+    /** An update lost a race and took the book's lock to retry. */
+    public void hotKeyQueued() {
+        hotKeyQueued.increment();
+    }
+
+    /** A write gave up on a book another writer held. */
+    public void hotKeyRejected() {
+        hotKeyRejected.increment();
+    }
+
+    public void isbnConflict() {
+        isbnConflicts.increment();
+    }
+
+    /** An update named an expected_version the book was no longer at. */
+    public void versionConflict() {
+        versionConflicts.increment();
+    }
+
+    /** A read of a hot book was answered by another read's lookup. */
+    public void readCoalesced() {
+        readsCoalesced.increment();
+    }
+
+    /** Where to read how many replaced versions open snapshots still hold. */
+    public void retainedVersions(IntSupplier retainedVersions) {
+        this.retainedVersions = retainedVersions;
+    }
+
+    public void logCommit(long nanos) {
+        logCommitLatency.record(nanos);
+    }
+
+    @Override
+    public void appendPrometheus(StringBuilder out) {
+        out.append("# TYPE bookservice_store_cas_retries_total counter\n");
+        out.append("bookservice_store_cas_retries_total ").append(casRetries.sum()).append('\n');
+        out.append("# TYPE bookservice_store_hot_key_queued_total counter\n");
+        out.append("bookservice_store_hot_key_queued_total ").append(hotKeyQueued.sum()).append('\n');
+        out.append("# TYPE bookservice_store_hot_key_rejected_total counter\n");
+        out.append("bookservice_store_hot_key_rejected_total ").append(hotKeyRejected.sum()).append('\n');
+        out.append("# TYPE bookservice_store_isbn_conflicts_total counter\n");
+        out.append("bookservice_store_isbn_conflicts_total ").append(isbnConflicts.sum()).append('\n');
+        out.append("# TYPE bookservice_store_version_conflicts_total counter\n");
+        out.append("bookservice_store_version_conflicts_total ").append(versionConflicts.sum()).append('\n');
+        out.append("# TYPE bookservice_store_reads_coalesced_total counter\n");
+        out.append("bookservice_store_reads_coalesced_total ").append(readsCoalesced.sum()).append('\n');
+        out.append("# TYPE bookservice_store_snapshot_retained_versions gauge\n");
+        out.append("bookservice_store_snapshot_retained_versions ").append(retainedVersions.getAsInt()).append('\n');
+        out.append("# TYPE bookservice_store_log_commit_seconds summary\n");
+        logCommitLatency.appendPrometheus(out, "bookservice_store_log_commit_seconds", "", NANOS_PER_SECOND);
+    }
+}
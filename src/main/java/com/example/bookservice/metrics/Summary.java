@@ -0,0 +1,43 @@
+package com.example.bookservice.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * An HdrHistogram-backed Prometheus summary. Recording goes through a
+ * {@link Recorder}, which is wait-free for writers; quantiles cover the
+ * values recorded since the previous scrape while count and sum are
+ * cumulative.
+ */
+public final class Summary {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private Histogram interval;
+    private double sum;
+
+    public void record(long value) {
+        recorder.recordValue(Math.max(0, value));
+    }
+
+    /**
+     * @param scale divisor applied to recorded values on output, e.g. 1e9 to turn nanoseconds into seconds
+     */
+    synchronized void appendPrometheus(StringBuilder out, String name, String labels, double scale) {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        // The histogram keeps no exact sum; the mean is accurate to its 3 significant digits
+        sum += interval.getMean() * interval.getTotalCount();
+
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            double value = interval.getTotalCount() == 0 ? 0 : interval.getValueAtPercentile(quantile * 100) / scale;
+            out.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(value).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_count").append(suffix).append(' ').append(total.getTotalCount()).append('\n');
+        out.append(name).append("_sum").append(suffix).append(' ').append(sum / scale).append('\n');
+    }
+}
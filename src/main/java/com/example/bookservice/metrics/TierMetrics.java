@@ -0,0 +1,50 @@
+package com.example.bookservice.metrics;
+
+import com.example.bookservice.store.TieredBookStore;
+
+/**
+ * The tiered store's cache and files: hits and misses, how much of the
+ * memory budget is in use, and how much the disk store holds and reads.
+ */
+public final class TierMetrics implements MetricSet {
+    private final TieredBookStore store;
+
+    public TierMetrics(TieredBookStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void appendPrometheus(StringBuilder out) {
+        long hits = store.cacheHits();
+        long misses = store.cacheMisses();
+        out.append("# TYPE bookservice_tier_cache_hits_total counter\n");
+        out.append("bookservice_tier_cache_hits_total ").append(hits).append('\n');
+        out.append("# TYPE bookservice_tier_cache_misses_total counter\n");
+        out.append("bookservice_tier_cache_misses_total ").append(misses).append('\n');
+        out.append("# TYPE bookservice_tier_cache_hit_ratio gauge\n");
+        out.append("bookservice_tier_cache_hit_ratio ")
+                .append(hits + misses == 0 ? 0 : (double) hits / (hits + misses)).append('\n');
+        out.append("# TYPE bookservice_tier_cache_evictions_total counter\n");
+        out.append("bookservice_tier_cache_evictions_total ").append(store.cacheEvictions()).append('\n');
+        out.append("# TYPE bookservice_tier_cache_books gauge\n");
+        out.append("bookservice_tier_cache_books ").append(store.cachedBooks()).append('\n');
+        out.append("# TYPE bookservice_tier_cache_bytes gauge\n");
+        out.append("bookservice_tier_cache_bytes ").append(store.cacheBytes()).append('\n');
+        out.append("# TYPE bookservice_tier_cache_budget_bytes gauge\n");
+        out.append("bookservice_tier_cache_budget_bytes ").append(store.cacheBudgetBytes()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_reads_total counter\n");
+        out.append("bookservice_tier_disk_reads_total ").append(store.diskReads()).append('\n');
+        out.append("# TYPE bookservice_tier_bloom_skips_total counter\n");
+        out.append("bookservice_tier_bloom_skips_total ").append(store.bloomSkips()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_flushes_total counter\n");
+        out.append("bookservice_tier_disk_flushes_total ").append(store.diskFlushes()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_merges_total counter\n");
+        out.append("bookservice_tier_disk_merges_total ").append(store.diskMerges()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_files gauge\n");
+        out.append("bookservice_tier_disk_files ").append(store.diskFiles()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_bytes gauge\n");
+        out.append("bookservice_tier_disk_bytes ").append(store.diskBytes()).append('\n');
+        out.append("# TYPE bookservice_tier_disk_heap_bytes gauge\n");
+        out.append("bookservice_tier_disk_heap_bytes ").append(store.diskHeapBytes()).append('\n');
+    }
+}
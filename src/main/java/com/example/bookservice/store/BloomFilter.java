@@ -0,0 +1,55 @@
+package com.example.bookservice.store;
+
+/**
+ * Answers "might this table hold the key?" for one {@link DiskTable}, so a
+ * lookup skips the tables that cannot have the book without reading them.
+ * About 1% of absent keys are let through at 10 bits per key.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final int bitCount;
+
+    BloomFilter(int expectedKeys) {
+        int words = Math.max(1, (int) (((long) Math.max(expectedKeys, 1) * BITS_PER_KEY + 63) / 64));
+        this.bits = new long[words];
+        this.bitCount = words * 64;
+    }
+
+    void add(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long heapBytes() {
+        return bits.length * 8L;
+    }
+
+    // Keys are small dense numbers, so spread them over all 64 bits first (SplitMix64's finalizer)
+    private static long mix(long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
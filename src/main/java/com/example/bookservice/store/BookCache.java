@@ -0,0 +1,210 @@
+package com.example.bookservice.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Books held in memory for {@link TieredBookStore}, within a budget of
+ * encoded bytes. Lookups take no lock.
+ *
+ * Eviction is a clock weighted by frequency. Every hit raises a book's
+ * count, up to MAX_FREQUENCY. When the cache is over budget, the evictor
+ * takes books from the front of the queue they entered in: a book with a
+ * count goes to the back with its count halved, and the first with none is
+ * dropped. A book read often therefore survives several passes, while one
+ * read once, such as by a listing, goes on the first.
+ *
+ * A replaced book keeps its place in the queue. A removed one stays queued
+ * until the evictor reaches it, so once removals have left the queue more
+ * than twice as long as the cache, the dead places are swept out.
+ */
+final class BookCache {
+    private static final int MAX_FREQUENCY = 15;
+    // Rough heap cost of an entry on top of the encoded book
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    // Removals left in the queue before a sweep is worth its walk
+    private static final int MIN_SWEEP = 1024;
+
+    private final long budgetBytes;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+    // Length of clock, which the queue itself can only count by walking it
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final ReentrantLock evicting = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BookCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return the cached book, or null on a miss
+     */
+    StoredBook get(long key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (entry.frequency < MAX_FREQUENCY) {
+            // Lost increments under contention only make the count a little low
+            entry.frequency++;
+        }
+        return entry.book;
+    }
+
+    /**
+     * Caches a book just read from the store, unless one is already cached.
+     * @return the entry added, or null if there already was one
+     */
+    Entry putIfAbsent(long key, StoredBook book) {
+        Entry entry = new Entry(key, book);
+        if (entries.putIfAbsent(key, entry) != null) {
+            return null;
+        }
+        added(entry);
+        return entry;
+    }
+
+    /**
+     * Swaps in a newer version of a book, if the book is cached. A book not
+     * cached yet is left for the next read to bring in.
+     */
+    void replaceIfPresent(long key, StoredBook book) {
+        int updatedWeight = weigh(book);
+        long[] change = new long[1];
+        entries.computeIfPresent(key, (k, cached) -> {
+            change[0] = updatedWeight - cached.weight;
+            cached.book = book;
+            cached.weight = updatedWeight;
+            return cached;
+        });
+        if (weight.addAndGet(change[0]) > budgetBytes && change[0] > 0) {
+            evict();
+        }
+    }
+
+    void remove(long key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight.addAndGet(-removed.weight);
+        }
+    }
+
+    /**
+     * Removes entry if it is still the one cached for its key.
+     */
+    void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long weightBytes() {
+        return weight.get();
+    }
+
+    long budgetBytes() {
+        return budgetBytes;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void added(Entry entry) {
+        clock.add(entry);
+        if (queued.incrementAndGet() > 2 * entries.size() + MIN_SWEEP) {
+            sweep();
+        }
+        if (weight.addAndGet(entry.weight) > budgetBytes) {
+            evict();
+        }
+    }
+
+    // Drops the queue's places for entries no longer cached
+    private void sweep() {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            clock.removeIf(entry -> {
+                if (entries.get(entry.key) == entry) {
+                    return false;
+                }
+                queued.decrementAndGet();
+                return true;
+            });
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    // Entries replaced or removed since they joined the clock are skipped when it reaches them
+    private void evict() {
+        if (!evicting.tryLock()) {
+            // Another thread is already evicting and will bring the cache back under budget
+            return;
+        }
+        try {
+            while (weight.get() > budgetBytes) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    return;
+                }
+                queued.decrementAndGet();
+                if (entries.get(entry.key) != entry) {
+                    continue;
+                }
+                if (entry.frequency > 0) {
+                    entry.frequency >>= 1;
+                    clock.add(entry);
+                    queued.incrementAndGet();
+                } else if (entries.remove(entry.key, entry)) {
+                    weight.addAndGet(-entry.weight);
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private static int weigh(StoredBook book) {
+        return book.bytes().size() + ENTRY_OVERHEAD_BYTES;
+    }
+
+    static final class Entry {
+        final long key;
+        // Both change together, under the map's lock for the key
+        volatile StoredBook book;
+        volatile int weight;
+        volatile int frequency;
+
+        Entry(long key, StoredBook book) {
+            this.key = key;
+            this.book = book;
+            this.weight = weigh(book);
+        }
+    }
+}
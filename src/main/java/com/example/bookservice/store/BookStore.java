@@ -0,0 +1,76 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where BookServiceImpl keeps the current version of every book, addressed
+ * by the numeric part of the book id. Implementations are thread-safe and
+ * lock-free for readers; books handed out are immutable snapshots.
+ */
+public interface BookStore {
+
+    /**
+     * @return the current version of the book, or null if there is none
+     */
+    BookServiceProto.Book get(long key);
+
+    /**
+     * Stores a book under a key that holds no live book.
+     */
+    void insert(long key, BookServiceProto.Book book);
+
+    /**
+     * Swaps in a new version if the stored one still has the version of
+     * expected, which makes read-modify-write loops safe without locks.
+     * @return false if the book was changed or deleted in the meantime
+     */
+    boolean replace(long key, BookServiceProto.Book expected, BookServiceProto.Book updated);
+
+    /**
+     * @return the last live version, or null if there was none
+     */
+    BookServiceProto.Book remove(long key);
+
+    /**
+     * @return the current version of the book together with its wire
+     *         encoding, or null if there is none
+     */
+    StoredBook read(long key);
+
+    /**
+     * Same as {@link #read}, for callers that must not wait for a slow
+     * store. Stores that keep every book in memory complete it at once.
+     */
+    default CompletableFuture<StoredBook> readAsync(long key) {
+        return CompletableFuture.completedFuture(read(key));
+    }
+
+    /**
+     * Live books with a key greater than afterKey, in key order. Pass -1 to
+     * start from the first book. The iteration is weakly consistent: it may
+     * or may not see changes made while it runs.
+     */
+    Iterator<StoredBook> readAfter(long afterKey);
+
+    /**
+     * Same as {@link #readAfter}, for callers that only want the messages.
+     */
+    default Iterator<BookServiceProto.Book> booksAfter(long afterKey) {
+        Iterator<StoredBook> stored = readAfter(afterKey);
+        return new Iterator<BookServiceProto.Book>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public BookServiceProto.Book next() {
+                return stored.next().book();
+            }
+        };
+    }
+
+    int size();
+}
@@ -0,0 +1,553 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the catalogue in local files, log-structured: writes go to an
+ * in-memory table, which is written out as a {@link DiskTable} once it
+ * holds flushBytes of books. A lookup tries the in-memory tables and then
+ * the files, newest first, and the first that knows the key answers, so a
+ * deletion is recorded as a record of its own until the files are merged.
+ *
+ * One background thread writes the full in-memory tables and, once there
+ * are more than MAX_TABLES files, merges them all into one, dropping
+ * replaced books and deletions. Writers wait only if it falls
+ * MAX_FROZEN tables behind, and for at most FLUSH_WAIT_MILLIS.
+ *
+ * A table that cannot be written is tried MAX_FLUSH_ATTEMPTS times. After
+ * that, or if writers wait too long, the store takes no more writes: every
+ * write throws, and the action given to {@link #onWriteFailure} runs once.
+ * Books already written stay readable.
+ *
+ * The files are scratch space: whatever the directory held is removed on
+ * start, and the write-ahead log, not this store, is what survives a restart.
+ */
+final class DiskBookStore implements BookStore, Closeable {
+
+    /** Recorded in place of a book for a deleted key. */
+    static final StoredBook DELETED = new StoredBook(-1, null, null);
+
+    static final long DEFAULT_FLUSH_BYTES = 4 * 1024 * 1024;
+
+    private static final int MAX_TABLES = 8;
+    private static final int MAX_FROZEN = 4;
+    private static final int LOCK_STRIPES = 64;
+    // Rough heap cost of a skip-list entry on top of the encoded book
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final String TABLE_SUFFIX = ".table";
+    private static final long DEFAULT_RETRY_MILLIS = 1000;
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+    private static final long FLUSH_WAIT_MILLIS = 10_000;
+
+    private final Path dir;
+    private final long flushBytes;
+    private final long retryMillis;
+    private final ReentrantLock[] writeLocks = new ReentrantLock[LOCK_STRIPES];
+    // Writers hold the read side while they add to the active table; switching tables takes the write side
+    private final ReentrantReadWriteLock rotation = new ReentrantReadWriteLock();
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition flushed = stateLock.newCondition();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "book-store-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong activeBytes = new AtomicLong();
+    private final AtomicLong nextTable = new AtomicLong();
+    private final LongAdder tableReads = new LongAdder();
+    private final LongAdder bloomSkips = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private volatile Consumer<IOException> onWriteFailure = failed -> { };
+    private volatile State state = new State(new ConcurrentSkipListMap<>(), Collections.emptyList(),
+            Collections.emptyList());
+
+    DiskBookStore(Path dir, long flushBytes) throws IOException {
+        this(dir, flushBytes, DEFAULT_RETRY_MILLIS);
+    }
+
+    DiskBookStore(Path dir, long flushBytes, long retryMillis) throws IOException {
+        this.dir = dir;
+        this.flushBytes = flushBytes;
+        this.retryMillis = retryMillis;
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(TABLE_SUFFIX)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book get(long key) {
+        StoredBook stored = read(key);
+        return stored == null ? null : stored.book();
+    }
+
+    @Override
+    public StoredBook read(long key) {
+        StoredBook found = lookup(state, key);
+        return found == DELETED ? null : found;
+    }
+
+    @Override
+    public void insert(long key, BookServiceProto.Book book) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            boolean added = read(key) == null;
+            put(key, new StoredBook(key, book, null), book.getSerializedSize());
+            if (added) {
+                size.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(long key, BookServiceProto.Book expected, BookServiceProto.Book updated) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            StoredBook current = read(key);
+            if (current == null || current.book().getVersion() != expected.getVersion()) {
+                return false;
+            }
+            put(key, new StoredBook(key, updated, null), updated.getSerializedSize());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book remove(long key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            StoredBook current = read(key);
+            if (current == null) {
+                return null;
+            }
+            put(key, DELETED, 0);
+            size.decrementAndGet();
+            return current.book();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<StoredBook> readAfter(long afterKey) {
+        State current = state;
+        List<Iterator<Map.Entry<Long, StoredBook>>> sources = new ArrayList<>();
+        sources.add(current.active.tailMap(afterKey, false).entrySet().iterator());
+        for (ConcurrentSkipListMap<Long, StoredBook> frozen : current.frozen) {
+            sources.add(frozen.tailMap(afterKey, false).entrySet().iterator());
+        }
+        for (DiskTable table : current.tables) {
+            sources.add(table.recordsAfter(afterKey));
+        }
+        return new MergedBooks(sources);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Runs action once, with the cause, when the store stops taking writes.
+     */
+    void onWriteFailure(Consumer<IOException> action) {
+        this.onWriteFailure = action;
+    }
+
+    /** Blocks read from files by lookups. */
+    long tableReads() {
+        return tableReads.sum();
+    }
+
+    /** Files passed over because their bloom filter ruled the key out. */
+    long bloomSkips() {
+        return bloomSkips.sum();
+    }
+
+    long flushes() {
+        return flushes.sum();
+    }
+
+    long merges() {
+        return merges.sum();
+    }
+
+    int tableCount() {
+        return state.tables.size();
+    }
+
+    long fileBytes() {
+        long bytes = 0;
+        for (DiskTable table : state.tables) {
+            bytes += table.fileBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Heap held for the store: the tables not yet written and the files' indexes and filters.
+     */
+    long heapBytes() {
+        State current = state;
+        long bytes = activeBytes.get() + current.frozen.size() * flushBytes;
+        for (DiskTable table : current.tables) {
+            bytes += table.heapBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DiskTable table : state.tables) {
+            table.delete();
+        }
+    }
+
+    private StoredBook lookup(State current, long key) {
+        StoredBook found = current.active.get(key);
+        if (found != null) {
+            return found;
+        }
+        for (ConcurrentSkipListMap<Long, StoredBook> frozen : current.frozen) {
+            found = frozen.get(key);
+            if (found != null) {
+                return found;
+            }
+        }
+        for (DiskTable table : current.tables) {
+            if (!table.mightContain(key)) {
+                bloomSkips.increment();
+                continue;
+            }
+            tableReads.increment();
+            found = table.get(key);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    // Caller holds the key's write lock. A full table is rotated before
+    // the next write, so a write that throws has changed nothing.
+    private void put(long key, StoredBook book, int bookBytes) {
+        checkWritable();
+        if (activeBytes.get() >= flushBytes) {
+            rotate();
+        }
+        rotation.readLock().lock();
+        try {
+            state.active.put(key, book);
+            activeBytes.addAndGet(bookBytes + ENTRY_OVERHEAD_BYTES);
+        } finally {
+            rotation.readLock().unlock();
+        }
+    }
+
+    private void checkWritable() {
+        IOException failed = failure.get();
+        if (failed != null) {
+            throw new UncheckedIOException("Book store is not accepting writes", failed);
+        }
+    }
+
+    /**
+     * Freezes the active table and hands it to the flusher, waiting first
+     * if the flusher is MAX_FROZEN tables behind.
+     * @throws UncheckedIOException if the flusher has failed, or does not
+     *     catch up within FLUSH_WAIT_MILLIS
+     */
+    private void rotate() {
+        rotation.writeLock().lock();
+        try {
+            if (activeBytes.get() < flushBytes) {
+                return;
+            }
+            stateLock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(FLUSH_WAIT_MILLIS);
+                while (state.frozen.size() >= MAX_FROZEN && failure.get() == null) {
+                    if (remaining <= 0) {
+                        fail(new IOException("Book tables were not written within " + FLUSH_WAIT_MILLIS + " ms"));
+                        break;
+                    }
+                    try {
+                        remaining = flushed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UncheckedIOException(new InterruptedIOException(
+                                "Interrupted waiting for book tables to be written"));
+                    }
+                }
+                checkWritable();
+                State current = state;
+                List<ConcurrentSkipListMap<Long, StoredBook>> frozen = new ArrayList<>(current.frozen.size() + 1);
+                frozen.add(current.active);
+                frozen.addAll(current.frozen);
+                state = new State(new ConcurrentSkipListMap<>(), frozen, current.tables);
+                activeBytes.set(0);
+            } finally {
+                stateLock.unlock();
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+        flusher.execute(this::flushAll);
+    }
+
+    /**
+     * Writes out every frozen table, oldest first. A table that fails to be
+     * written stays in memory, still readable, and is tried again, up to
+     * MAX_FLUSH_ATTEMPTS times before the store stops taking writes.
+     */
+    private void flushAll() {
+        int attempts = 0;
+        while (!state.frozen.isEmpty() && failure.get() == null) {
+            try {
+                flushOldest();
+                attempts = 0;
+                if (state.tables.size() > MAX_TABLES) {
+                    mergeTables();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                IOException cause = e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause()
+                        : (IOException) e;
+                if (++attempts >= MAX_FLUSH_ATTEMPTS) {
+                    fail(cause);
+                    return;
+                }
+                System.err.println("Failed to write book table, retrying: " + cause.getMessage());
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Stops the store taking writes, and wakes writers waiting for the flusher so they see why
+    private void fail(IOException cause) {
+        if (!failure.compareAndSet(null, cause)) {
+            return;
+        }
+        System.err.println("Failed to write book tables, refusing further writes: " + cause.getMessage());
+        stateLock.lock();
+        try {
+            flushed.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+        onWriteFailure.accept(cause);
+    }
+
+    private void flushOldest() throws IOException {
+        List<ConcurrentSkipListMap<Long, StoredBook>> pending = state.frozen;
+        ConcurrentSkipListMap<Long, StoredBook> oldest = pending.get(pending.size() - 1);
+        DiskTable table = DiskTable.write(newTableFile(), oldest.entrySet().iterator(), oldest.size());
+        flushes.increment();
+        stateLock.lock();
+        try {
+            State current = state;
+            List<ConcurrentSkipListMap<Long, StoredBook>> frozen = new ArrayList<>(current.frozen);
+            frozen.remove(frozen.size() - 1);
+            List<DiskTable> tables = new ArrayList<>(current.tables.size() + 1);
+            tables.add(table);
+            tables.addAll(current.tables);
+            state = new State(current.active, frozen, tables);
+            flushed.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Merges every file into one. Only the flusher changes the list of
+     * files, so the list it merged is still the tail of the current one.
+     */
+    private void mergeTables() throws IOException {
+        List<DiskTable> merging = state.tables;
+        List<Iterator<Map.Entry<Long, StoredBook>>> sources = new ArrayList<>(merging.size());
+        int records = 0;
+        for (DiskTable table : merging) {
+            sources.add(table.recordsAfter(-1));
+            records += table.records();
+        }
+        // Nothing older remains for a deletion to hide, so deletions are dropped
+        Iterator<StoredBook> live = new MergedBooks(sources);
+        Iterator<Map.Entry<Long, StoredBook>> entries = new Iterator<Map.Entry<Long, StoredBook>>() {
+            @Override
+            public boolean hasNext() {
+                return live.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Long, StoredBook> next() {
+                StoredBook book = live.next();
+                return new AbstractMap.SimpleImmutableEntry<>(book.key(), book);
+            }
+        };
+        DiskTable merged = DiskTable.write(newTableFile(), entries, records);
+        stateLock.lock();
+        try {
+            State current = state;
+            List<DiskTable> tables = new ArrayList<>(current.tables.subList(0,
+                    current.tables.size() - merging.size()));
+            tables.add(merged);
+            state = new State(current.active, current.frozen, tables);
+        } finally {
+            stateLock.unlock();
+        }
+        merges.increment();
+        for (DiskTable table : merging) {
+            table.delete();
+        }
+    }
+
+    private Path newTableFile() {
+        return dir.resolve(String.format("%016d%s", nextTable.getAndIncrement(), TABLE_SUFFIX));
+    }
+
+    private ReentrantLock lockFor(long key) {
+        return writeLocks[(int) (key & (LOCK_STRIPES - 1))];
+    }
+
+    /**
+     * Where every version lives, newest first: the table being written to,
+     * full tables waiting for the flusher, then files. Replaced whole on
+     * every change, so a reader that takes it once sees a consistent set.
+     */
+    private static final class State {
+        final ConcurrentSkipListMap<Long, StoredBook> active;
+        final List<ConcurrentSkipListMap<Long, StoredBook>> frozen;
+        final List<DiskTable> tables;
+
+        State(ConcurrentSkipListMap<Long, StoredBook> active,
+              List<ConcurrentSkipListMap<Long, StoredBook>> frozen,
+              List<DiskTable> tables) {
+            this.active = active;
+            this.frozen = frozen;
+            this.tables = tables;
+        }
+    }
+
+    /**
+     * Merges sources, newest first, into the live books in key order: where
+     * several hold a key the newest wins, and a deletion hides the key.
+     */
+    private static final class MergedBooks implements Iterator<StoredBook> {
+        private final List<Iterator<Map.Entry<Long, StoredBook>>> sources;
+        // Each source's next record, ordered by key and then by age
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.comparingLong((Head head) -> head.record.getKey()).thenComparingInt(head -> head.source));
+        private StoredBook next;
+
+        MergedBooks(List<Iterator<Map.Entry<Long, StoredBook>>> sources) {
+            this.sources = sources;
+            for (int i = 0; i < sources.size(); i++) {
+                pull(i);
+            }
+            next = advance();
+        }
+
+        private StoredBook advance() {
+            while (!heads.isEmpty()) {
+                Head newest = heads.poll();
+                long key = newest.record.getKey();
+                pull(newest.source);
+                while (!heads.isEmpty() && heads.peek().record.getKey() == key) {
+                    pull(heads.poll().source);
+                }
+                StoredBook book = newest.record.getValue();
+                if (book != DELETED) {
+                    return book;
+                }
+            }
+            return null;
+        }
+
+        private void pull(int source) {
+            Iterator<Map.Entry<Long, StoredBook>> records = sources.get(source);
+            if (records.hasNext()) {
+                heads.add(new Head(records.next(), source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public StoredBook next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            StoredBook book = next;
+            next = advance();
+            return book;
+        }
+    }
+
+    private static final class Head {
+        final Map.Entry<Long, StoredBook> record;
+        final int source;
+
+        Head(Map.Entry<Long, StoredBook> record, int source) {
+            this.record = record;
+            this.source = source;
+        }
+    }
+}
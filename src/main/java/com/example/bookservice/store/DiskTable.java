@@ -0,0 +1,253 @@
+package com.example.bookservice.store;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, key-ordered file of book records written by
+ * {@link DiskBookStore}: [long key][int length, -1 for a deletion][Book bytes].
+ *
+ * Only a sparse index, the key and offset of every INDEX_INTERVAL-th
+ * record, and a {@link BloomFilter} stay on the heap. A lookup checks the
+ * filter, finds the block of records that could hold the key in the index
+ * and reads just that block.
+ *
+ * A table that has been merged into another is deleted from disk but keeps
+ * its open channel, so a listing still walking it is not cut short; the
+ * channel is closed once the table is no longer reachable.
+ */
+final class DiskTable {
+    private static final int INDEX_INTERVAL = 16;
+    private static final int HEADER_BYTES = 8 + 4;
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long length;
+    private final long[] indexKeys;
+    private final long[] indexOffsets;
+    private final BloomFilter bloom;
+    private final int records;
+
+    private DiskTable(Path file, long length, long[] indexKeys, long[] indexOffsets, BloomFilter bloom, int records)
+            throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.length = length;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.bloom = bloom;
+        this.records = records;
+    }
+
+    /**
+     * Writes records, which must be in ascending key order, to a new file.
+     * A value of {@link DiskBookStore#DELETED} records a deletion.
+     */
+    static DiskTable write(Path file, Iterator<Map.Entry<Long, StoredBook>> sorted, int expected) throws IOException {
+        BloomFilter bloom = new BloomFilter(expected);
+        int indexSize = expected / INDEX_INTERVAL + 1;
+        long[] indexKeys = new long[indexSize];
+        long[] indexOffsets = new long[indexSize];
+        int count = 0;
+        int indexed = 0;
+        long offset = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), CHUNK_BYTES))) {
+            while (sorted.hasNext()) {
+                Map.Entry<Long, StoredBook> record = sorted.next();
+                long key = record.getKey();
+                if (count % INDEX_INTERVAL == 0) {
+                    if (indexed == indexKeys.length) {
+                        indexKeys = Arrays.copyOf(indexKeys, indexed * 2);
+                        indexOffsets = Arrays.copyOf(indexOffsets, indexed * 2);
+                    }
+                    indexKeys[indexed] = key;
+                    indexOffsets[indexed] = offset;
+                    indexed++;
+                }
+                bloom.add(key);
+                out.writeLong(key);
+                if (record.getValue() == DiskBookStore.DELETED) {
+                    out.writeInt(-1);
+                    offset += HEADER_BYTES;
+                } else {
+                    ByteString bytes = record.getValue().bytes();
+                    out.writeInt(bytes.size());
+                    bytes.writeTo(out);
+                    offset += HEADER_BYTES + bytes.size();
+                }
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new DiskTable(file, offset, Arrays.copyOf(indexKeys, indexed), Arrays.copyOf(indexOffsets, indexed),
+                bloom, count);
+    }
+
+    /**
+     * @return false if the table certainly has no record of the key
+     */
+    boolean mightContain(long key) {
+        return bloom.mightContain(key);
+    }
+
+    /**
+     * Reads the block that would hold the key. Check {@link #mightContain} first.
+     * @return the book, {@link DiskBookStore#DELETED} if the table records
+     *     its deletion, or null if the table knows nothing of the key
+     */
+    StoredBook get(long key) {
+        int block = floorIndex(key);
+        if (block < 0) {
+            return null;
+        }
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : length;
+        ByteBuffer buffer = read(start, (int) (end - start));
+        while (buffer.hasRemaining()) {
+            long recordKey = buffer.getLong();
+            int size = buffer.getInt();
+            if (recordKey == key) {
+                return size < 0 ? DiskBookStore.DELETED : stored(key, buffer, size);
+            }
+            if (recordKey > key) {
+                return null;
+            }
+            buffer.position(buffer.position() + Math.max(size, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Every record with a key greater than afterKey, deletions included, in key order.
+     */
+    Iterator<Map.Entry<Long, StoredBook>> recordsAfter(long afterKey) {
+        int block = floorIndex(afterKey);
+        return new Cursor(block < 0 ? 0 : indexOffsets[block], afterKey);
+    }
+
+    int records() {
+        return records;
+    }
+
+    long fileBytes() {
+        return length;
+    }
+
+    long heapBytes() {
+        return indexKeys.length * 16L + bloom.heapBytes();
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Deletes the file. The channel stays open for readers already using the table.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Last index entry with a key not above key, or -1 if key is before the first
+    private int floorIndex(long key) {
+        int found = Arrays.binarySearch(indexKeys, key);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private ByteBuffer read(long position, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static StoredBook stored(long key, ByteBuffer buffer, int size) {
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return new StoredBook(key, null, UnsafeByteOperations.unsafeWrap(bytes));
+    }
+
+    /**
+     * Reads the file forwards a chunk at a time.
+     */
+    private final class Cursor implements Iterator<Map.Entry<Long, StoredBook>> {
+        private long position;
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+        private long chunkStart;
+        private Map.Entry<Long, StoredBook> next;
+
+        Cursor(long position, long afterKey) {
+            this.position = position;
+            do {
+                next = advance();
+            } while (next != null && next.getKey() <= afterKey);
+        }
+
+        private Map.Entry<Long, StoredBook> advance() {
+            if (position >= length) {
+                return null;
+            }
+            ByteBuffer header = window(HEADER_BYTES);
+            long key = header.getLong();
+            int size = header.getInt();
+            position += HEADER_BYTES;
+            if (size < 0) {
+                return new AbstractMap.SimpleImmutableEntry<>(key, DiskBookStore.DELETED);
+            }
+            StoredBook book = stored(key, window(size), size);
+            position += size;
+            return new AbstractMap.SimpleImmutableEntry<>(key, book);
+        }
+
+        // The chunk, positioned at the current record, holding at least size bytes of it
+        private ByteBuffer window(int size) {
+            if (position < chunkStart || position + size > chunkStart + chunk.limit()) {
+                chunkStart = position;
+                chunk = read(position, (int) Math.min(Math.max(CHUNK_BYTES, size), length - position));
+            }
+            chunk.position((int) (position - chunkStart));
+            return chunk;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Long, StoredBook> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Long, StoredBook> record = next;
+            next = advance();
+            return record;
+        }
+    }
+}
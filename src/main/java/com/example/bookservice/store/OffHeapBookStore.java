@@ -0,0 +1,486 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps serialized books in direct (off-heap) memory, so the heap only
+ * holds one 8-byte slot per key and the garbage collector never sees the
+ * books themselves.
+ *
+ * Records are appended to fixed-size segments of direct memory:
+ * [int payload length][long key][long version][Book bytes]. The slot for a
+ * key holds a pointer to its current record, (segment id + 1) in the high
+ * 32 bits and the offset in the low 32, or 0 when the key holds no book.
+ * Slots come in pages of 65536 keys, so keys up to 2^46 fit.
+ * Every write appends a new record and swings the slot with a CAS, so
+ * readers never lock and never see a half-written record.
+ *
+ * Replaced and deleted records stay in their segment until a segment is
+ * mostly dead; then its live records are copied to the active segment and
+ * the segment is dropped. A reader still holding it keeps it reachable, and
+ * segment ids are never reused, so a stale pointer can only miss, never read
+ * another book. Reads pay for a protobuf parse that the heap store avoids,
+ * unless the caller only needs the encoded bytes.
+ */
+public final class OffHeapBookStore implements BookStore {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 4 + 8 + 8;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    // Keeps the page table within an int index even after it doubles
+    private static final long MAX_KEY = (1L << 46) - 1;
+    // Segments whose live bytes fall below this share of their size are compacted
+    private static final double COMPACT_BELOW_LIVE_RATIO = 0.25;
+
+    private final int segmentBytes;
+    private volatile AtomicReferenceArray<AtomicLongArray> slotPages = new AtomicReferenceArray<>(0);
+    private volatile AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<>(0);
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong highestKey = new AtomicLong(-1);
+    private final AtomicLong offHeapBytes = new AtomicLong();
+    private final ReentrantLock compaction = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Segment> compactionQueue = new ConcurrentLinkedQueue<>();
+    // Guarded by this
+    private Segment active;
+    private int nextSegmentId;
+
+    public OffHeapBookStore() {
+        this(DEFAULT_SEGMENT_BYTES);
+    }
+
+    public OffHeapBookStore(int segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    @Override
+    public BookServiceProto.Book get(long key) {
+        AtomicLongArray page = page(key, false);
+        if (page == null) {
+            return null;
+        }
+        int slot = (int) (key & (PAGE_SIZE - 1));
+        while (true) {
+            long pointer = page.get(slot);
+            if (pointer == 0) {
+                return null;
+            }
+            Segment segment = segment(pointer);
+            if (segment != null) {
+                return segment.read(offset(pointer));
+            }
+            // Compacted away under us; the slot already points at the copy
+            checkMoved(page, slot, pointer);
+        }
+    }
+
+    @Override
+    public StoredBook read(long key) {
+        AtomicLongArray page = page(key, false);
+        if (page == null) {
+            return null;
+        }
+        int slot = (int) (key & (PAGE_SIZE - 1));
+        while (true) {
+            long pointer = page.get(slot);
+            if (pointer == 0) {
+                return null;
+            }
+            Segment segment = segment(pointer);
+            if (segment != null) {
+                // Copied out rather than parsed; the message is only built if a caller asks for it
+                return new StoredBook(key, null, UnsafeByteOperations.unsafeWrap(segment.payload(offset(pointer))));
+            }
+            checkMoved(page, slot, pointer);
+        }
+    }
+
+    @Override
+    public void insert(long key, BookServiceProto.Book book) {
+        AtomicLongArray page = page(key, true);
+        int slot = (int) (key & (PAGE_SIZE - 1));
+        long pointer = append(key, book.getVersion(), book.toByteArray());
+        long previous = page.getAndSet(slot, pointer);
+        appended(pointer);
+        if (previous == 0) {
+            size.incrementAndGet();
+        } else {
+            release(previous);
+        }
+        highestKey.accumulateAndGet(key, Math::max);
+    }
+
+    @Override
+    public boolean replace(long key, BookServiceProto.Book expected, BookServiceProto.Book updated) {
+        AtomicLongArray page = page(key, false);
+        if (page == null) {
+            return false;
+        }
+        int slot = (int) (key & (PAGE_SIZE - 1));
+        byte[] bytes = null;
+        while (true) {
+            long pointer = page.get(slot);
+            if (pointer == 0) {
+                return false;
+            }
+            Segment segment = segment(pointer);
+            if (segment == null) {
+                checkMoved(page, slot, pointer);
+                continue;
+            }
+            if (segment.version(offset(pointer)) != expected.getVersion()) {
+                return false;
+            }
+            if (bytes == null) {
+                bytes = updated.toByteArray();
+            }
+            long replacement = append(key, updated.getVersion(), bytes);
+            if (page.compareAndSet(slot, pointer, replacement)) {
+                appended(replacement);
+                release(pointer);
+                return true;
+            }
+            // Lost to another writer or to compaction moving the record; check the version again
+            release(replacement);
+            appended(replacement);
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book remove(long key) {
+        AtomicLongArray page = page(key, false);
+        if (page == null) {
+            return null;
+        }
+        int slot = (int) (key & (PAGE_SIZE - 1));
+        while (true) {
+            long pointer = page.get(slot);
+            if (pointer == 0) {
+                return null;
+            }
+            Segment segment = segment(pointer);
+            if (segment == null) {
+                checkMoved(page, slot, pointer);
+                continue;
+            }
+            BookServiceProto.Book book = segment.read(offset(pointer));
+            if (page.compareAndSet(slot, pointer, 0)) {
+                size.decrementAndGet();
+                release(pointer);
+                return book;
+            }
+        }
+    }
+
+    @Override
+    public Iterator<StoredBook> readAfter(long afterKey) {
+        return new Iterator<StoredBook>() {
+            private long key = afterKey;
+            private StoredBook next = advance();
+
+            private StoredBook advance() {
+                long last = highestKey.get();
+                while (key < last) {
+                    key++;
+                    AtomicLongArray page = page(key, false);
+                    if (page == null) {
+                        // Skip the rest of a page that was never allocated
+                        key |= PAGE_SIZE - 1;
+                        continue;
+                    }
+                    StoredBook book = read(key);
+                    if (book != null) {
+                        return book;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public StoredBook next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                StoredBook book = next;
+                next = advance();
+                return book;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Direct memory held by segments that have not been dropped, live
+     * records and garbage alike.
+     */
+    public long offHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    private AtomicLongArray page(long key, boolean create) {
+        if (key < 0 || key > MAX_KEY) {
+            if (create) {
+                throw new IllegalArgumentException("Key " + key + " is out of range");
+            }
+            return null;
+        }
+        int index = (int) (key >>> PAGE_BITS);
+        AtomicReferenceArray<AtomicLongArray> pages = slotPages;
+        AtomicLongArray page = index < pages.length() ? pages.get(index) : null;
+        if (page != null || !create) {
+            return page;
+        }
+        synchronized (this) {
+            pages = slotPages;
+            if (index >= pages.length()) {
+                AtomicReferenceArray<AtomicLongArray> grown =
+                        new AtomicReferenceArray<>(Math.max(index + 1, pages.length() * 2));
+                for (int i = 0; i < pages.length(); i++) {
+                    grown.set(i, pages.get(i));
+                }
+                slotPages = grown;
+                pages = grown;
+            }
+            page = pages.get(index);
+            if (page == null) {
+                page = new AtomicLongArray(PAGE_SIZE);
+                pages.set(index, page);
+            }
+            return page;
+        }
+    }
+
+    private Segment segment(long pointer) {
+        int id = (int) (pointer >>> 32) - 1;
+        AtomicReferenceArray<Segment> current = segments;
+        return id < current.length() ? current.get(id) : null;
+    }
+
+    private static int offset(long pointer) {
+        return (int) pointer;
+    }
+
+    /**
+     * Copies a record into the active segment, starting a new one when it
+     * does not fit. Only the space is reserved under the lock. The caller
+     * must pass the pointer to {@link #appended} once it has put it in its
+     * slot or released it.
+     */
+    private long append(long key, long version, byte[] payload) {
+        int length = HEADER_BYTES + payload.length;
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (active == null || active.capacity() - active.end < length) {
+                roll(length);
+            }
+            segment = active;
+            offset = segment.end;
+            segment.end += length;
+            segment.liveBytes.addAndGet(length);
+            segment.writers.incrementAndGet();
+        }
+        segment.write(offset, key, version, payload);
+        return ((long) (segment.id + 1) << 32) | offset;
+    }
+
+    /**
+     * Ends the append that returned pointer. Until then compaction leaves its
+     * segment alone: compaction only copies records a slot points at, and the
+     * slot may not point at this one yet.
+     */
+    private void appended(long pointer) {
+        Segment segment = segment(pointer);
+        if (segment.writers.decrementAndGet() == 0 && shouldCompact(segment)) {
+            // Its compaction was put off while this append was in flight
+            compact(segment);
+        }
+    }
+
+    /**
+     * A reader found no segment for pointer, which is only right if
+     * compaction has since moved the slot on. Otherwise retrying would spin.
+     */
+    private static void checkMoved(AtomicLongArray page, int slot, long pointer) {
+        if (page.get(slot) == pointer) {
+            throw new IllegalStateException("Slot points into a dropped segment: " + Long.toHexString(pointer));
+        }
+    }
+
+    // Caller holds the lock on this
+    private void roll(int minimumBytes) {
+        if (active != null) {
+            active.sealed = true;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(segmentBytes, minimumBytes));
+        active = new Segment(nextSegmentId++, buffer);
+        AtomicReferenceArray<Segment> current = segments;
+        if (active.id >= current.length()) {
+            AtomicReferenceArray<Segment> grown = new AtomicReferenceArray<>(Math.max(16, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            segments = grown;
+            current = grown;
+        }
+        current.set(active.id, active);
+        offHeapBytes.addAndGet(buffer.capacity());
+    }
+
+    /**
+     * Marks the record a pointer refers to as garbage, and compacts its
+     * segment once little of it is still live.
+     */
+    private void release(long pointer) {
+        Segment segment = segment(pointer);
+        if (segment == null) {
+            return;
+        }
+        segment.liveBytes.addAndGet(-segment.recordLength(offset(pointer)));
+        if (shouldCompact(segment)) {
+            compact(segment);
+        }
+    }
+
+    private static boolean shouldCompact(Segment segment) {
+        return segment.sealed && segment.liveBytes.get() < segment.capacity() * COMPACT_BELOW_LIVE_RATIO;
+    }
+
+    /**
+     * Queues the segment for compaction and, unless another thread is
+     * already compacting, compacts everything queued. One compaction runs at
+     * a time; whoever holds it also takes the segments queued meanwhile, so
+     * none is left behind with no release left to retry it.
+     */
+    private void compact(Segment segment) {
+        if (segment.queued.compareAndSet(false, true)) {
+            compactionQueue.add(segment);
+        }
+        if (compaction.isHeldByCurrentThread()) {
+            return;
+        }
+        // Checked again after unlocking, for segments queued just as the last holder finished
+        while (!compactionQueue.isEmpty() && compaction.tryLock()) {
+            try {
+                Segment next;
+                while ((next = compactionQueue.poll()) != null) {
+                    next.queued.set(false);
+                    compactNow(next);
+                }
+            } finally {
+                compaction.unlock();
+            }
+        }
+    }
+
+    // Caller holds compaction
+    private void compactNow(Segment segment) {
+        // A record appended just before the segment was sealed may not be in
+        // its slot yet; the append queues the segment again when it is
+        if (segments.get(segment.id) != segment || segment.writers.get() > 0) {
+            return;
+        }
+        int offset = 0;
+        while (offset < segment.end) {
+            int length = segment.recordLength(offset);
+            long key = segment.key(offset);
+            long pointer = ((long) (segment.id + 1) << 32) | offset;
+            AtomicLongArray page = page(key, false);
+            int slot = (int) (key & (PAGE_SIZE - 1));
+            if (page != null && page.get(slot) == pointer) {
+                long moved = append(key, segment.version(offset), segment.payload(offset));
+                if (!page.compareAndSet(slot, pointer, moved)) {
+                    release(moved);
+                }
+                appended(moved);
+            }
+            offset += length;
+        }
+        segments.set(segment.id, null);
+        offHeapBytes.addAndGet(-segment.capacity());
+    }
+
+    /**
+     * A block of direct memory records are appended to.
+     */
+    private static final class Segment {
+        final int id;
+        final ByteBuffer buffer;
+        final AtomicInteger liveBytes = new AtomicInteger();
+        // Appends whose record is not yet in its slot, or released
+        final AtomicInteger writers = new AtomicInteger();
+        // In compactionQueue
+        final AtomicBoolean queued = new AtomicBoolean();
+        // Guarded by the store's lock until sealed
+        int end;
+        volatile boolean sealed;
+
+        Segment(int id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        void write(int offset, long key, long version, byte[] payload) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.putInt(payload.length).putLong(key).putLong(version).put(payload);
+        }
+
+        int recordLength(int offset) {
+            return HEADER_BYTES + buffer.getInt(offset);
+        }
+
+        long key(int offset) {
+            return buffer.getLong(offset + 4);
+        }
+
+        long version(int offset) {
+            return buffer.getLong(offset + 12);
+        }
+
+        byte[] payload(int offset) {
+            byte[] payload = new byte[buffer.getInt(offset)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_BYTES);
+            view.get(payload);
+            return payload;
+        }
+
+        BookServiceProto.Book read(int offset) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_BYTES);
+            view.limit(offset + HEADER_BYTES + buffer.getInt(offset));
+            try {
+                return BookServiceProto.Book.parseFrom(view);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Corrupt record at offset " + offset + " of segment " + id, e);
+            }
+        }
+    }
+}
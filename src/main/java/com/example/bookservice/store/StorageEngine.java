@@ -0,0 +1,52 @@
+package com.example.bookservice.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Which {@link BookStore} holds the catalogue.
+ */
+public enum StorageEngine {
+    /** Protobuf objects on the heap: fastest reads, a few hundred bytes of heap per book. */
+    HEAP,
+    /** Serialized books in direct memory: about 8 bytes of heap per book, a parse per read. */
+    OFF_HEAP,
+    /** Books in local files, the most read cached on the heap: catalogues larger than memory. */
+    TIERED;
+
+    public static StorageEngine parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown storage '" + value + "', expected heap, off-heap or tiered");
+        }
+    }
+
+    /**
+     * A tiered store gets a temporary directory and the default cache.
+     */
+    public BookStore create() {
+        return create(null, TieredBookStore.DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param dir where a tiered store keeps its files, or null for a temporary directory
+     * @param cacheBytes memory budget of a tiered store's cache
+     */
+    public BookStore create(Path dir, long cacheBytes) {
+        switch (this) {
+            case OFF_HEAP:
+                return new OffHeapBookStore();
+            case TIERED:
+                try {
+                    return TieredBookStore.open(dir, cacheBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open the book store in " + dir, e);
+                }
+            default:
+                return new HeapBookStore();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * One stored version of a book, as a message and as its protobuf wire
+ * encoding. A store fills in the form it keeps; the other is derived on
+ * first use and then reused, so serving the same version again costs
+ * neither an encode nor a parse.
+ */
+public final class StoredBook {
+    private final long key;
+    private volatile BookServiceProto.Book book;
+    private volatile ByteString bytes;
+
+    StoredBook(long key, BookServiceProto.Book book, ByteString bytes) {
+        this.key = key;
+        this.book = book;
+        this.bytes = bytes;
+    }
+
+    public long key() {
+        return key;
+    }
+
+    public BookServiceProto.Book book() {
+        BookServiceProto.Book parsed = book;
+        if (parsed == null) {
+            try {
+                parsed = BookServiceProto.Book.parseFrom(bytes);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Corrupt record for key " + key, e);
+            }
+            book = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * The book as a serialized Book message, ready to be embedded in a
+     * response without encoding it again.
+     */
+    public ByteString bytes() {
+        ByteString encoded = bytes;
+        if (encoded == null) {
+            encoded = book.toByteString();
+            bytes = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds the catalogue in a {@link DiskBookStore} under a directory, with
+ * the books read most kept in a {@link BookCache} within a memory budget,
+ * so the catalogue can outgrow the heap while popular books are still
+ * served from memory.
+ *
+ * Reads try the cache and on a miss read the disk store and cache the
+ * book. {@link #readAsync} does the disk read on a loader thread instead,
+ * so a gRPC thread never waits for the disk. Listings read the disk store
+ * directly and leave the cache alone.
+ *
+ * Writes go to the disk store first and then update a cached copy, one
+ * writer per key at a time. A miss that read the disk just before a write
+ * could cache the book the write replaced, so every write also bumps a
+ * counter for its stripe of keys, and a miss drops what it cached if the
+ * counter moved while it was reading.
+ */
+public final class TieredBookStore implements BookStore, Closeable {
+
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static final int STRIPES = 64;
+    private static final int LOADER_THREADS = 4;
+
+    private final Path dir;
+    private final boolean temporary;
+    private final DiskBookStore disk;
+    private final BookCache cache;
+    private final ReentrantLock[] writeLocks = new ReentrantLock[STRIPES];
+    private final AtomicLongArray writeStamps = new AtomicLongArray(STRIPES);
+    private final ExecutorService loader;
+
+    private TieredBookStore(Path dir, boolean temporary, long cacheBytes) throws IOException {
+        this.dir = dir;
+        this.temporary = temporary;
+        this.disk = new DiskBookStore(dir, DiskBookStore.DEFAULT_FLUSH_BYTES);
+        this.cache = new BookCache(cacheBytes);
+        for (int i = 0; i < STRIPES; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.loader = Executors.newFixedThreadPool(LOADER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "book-store-load-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param dir where to keep the store's files, or null for a temporary
+     *     directory that is removed on close. Files already there are removed.
+     * @param cacheBytes memory budget for cached books, counted in encoded bytes plus a per-book overhead
+     */
+    public static TieredBookStore open(Path dir, long cacheBytes) throws IOException {
+        if (dir == null) {
+            return new TieredBookStore(Files.createTempDirectory("book-store"), true, cacheBytes);
+        }
+        return new TieredBookStore(dir, false, cacheBytes);
+    }
+
+    @Override
+    public BookServiceProto.Book get(long key) {
+        StoredBook stored = read(key);
+        return stored == null ? null : stored.book();
+    }
+
+    @Override
+    public StoredBook read(long key) {
+        StoredBook cached = cache.get(key);
+        return cached != null ? cached : load(key);
+    }
+
+    /**
+     * Completes at once on a cache hit; on a miss, reads the disk on a loader thread.
+     */
+    @Override
+    public CompletableFuture<StoredBook> readAsync(long key) {
+        StoredBook cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return CompletableFuture.supplyAsync(() -> load(key), loader);
+    }
+
+    @Override
+    public void insert(long key, BookServiceProto.Book book) {
+        ReentrantLock lock = writeLocks[stripe(key)];
+        lock.lock();
+        try {
+            disk.insert(key, book);
+            writeStamps.incrementAndGet(stripe(key));
+            cache.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(long key, BookServiceProto.Book expected, BookServiceProto.Book updated) {
+        ReentrantLock lock = writeLocks[stripe(key)];
+        lock.lock();
+        try {
+            if (!disk.replace(key, expected, updated)) {
+                return false;
+            }
+            writeStamps.incrementAndGet(stripe(key));
+            cache.replaceIfPresent(key, new StoredBook(key, updated, null));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book remove(long key) {
+        ReentrantLock lock = writeLocks[stripe(key)];
+        lock.lock();
+        try {
+            BookServiceProto.Book removed = disk.remove(key);
+            if (removed != null) {
+                writeStamps.incrementAndGet(stripe(key));
+                cache.remove(key);
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<StoredBook> readAfter(long afterKey) {
+        return disk.readAfter(afterKey);
+    }
+
+    @Override
+    public int size() {
+        return disk.size();
+    }
+
+    /**
+     * Runs action once, with the cause, if the disk store stops taking
+     * writes because it cannot write its files. Every write throws from then on.
+     */
+    public void onWriteFailure(Consumer<IOException> action) {
+        disk.onWriteFailure(action);
+    }
+
+    public long cacheHits() {
+        return cache.hits();
+    }
+
+    public long cacheMisses() {
+        return cache.misses();
+    }
+
+    public long cacheEvictions() {
+        return cache.evictions();
+    }
+
+    public int cachedBooks() {
+        return cache.size();
+    }
+
+    public long cacheBytes() {
+        return cache.weightBytes();
+    }
+
+    public long cacheBudgetBytes() {
+        return cache.budgetBytes();
+    }
+
+    /** Blocks read from the store's files. */
+    public long diskReads() {
+        return disk.tableReads();
+    }
+
+    /** Files a lookup skipped because their bloom filter ruled the key out. */
+    public long bloomSkips() {
+        return disk.bloomSkips();
+    }
+
+    public long diskFlushes() {
+        return disk.flushes();
+    }
+
+    public long diskMerges() {
+        return disk.merges();
+    }
+
+    public int diskFiles() {
+        return disk.tableCount();
+    }
+
+    public long diskBytes() {
+        return disk.fileBytes();
+    }
+
+    /** Heap used by the disk store: writes not yet on disk, and the files' indexes and filters. */
+    public long diskHeapBytes() {
+        return disk.heapBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        loader.shutdown();
+        disk.close();
+        if (temporary) {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private StoredBook load(long key) {
+        int stripe = stripe(key);
+        long stamp = writeStamps.get(stripe);
+        StoredBook book = disk.read(key);
+        if (book != null) {
+            BookCache.Entry added = cache.putIfAbsent(key, book);
+            if (added != null && writeStamps.get(stripe) != stamp) {
+                // A write to the stripe landed while the disk was read, so the book may already be stale
+                cache.remove(added);
+            }
+        }
+        return book;
+    }
+
+    private static int stripe(long key) {
+        return (int) (key & (STRIPES - 1));
+    }
+}
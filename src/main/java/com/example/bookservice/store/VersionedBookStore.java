@@ -0,0 +1,464 @@
+package com.example.bookservice.store;
+
+import com.example.BookServiceProto;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adds point-in-time snapshots to another store. Every write is stamped
+ * with the next number of a store-wide clock; a {@link Snapshot} sees the
+ * catalogue exactly as it was at the stamp it was opened on, however long
+ * it is read for, and reading it takes no lock.
+ *
+ * The store underneath only ever holds the current version of a book.
+ * While a snapshot is open, each write first records the version it is
+ * about to replace (or that the key held no book) in the key's history,
+ * newest first. A snapshot reads the current version and then walks the
+ * history back to the oldest entry stamped after it: that entry's version
+ * is the one the snapshot sees. History older than every open snapshot
+ * is dropped once the oldest snapshot closes, and with no snapshot open
+ * writes record nothing.
+ *
+ * There is no store-wide lock. A write takes its stamp from an atomic
+ * counter while holding the lock of its key's stripe, so writes of one
+ * book are stamped in the order they land, and writes of different books
+ * never wait for each other. Stamps still being written are kept in a
+ * pending set. A snapshot opens at the newest stamp handed out and waits
+ * for the pending stamps up to it to finish; every write stamped after it
+ * sees the snapshot open and records what it replaces.
+ */
+public final class VersionedBookStore implements BookStore {
+
+    // Power of two
+    private static final int STRIPES = 64;
+
+    private final BookStore books;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // Earlier versions of books written while a snapshot was open, by key
+    private final ConcurrentSkipListMap<Long, Version> history = new ConcurrentSkipListMap<>();
+    private final AtomicInteger retained = new AtomicInteger();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    // Stamp up to which history has been asked to be pruned
+    private final AtomicLong pruneTo = new AtomicLong();
+    // Highest stamp handed out; every stamp up to it has been added to pending
+    private final AtomicLong issued = new AtomicLong();
+    // Stamps handed out whose writes have not finished
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+    // Snapshots open; writes record history while there are any
+    private final AtomicInteger opened = new AtomicInteger();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // Guarded by snapshotLock: how many snapshots are open at each stamp
+    private final TreeMap<Long, Integer> open = new TreeMap<>();
+
+    public VersionedBookStore(BookStore books) {
+        this.books = books;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book get(long key) {
+        return books.get(key);
+    }
+
+    @Override
+    public StoredBook read(long key) {
+        return books.read(key);
+    }
+
+    @Override
+    public CompletableFuture<StoredBook> readAsync(long key) {
+        return books.readAsync(key);
+    }
+
+    @Override
+    public void insert(long key, BookServiceProto.Book book) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        Write write = begin();
+        try {
+            if (write.recording) {
+                record(key, write.stamp, books.read(key));
+            }
+            books.insert(key, book);
+        } finally {
+            finish(write);
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(long key, BookServiceProto.Book expected, BookServiceProto.Book updated) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        Write write = begin();
+        try {
+            if (write.recording) {
+                StoredBook current = books.read(key);
+                if (current == null || current.book().getVersion() != expected.getVersion()) {
+                    return false;
+                }
+                record(key, write.stamp, current);
+            }
+            return books.replace(key, expected, updated);
+        } finally {
+            finish(write);
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public BookServiceProto.Book remove(long key) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        Write write = begin();
+        try {
+            if (write.recording) {
+                StoredBook current = books.read(key);
+                if (current == null) {
+                    return null;
+                }
+                record(key, write.stamp, current);
+            }
+            return books.remove(key);
+        } finally {
+            finish(write);
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<StoredBook> readAfter(long afterKey) {
+        return books.readAfter(afterKey);
+    }
+
+    @Override
+    public int size() {
+        return books.size();
+    }
+
+    /**
+     * Replaces several books as one write: the replacements share a stamp,
+     * so every snapshot sees all of them or none. Build the new versions
+     * beforehand; this only checks and installs them, holding the stripe
+     * locks of the keys, in stripe order. A snapshot opened meanwhile
+     * waits for it; writes of other stripes and reads do not.
+     * @param keys distinct keys of the books to replace
+     * @param expected the current version of each book, in key order
+     * @param updated the version to replace each book with
+     * @return false, having replaced nothing, if any book is not at its expected version
+     */
+    public boolean replaceAll(long[] keys, List<BookServiceProto.Book> expected,
+                              List<BookServiceProto.Book> updated) {
+        BitSet used = new BitSet(STRIPES);
+        for (long key : keys) {
+            used.set((int) (key & (STRIPES - 1)));
+        }
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            stripes[i].lock();
+        }
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                StoredBook current = books.read(keys[i]);
+                if (current == null || current.book().getVersion() != expected.get(i).getVersion()) {
+                    return false;
+                }
+            }
+            Write write = begin();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    if (write.recording) {
+                        record(keys[i], write.stamp, books.read(keys[i]));
+                    }
+                    books.replace(keys[i], expected.get(i), updated.get(i));
+                }
+            } finally {
+                finish(write);
+            }
+            return true;
+        } finally {
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens a snapshot of the store as it is now. Close it when done: until
+     * then the store keeps every version it needs.
+     */
+    public Snapshot snapshot() {
+        long stamp;
+        snapshotLock.lock();
+        try {
+            // Counted before the stamp is read, so every write stamped after it records history
+            opened.incrementAndGet();
+            stamp = issued.get();
+            open.merge(stamp, 1, Integer::sum);
+        } finally {
+            snapshotLock.unlock();
+        }
+        // Writes stamped up to the snapshot may not be recording; let them land first
+        for (int spins = 0; oldestPending() <= stamp; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return new Snapshot(stamp);
+    }
+
+    /**
+     * Earlier versions kept for open snapshots.
+     */
+    public int retainedVersions() {
+        return retained.get();
+    }
+
+    private ReentrantLock stripe(long key) {
+        return stripes[(int) (key & (STRIPES - 1))];
+    }
+
+    /**
+     * Takes a stamp for a write and decides whether the write records what
+     * it replaces. The caller holds the stripe locks of the keys it writes.
+     */
+    private Write begin() {
+        // A stamp is in pending before issued reaches it, so a snapshot opened at
+        // issued finds every write stamped up to it
+        while (true) {
+            long stamp = issued.get() + 1;
+            if (pending.add(stamp)) {
+                if (issued.compareAndSet(stamp - 1, stamp)) {
+                    return new Write(stamp, opened.get() > 0);
+                }
+                pending.remove(stamp);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private void finish(Write write) {
+        pending.remove(write.stamp);
+    }
+
+    private long oldestPending() {
+        Long oldest = pending.ceiling(Long.MIN_VALUE);
+        return oldest == null ? Long.MAX_VALUE : oldest;
+    }
+
+    // Recorded before the write lands, so a reader that sees the new version
+    // also finds the one it replaced. The caller holds the key's stripe lock.
+    private void record(long key, long stamp, StoredBook replaced) {
+        history.compute(key, (k, newest) -> new Version(stamp, replaced, newest));
+        retained.incrementAndGet();
+    }
+
+    private void close(Snapshot snapshot) {
+        long oldest;
+        snapshotLock.lock();
+        try {
+            int remaining = open.merge(snapshot.stamp, -1, Integer::sum);
+            opened.decrementAndGet();
+            if (remaining > 0) {
+                return;
+            }
+            open.remove(snapshot.stamp);
+            if (!open.isEmpty() && open.firstKey() < snapshot.stamp) {
+                return;
+            }
+            // A snapshot opened later opens at issued or above it
+            oldest = open.isEmpty() ? issued.get() : open.firstKey();
+        } finally {
+            snapshotLock.unlock();
+        }
+        prune(oldest);
+    }
+
+    /**
+     * Drops history no snapshot can need any more: versions replaced at or
+     * before oldest. Snapshots opened later have later stamps, so this runs
+     * alongside writers and readers. One thread prunes at a time; a close
+     * that finds it busy leaves its stamp for that thread to prune up to.
+     */
+    private void prune(long oldest) {
+        pruneTo.accumulateAndGet(oldest, Math::max);
+        while (pruning.compareAndSet(false, true)) {
+            long target = pruneTo.get();
+            try {
+                for (Map.Entry<Long, Version> entry : history.entrySet()) {
+                    Version newest = entry.getValue();
+                    if (newest.stamp <= target) {
+                        if (history.remove(entry.getKey(), newest)) {
+                            retained.addAndGet(-newest.length());
+                        }
+                        continue;
+                    }
+                    Version kept = newest;
+                    while (kept.older != null && kept.older.stamp > target) {
+                        kept = kept.older;
+                    }
+                    Version dropped = kept.older;
+                    if (dropped != null) {
+                        kept.older = null;
+                        retained.addAndGet(-dropped.length());
+                    }
+                }
+            } finally {
+                pruning.set(false);
+            }
+            if (pruneTo.get() == target) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The catalogue as of one stamp. Thread-safe; closing it more than once
+     * has no further effect.
+     */
+    public final class Snapshot implements AutoCloseable {
+        private final long stamp;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(long stamp) {
+            this.stamp = stamp;
+        }
+
+        /**
+         * @return the book as of this snapshot, or null if there was none
+         */
+        public StoredBook read(long key) {
+            return asOf(key, books.read(key));
+        }
+
+        public BookServiceProto.Book get(long key) {
+            StoredBook stored = read(key);
+            return stored == null ? null : stored.book();
+        }
+
+        /**
+         * The books of this snapshot with a key greater than afterKey, in
+         * key order, including any deleted or replaced since it was opened.
+         */
+        public Iterator<StoredBook> readAfter(long afterKey) {
+            Iterator<StoredBook> current = books.readAfter(afterKey);
+            return new Iterator<StoredBook>() {
+                private long position = afterKey;
+                private StoredBook nextCurrent;
+                private StoredBook next = advance();
+
+                // Merges the live books with the keys that have history, which include
+                // every key deleted since the snapshot. The next key with history is
+                // looked up after the next live book: a book the live iteration
+                // skipped was deleted before then, so its history is there by then.
+                private StoredBook advance() {
+                    while (true) {
+                        if (nextCurrent == null && current.hasNext()) {
+                            nextCurrent = current.next();
+                        }
+                        Long changed = history.higherKey(position);
+                        StoredBook book;
+                        if (nextCurrent != null && (changed == null || nextCurrent.key() <= changed)) {
+                            position = nextCurrent.key();
+                            book = asOf(position, nextCurrent);
+                            nextCurrent = null;
+                        } else if (changed != null) {
+                            position = changed;
+                            book = read(position);
+                        } else {
+                            return null;
+                        }
+                        if (book != null) {
+                            return book;
+                        }
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public StoredBook next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    StoredBook book = next;
+                    next = advance();
+                    return book;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                VersionedBookStore.this.close(this);
+            }
+        }
+
+        // The current version must be read before the history: a write records
+        // what it replaces before it lands, so the history then covers it
+        private StoredBook asOf(long key, StoredBook current) {
+            StoredBook book = current;
+            for (Version version = history.get(key); version != null && version.stamp > stamp;
+                 version = version.older) {
+                book = version.replaced;
+            }
+            return book;
+        }
+    }
+
+    /**
+     * A write in progress: its stamp, and whether it records history.
+     */
+    private static final class Write {
+        final long stamp;
+        final boolean recording;
+
+        Write(long stamp, boolean recording) {
+            this.stamp = stamp;
+            this.recording = recording;
+        }
+    }
+
+    /**
+     * The version of a book a write replaced, and the write's stamp.
+     */
+    private static final class Version {
+        final long stamp;
+        // Null if the key held no book
+        final StoredBook replaced;
+        // Cut by pruning once no snapshot can reach it
+        volatile Version older;
+
+        Version(long stamp, StoredBook replaced, Version older) {
+            this.stamp = stamp;
+            this.replaced = replaced;
+            this.older = older;
+        }
+
+        int length() {
+            int length = 0;
+            for (Version version = this; version != null; version = version.older) {
+                length++;
+            }
+            return length;
+        }
+    }
+}
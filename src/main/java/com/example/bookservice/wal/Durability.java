@@ -0,0 +1,23 @@
+package com.example.bookservice.wal;
+
+import java.util.Locale;
+
+/**
+ * When a logged write counts as done.
+ */
+public enum Durability {
+    /** Each write forces the log to disk before it is acknowledged. */
+    SYNC,
+    /** Writes wait for a shared background fsync that covers every write appended before it started. */
+    GROUP,
+    /** Writes are acknowledged straight away and the log is forced in the background every few hundred ms. */
+    ASYNC;
+
+    public static Durability parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability '" + value + "', expected sync, group or async");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.bookservice.wal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped, pre-sized log file. Each record is framed as
+ * [length:int][crc32:int][payload]; the zero-filled tail of the file reads
+ * as a zero length and marks the end of the written records.
+ */
+final class LogSegment implements Closeable {
+    static final int FRAME_HEADER_BYTES = 8;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private final long firstSequence;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private LogSegment(long firstSequence, FileChannel channel, MappedByteBuffer buffer) {
+        this.firstSequence = firstSequence;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static LogSegment create(Path directory, long firstSequence, int sizeBytes) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(fileName(firstSequence)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new LogSegment(firstSequence, channel, buffer);
+    }
+
+    /**
+     * Opens an existing segment to append after its last intact record.
+     * Whatever follows that record, such as a frame torn by a crash, is
+     * zeroed first, so it can never be read back after the new records.
+     */
+    static LogSegment reopen(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            scan(buffer, payload -> { });
+            int end = buffer.position();
+            for (int i = end; i < buffer.limit(); i++) {
+                // Only written where needed, so the untouched tail of the file stays unwritten
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            buffer.force();
+            buffer.position(end);
+            return new LogSegment(firstSequence(path), channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static String fileName(long firstSequence) {
+        return String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX);
+    }
+
+    static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    static long firstSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    long firstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * @return false if the record does not fit in what is left of the segment
+     */
+    boolean append(byte[] payload) {
+        if (buffer.remaining() < FRAME_HEADER_BYTES + payload.length) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        return true;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Hands every intact record in the file to the consumer, stopping at the
+     * first empty or torn frame.
+     * @return the number of records read
+     */
+    static long read(Path path, Consumer<byte[]> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), consumer);
+        }
+    }
+
+    // Leaves the buffer positioned just after the last intact record
+    private static long scan(MappedByteBuffer buffer, Consumer<byte[]> consumer) {
+        long records = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= FRAME_HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+            consumer.accept(payload);
+            records++;
+        }
+        return records;
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.bookservice.wal;
+
+import com.example.BookServiceProto;
+
+/**
+ * Receives the books from the latest snapshot and then every logged mutation
+ * after it. Records for the same book may arrive out of version order, so
+ * implementations keep whichever version is highest.
+ */
+public interface RecoveryListener {
+
+    void onPut(BookServiceProto.Book book);
+
+    void onDelete(String bookId, long version);
+}
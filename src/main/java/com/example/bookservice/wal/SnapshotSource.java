@@ -0,0 +1,18 @@
+package com.example.bookservice.wal;
+
+import com.example.BookServiceProto;
+import java.util.Iterator;
+
+/**
+ * What the log needs to write a snapshot of the live catalogue.
+ */
+public interface SnapshotSource {
+
+    long nextBookKey();
+
+    /**
+     * Books to write. The iteration does not have to be a consistent cut:
+     * records logged after the snapshot started are replayed on top of it.
+     */
+    Iterator<BookServiceProto.Book> books();
+}
@@ -0,0 +1,424 @@
+package com.example.bookservice.wal;
+
+import com.example.BookLogProto;
+import com.example.BookServiceProto;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of book mutations, stored as length-prefixed LogRecords in
+ * memory-mapped segment files, plus periodic compacted snapshots.
+ *
+ * Lifecycle: {@link #open}, then {@link #recover} once to replay the latest
+ * snapshot and the log after it, then {@link #start} before the first append.
+ * A snapshot lets every segment it fully covers be deleted, so startup only
+ * replays the snapshot plus a short tail.
+ */
+public final class WriteAheadLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    public static final long DEFAULT_SNAPSHOT_EVERY_RECORDS = 1_000_000;
+
+    private static final long ASYNC_FLUSH_INTERVAL_MS = 200;
+    private static final long SNAPSHOT_CHECK_INTERVAL_MS = 5_000;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final Durability durability;
+    private final int segmentBytes;
+    private final long snapshotEveryRecords;
+
+    private final Object appendLock = new Object();
+    private final Object flushLock = new Object();
+    // Writes still waiting for a group commit, in sequence order; guarded by appendLock
+    private final ArrayDeque<PendingWrite> pending = new ArrayDeque<>();
+    // Guarded by appendLock
+    private LogSegment active;
+    private long lastSequence;
+    private boolean recovered;
+
+    private volatile long durableSequence;
+    private volatile long snapshotSequence;
+    private volatile boolean closed;
+    private Thread flusher;
+    private ScheduledExecutorService snapshotter;
+
+    private WriteAheadLog(Path directory, Durability durability, int segmentBytes, long snapshotEveryRecords) {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+    }
+
+    public static WriteAheadLog open(Path directory, Durability durability) throws IOException {
+        return open(directory, durability, DEFAULT_SEGMENT_BYTES, DEFAULT_SNAPSHOT_EVERY_RECORDS);
+    }
+
+    public static WriteAheadLog open(Path directory, Durability durability,
+                                     int segmentBytes, long snapshotEveryRecords) throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path leftover : files.filter(p -> p.toString().endsWith(TEMP_SUFFIX)).collect(Collectors.toList())) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        return new WriteAheadLog(directory, durability, segmentBytes, snapshotEveryRecords);
+    }
+
+    /**
+     * Replays the newest snapshot and then every intact log record after it.
+     * @return the next book key stored in the snapshot, or 0 if there is none
+     */
+    public long recover(RecoveryListener listener) throws IOException {
+        synchronized (appendLock) {
+            if (recovered) {
+                throw new IllegalStateException("Log already recovered");
+            }
+
+            long nextBookKey = 0;
+            long snapshotUpTo = 0;
+            Path snapshot = latestSnapshot();
+            if (snapshot != null) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16)) {
+                    // One decoder for the whole file; parseDelimitedFrom would build one per book
+                    CodedInputStream decoder = CodedInputStream.newInstance(in);
+                    decoder.setSizeLimit(Integer.MAX_VALUE);
+                    BookLogProto.SnapshotHeader header =
+                            decoder.readMessage(BookLogProto.SnapshotHeader.parser(), ExtensionRegistryLite.getEmptyRegistry());
+                    nextBookKey = header.getNextBookKey();
+                    snapshotUpTo = header.getLastSequence();
+                    while (!decoder.isAtEnd()) {
+                        listener.onPut(decoder.readMessage(BookServiceProto.Book.parser(),
+                                ExtensionRegistryLite.getEmptyRegistry()));
+                        decoder.resetSizeCounter();
+                    }
+                }
+            }
+
+            long[] highest = {snapshotUpTo};
+            long skip = snapshotUpTo;
+            List<Path> segments = segments();
+            for (int i = 0; i < segments.size(); i++) {
+                Path segment = segments.get(i);
+                if (i + 1 < segments.size() && LogSegment.firstSequence(segments.get(i + 1)) <= skip + 1) {
+                    // Entirely covered by the snapshot
+                    Files.deleteIfExists(segment);
+                    continue;
+                }
+                LogSegment.read(segment, payload -> {
+                    BookLogProto.LogRecord record = parse(payload);
+                    if (record.getSequence() <= skip) {
+                        return;
+                    }
+                    if (record.hasPut()) {
+                        listener.onPut(record.getPut());
+                    } else if (record.hasDelete()) {
+                        listener.onDelete(record.getDelete().getId(), record.getDelete().getVersion());
+                    } else if (record.hasBatch()) {
+                        for (BookServiceProto.Book book : record.getBatch().getPutsList()) {
+                            listener.onPut(book);
+                        }
+                    }
+                    highest[0] = Math.max(highest[0], record.getSequence());
+                });
+            }
+
+            lastSequence = highest[0];
+            durableSequence = lastSequence;
+            snapshotSequence = snapshotUpTo;
+            // Carry on in the newest segment, after its torn tail is cleared, so restarts do not pile up segments
+            List<Path> remaining = segments();
+            active = remaining.isEmpty()
+                    ? LogSegment.create(directory, lastSequence + 1, segmentBytes)
+                    : LogSegment.reopen(remaining.get(remaining.size() - 1));
+            recovered = true;
+            return nextBookKey;
+        }
+    }
+
+    /**
+     * Starts the background flusher and the periodic snapshots.
+     */
+    public void start(SnapshotSource source) {
+        synchronized (appendLock) {
+            if (!recovered) {
+                throw new IllegalStateException("Log must be recovered before it is started");
+            }
+        }
+        if (durability != Durability.SYNC) {
+            flusher = new Thread(this::flushLoop, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wal-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                if (lastSequence() - snapshotSequence >= snapshotEveryRecords) {
+                    snapshot(source);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to write snapshot: " + e.getMessage());
+            }
+        }, SNAPSHOT_CHECK_INTERVAL_MS, SNAPSHOT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Long> appendPut(BookServiceProto.Book book) {
+        return append(BookLogProto.LogRecord.newBuilder().setPut(book));
+    }
+
+    /**
+     * Logs the books as one record, which recovery replays whole or not at all.
+     */
+    public CompletableFuture<Long> appendBatch(List<BookServiceProto.Book> books) {
+        return append(BookLogProto.LogRecord.newBuilder()
+                .setBatch(BookLogProto.Batch.newBuilder().addAllPuts(books)));
+    }
+
+    public CompletableFuture<Long> appendDelete(String bookId, long version) {
+        return append(BookLogProto.LogRecord.newBuilder()
+                .setDelete(BookLogProto.Deletion.newBuilder().setId(bookId).setVersion(version)));
+    }
+
+    /**
+     * Writes the source to a new snapshot file and drops the segments and
+     * older snapshots it makes redundant.
+     */
+    public void snapshot(SnapshotSource source) throws IOException {
+        long upTo = lastSequence();
+        if (upTo <= snapshotSequence) {
+            return;
+        }
+
+        Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, upTo, SNAPSHOT_SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            BookLogProto.SnapshotHeader.newBuilder()
+                    .setLastSequence(upTo)
+                    .setNextBookKey(source.nextBookKey())
+                    .build()
+                    .writeDelimitedTo(out);
+            Iterator<BookServiceProto.Book> books = source.books();
+            while (books.hasNext()) {
+                books.next().writeDelimitedTo(out);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        snapshotSequence = upTo;
+
+        for (Path old : snapshots()) {
+            if (!old.equals(target)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        // A segment is redundant once the segment after it starts within the snapshot
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (LogSegment.firstSequence(segments.get(i + 1)) <= upTo + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        synchronized (appendLock) {
+            if (active != null) {
+                active.close();
+            }
+        }
+    }
+
+    private CompletableFuture<Long> append(BookLogProto.LogRecord.Builder record) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        long sequence;
+        try {
+            synchronized (appendLock) {
+                if (!recovered || closed) {
+                    throw new IllegalStateException("Log is not accepting writes");
+                }
+                sequence = ++lastSequence;
+                byte[] payload = record.setSequence(sequence).build().toByteArray();
+                if (!active.append(payload)) {
+                    roll(sequence, payload.length);
+                    active.append(payload);
+                }
+                if (durability == Durability.GROUP) {
+                    pending.add(new PendingWrite(sequence, done));
+                    if (pending.size() == 1) {
+                        appendLock.notifyAll();
+                    }
+                    return done;
+                }
+            }
+            if (durability == Durability.SYNC) {
+                sync();
+            }
+            done.complete(sequence);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    // Caller holds appendLock
+    private void roll(long nextSequence, int payloadBytes) throws IOException {
+        if (LogSegment.FRAME_HEADER_BYTES + payloadBytes > segmentBytes) {
+            throw new IOException("Log record of " + payloadBytes + " bytes does not fit in a segment");
+        }
+        // Forcing here means a sync only ever has to force the active segment
+        active.force();
+        active.close();
+        active = LogSegment.create(directory, nextSequence, segmentBytes);
+    }
+
+    /**
+     * Forces everything appended so far and completes the writes it covers.
+     */
+    private void sync() {
+        long target;
+        LogSegment segment;
+        synchronized (appendLock) {
+            target = lastSequence;
+            segment = active;
+        }
+        synchronized (flushLock) {
+            if (segment != null && target > durableSequence) {
+                segment.force();
+                durableSequence = target;
+            }
+        }
+
+        List<PendingWrite> done = new ArrayList<>();
+        synchronized (appendLock) {
+            while (!pending.isEmpty() && pending.peek().sequence <= durableSequence) {
+                done.add(pending.poll());
+            }
+        }
+        for (PendingWrite write : done) {
+            write.future.complete(write.sequence);
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                if (durability == Durability.GROUP) {
+                    synchronized (appendLock) {
+                        while (pending.isEmpty() && !closed) {
+                            appendLock.wait();
+                        }
+                    }
+                } else {
+                    Thread.sleep(ASYNC_FLUSH_INTERVAL_MS);
+                }
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                failPending(e);
+            }
+        }
+    }
+
+    private void failPending(Exception cause) {
+        List<PendingWrite> failed;
+        synchronized (appendLock) {
+            failed = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (PendingWrite write : failed) {
+            write.future.completeExceptionally(cause);
+        }
+    }
+
+    private long lastSequence() {
+        synchronized (appendLock) {
+            return lastSequence;
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(LogSegment::isSegment)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path latestSnapshot() throws IOException {
+        List<Path> snapshots = snapshots();
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    private static BookLogProto.LogRecord parse(byte[] payload) {
+        try {
+            return BookLogProto.LogRecord.parseFrom(payload);
+        } catch (InvalidProtocolBufferException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class PendingWrite {
+        final long sequence;
+        final CompletableFuture<Long> future;
+
+        PendingWrite(long sequence, CompletableFuture<Long> future) {
+            this.sequence = sequence;
+            this.future = future;
+        }
+    }
+}
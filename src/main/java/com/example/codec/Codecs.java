@@ -0,0 +1,39 @@
+package com.example.codec;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+
+/**
+ * The message encodings servers and clients of the book service share:
+ * gRPC's gzip plus {@link ZstdCodec}. A channel or server built with these
+ * registries advertises both in grpc-accept-encoding, so the other side
+ * may compress with either.
+ */
+public final class Codecs {
+
+    public static final String GZIP = new Codec.Gzip().getMessageEncoding();
+    public static final String ZSTD = ZstdCodec.ENCODING;
+
+    private static final CompressorRegistry COMPRESSORS = newCompressors();
+    private static final DecompressorRegistry DECOMPRESSORS = DecompressorRegistry.getDefaultInstance()
+            .with(new ZstdCodec(), true);
+
+    private Codecs() {
+    }
+
+    public static CompressorRegistry compressors() {
+        return COMPRESSORS;
+    }
+
+    public static DecompressorRegistry decompressors() {
+        return DECOMPRESSORS;
+    }
+
+    private static CompressorRegistry newCompressors() {
+        CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+        registry.register(new Codec.Gzip());
+        registry.register(new ZstdCodec());
+        return registry;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.codec;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
+import io.grpc.Codec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * gRPC message compression with Zstandard, as the "zstd" encoding. At its
+ * fast levels it compresses catalogue pages about as well as gzip in a
+ * fraction of the time, and decompresses several times faster.
+ */
+public final class ZstdCodec implements Codec {
+
+    public static final String ENCODING = "zstd";
+    static final int DEFAULT_LEVEL = 1;
+
+    private final int level;
+
+    public ZstdCodec() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param level 1 (fastest) to 19; negative levels trade ratio for more speed
+     */
+    public ZstdCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getMessageEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) throws IOException {
+        return new ZstdOutputStreamNoFinalizer(os, RecyclingBufferPool.INSTANCE, level);
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        return new ZstdInputStreamNoFinalizer(is, RecyclingBufferPool.INSTANCE);
+    }
+}
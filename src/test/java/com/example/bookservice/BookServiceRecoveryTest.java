@@ -0,0 +1,117 @@
+package com.example.bookservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.BookServiceProto;
+import com.example.bookservice.wal.Durability;
+import com.example.bookservice.wal.WriteAheadLog;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookServiceRecoveryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void booksSurviveARestart() throws Exception {
+        WriteAheadLog log = open();
+        BookServiceImpl service = new BookServiceImpl(log);
+        String id = add(service, "Dune");
+        log.close();
+
+        WriteAheadLog reopened = open();
+        BookServiceImpl recovered = new BookServiceImpl(reopened);
+        BookServiceProto.BookResponse found = call(o -> recovered.getBook(
+                BookServiceProto.GetBookRequest.newBuilder().setId(id).build(), o));
+        reopened.close();
+        assertTrue(found.getSuccess());
+        assertEquals("Dune", found.getBook().getTitle());
+    }
+
+    @Test
+    void idsOfBooksDeletedInTheLogTailAreNotReissued() throws Exception {
+        WriteAheadLog log = open();
+        BookServiceImpl service = new BookServiceImpl(log);
+        add(service, "first");
+        String deleted = add(service, "second");
+        BookServiceProto.DeleteBookResponse response = call(o -> service.deleteBook(
+                BookServiceProto.DeleteBookRequest.newBuilder().setId(deleted).build(), o));
+        assertTrue(response.getSuccess());
+        log.close();
+
+        WriteAheadLog reopened = open();
+        String added = add(new BookServiceImpl(reopened), "third");
+        reopened.close();
+        assertTrue(Long.parseLong(added.substring(1)) > Long.parseLong(deleted.substring(1)),
+                added + " reuses or precedes the deleted " + deleted);
+    }
+
+    @Test
+    void writesAreRefusedOnceALogAppendFails() throws Exception {
+        WriteAheadLog log = open();
+        BookServiceImpl service = new BookServiceImpl(log);
+        AtomicInteger failures = new AtomicInteger();
+        service.onLogFailure(failures::incrementAndGet);
+        add(service, "logged");
+        log.close();
+
+        assertEquals(Status.Code.INTERNAL, failedWith(() -> add(service, "in flight")));
+        assertEquals(Status.Code.UNAVAILABLE, failedWith(() -> add(service, "after")));
+        assertEquals(1, failures.get());
+    }
+
+    private WriteAheadLog open() throws IOException {
+        return WriteAheadLog.open(dir, Durability.SYNC);
+    }
+
+    private static String add(BookServiceImpl service, String title) throws Exception {
+        BookServiceProto.BookResponse response = call(o -> service.addBook(BookServiceProto.AddBookRequest.newBuilder()
+                .setTitle(title)
+                .setAuthor("Author")
+                .setIsbn("isbn-" + title)
+                .build(), o));
+        assertTrue(response.getSuccess(), response.getMessage());
+        return response.getBook().getId();
+    }
+
+    private static Status.Code failedWith(Call call) {
+        ExecutionException failure = assertThrows(ExecutionException.class, call::run);
+        return Status.fromThrowable(failure.getCause()).getCode();
+    }
+
+    private static <T> T call(Consumer<StreamObserver<T>> method) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        method.accept(new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    private interface Call {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.bookservice.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.BookServiceProto;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DiskBookStoreTest {
+
+    private static final long FLUSH_BYTES = 4 * 1024;
+    private static final long RETRY_MILLIS = 10;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tablesAreWrittenAndReadBack() throws IOException {
+        try (DiskBookStore store = new DiskBookStore(dir.resolve("books"), FLUSH_BYTES, RETRY_MILLIS)) {
+            for (long key = 0; key < 500; key++) {
+                store.insert(key, book(key));
+            }
+            assertEquals(500, store.size());
+            assertEquals("Title of B42", store.get(42).getTitle());
+            assertTrue(store.flushes() > 0);
+        }
+    }
+
+    @Test
+    void writesAreRefusedOnceTablesCannotBeWritten() throws Exception {
+        Path tables = dir.resolve("books");
+        try (DiskBookStore store = new DiskBookStore(tables, FLUSH_BYTES, RETRY_MILLIS)) {
+            AtomicInteger failures = new AtomicInteger();
+            CompletableFuture<IOException> reported = new CompletableFuture<>();
+            store.onWriteFailure(cause -> {
+                failures.incrementAndGet();
+                reported.complete(cause);
+            });
+            // A file where the directory was, so every table write fails
+            Files.delete(tables);
+            Files.createFile(tables);
+
+            long key = 0;
+            UncheckedIOException refused = null;
+            while (refused == null && key < 10_000) {
+                try {
+                    store.insert(key, book(key));
+                    key++;
+                } catch (UncheckedIOException e) {
+                    refused = e;
+                }
+            }
+            assertNotNull(refused, "writes were still taken after every table write failed");
+            // Reported by the flusher, which may still be on its way there
+            assertNotNull(reported.get(5, TimeUnit.SECONDS));
+            long refusedKey = key;
+            assertThrows(UncheckedIOException.class, () -> store.insert(refusedKey, book(refusedKey)));
+            // What was taken before the failure is still there
+            assertEquals(key, store.size());
+            assertEquals("Title of B0", store.get(0).getTitle());
+            assertEquals(1, failures.get());
+        }
+    }
+
+    private static BookServiceProto.Book book(long key) {
+        return BookServiceProto.Book.newBuilder()
+                .setId("B" + key)
+                .setTitle("Title of B" + key)
+                .setAuthor("Author")
+                .setVersion(1)
+                .build();
+    }
+}
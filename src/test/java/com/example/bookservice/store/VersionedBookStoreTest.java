@@ -0,0 +1,160 @@
+package com.example.bookservice.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.example.BookServiceProto;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class VersionedBookStoreTest {
+
+    private static final int PAIRS = 50;
+    // Keys written one at a time, after the pairs
+    private static final long SINGLES = 2 * PAIRS;
+    private static final int SINGLE_COUNT = 100;
+
+    @Test
+    void snapshotKeepsTheCatalogueAsItWasWhenOpened() {
+        VersionedBookStore store = new VersionedBookStore(new HeapBookStore());
+        store.insert(1, book(1, 1));
+        store.insert(2, book(2, 1));
+
+        try (VersionedBookStore.Snapshot snapshot = store.snapshot()) {
+            store.replace(1, store.get(1), book(1, 2));
+            store.remove(2);
+            store.insert(3, book(3, 1));
+
+            assertEquals(1, snapshot.get(1).getVersion());
+            assertEquals(1, snapshot.get(2).getVersion());
+            assertNull(snapshot.get(3));
+            assertEquals(List.of(1L, 2L), keys(snapshot.readAfter(-1)));
+        }
+        assertEquals(0, store.retainedVersions());
+        assertEquals(List.of(1L, 3L), keys(store.readAfter(-1)));
+    }
+
+    @Test
+    void replaceAllReplacesNothingIfABookHasMoved() {
+        VersionedBookStore store = new VersionedBookStore(new HeapBookStore());
+        store.insert(1, book(1, 1));
+        store.insert(2, book(2, 1));
+        List<BookServiceProto.Book> expected = List.of(store.get(1), store.get(2));
+        store.replace(2, store.get(2), book(2, 2));
+
+        assertFalse(store.replaceAll(new long[] {1, 2}, expected, List.of(book(1, 2), book(2, 2))));
+        assertEquals(1, store.get(1).getVersion());
+    }
+
+    @Test
+    void snapshotsSeeAtomicWritesWholeWhileWritersRun() throws InterruptedException {
+        VersionedBookStore store = new VersionedBookStore(new HeapBookStore());
+        for (long key = 0; key < SINGLES + SINGLE_COUNT; key++) {
+            store.insert(key, book(key, 1));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong inconsistent = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    writePair(store);
+                    writeSingle(store);
+                }
+            }));
+        }
+        for (int i = 0; i < 2; i++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    inconsistent.addAndGet(checkSnapshot(store));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        TimeUnit.SECONDS.sleep(2);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, inconsistent.get());
+    }
+
+    // Moves both books of a random pair to the next version as one write
+    private static void writePair(VersionedBookStore store) {
+        int pair = ThreadLocalRandom.current().nextInt(PAIRS);
+        long[] keys = {2L * pair, 2L * pair + 1};
+        List<BookServiceProto.Book> current = new ArrayList<>();
+        List<BookServiceProto.Book> updated = new ArrayList<>();
+        for (long key : keys) {
+            BookServiceProto.Book book = store.get(key);
+            current.add(book);
+            updated.add(book(key, book.getVersion() + 1));
+        }
+        store.replaceAll(keys, current, updated);
+    }
+
+    private static void writeSingle(VersionedBookStore store) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long key = SINGLES + random.nextInt(SINGLE_COUNT);
+        if (random.nextInt(10) == 0) {
+            BookServiceProto.Book removed = store.remove(key);
+            if (removed != null) {
+                store.insert(key, book(key, removed.getVersion() + 1));
+            }
+        } else {
+            BookServiceProto.Book current = store.get(key);
+            if (current != null) {
+                store.replace(key, current, book(key, current.getVersion() + 1));
+            }
+        }
+    }
+
+    // Counts pairs seen half written, and books read differently a second time
+    private static long checkSnapshot(VersionedBookStore store) {
+        long inconsistent = 0;
+        try (VersionedBookStore.Snapshot snapshot = store.snapshot()) {
+            Map<Long, Long> versions = new HashMap<>();
+            for (Iterator<StoredBook> books = snapshot.readAfter(-1); books.hasNext(); ) {
+                StoredBook stored = books.next();
+                versions.put(stored.key(), stored.book().getVersion());
+            }
+            for (int pair = 0; pair < PAIRS; pair++) {
+                if (!Objects.equals(versions.get(2L * pair), versions.get(2L * pair + 1))) {
+                    inconsistent++;
+                }
+            }
+            Thread.yield();
+            for (long key = 0; key < SINGLES + SINGLE_COUNT; key++) {
+                BookServiceProto.Book book = snapshot.get(key);
+                if (!Objects.equals(book == null ? null : book.getVersion(), versions.get(key))) {
+                    inconsistent++;
+                }
+            }
+        }
+        return inconsistent;
+    }
+
+    private static List<Long> keys(Iterator<StoredBook> books) {
+        List<Long> keys = new ArrayList<>();
+        books.forEachRemaining(stored -> keys.add(stored.key()));
+        return keys;
+    }
+
+    private static BookServiceProto.Book book(long key, long version) {
+        return BookServiceProto.Book.newBuilder()
+                .setId("B" + key)
+                .setTitle("Title of B" + key)
+                .setVersion(version)
+                .build();
+    }
+}
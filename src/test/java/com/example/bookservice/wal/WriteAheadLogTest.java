@@ -0,0 +1,203 @@
+package com.example.bookservice.wal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.BookServiceProto;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoveryReplaysPutsAndDeletes() throws IOException {
+        WriteAheadLog log = open();
+        log.recover(new Replayed());
+        log.appendPut(book("B0", 1)).join();
+        log.appendPut(book("B1", 1)).join();
+        log.appendPut(book("B0", 2)).join();
+        log.appendDelete("B1", 2).join();
+        log.close();
+
+        Replayed replayed = recover();
+        assertEquals(Arrays.asList("B0", "B1", "B0"), replayed.putIds);
+        assertEquals(2, replayed.books.get("B0").getVersion());
+        assertEquals(Arrays.asList("B1"), replayed.deleted);
+    }
+
+    @Test
+    void tornTailIsDroppedAndAppendsGoAfterTheLastIntactRecord() throws IOException {
+        WriteAheadLog log = open();
+        log.recover(new Replayed());
+        for (int i = 0; i < 5; i++) {
+            log.appendPut(book("B" + i, 1)).join();
+        }
+        log.close();
+
+        // Tear the last record and leave half a frame after it, as a crash mid-append would
+        Path segment = segments().get(0);
+        long last = lastFrameStart(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(last + LogSegment.FRAME_HEADER_BYTES + 2);
+            file.write(0x5a);
+            file.seek(last + 200);
+            file.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        WriteAheadLog reopened = open();
+        Replayed replayed = new Replayed();
+        reopened.recover(replayed);
+        assertEquals(Arrays.asList("B0", "B1", "B2", "B3"), replayed.putIds);
+        reopened.appendPut(book("B9", 1)).join();
+        reopened.close();
+
+        assertEquals(Arrays.asList("B0", "B1", "B2", "B3", "B9"), recover().putIds);
+    }
+
+    @Test
+    void batchIsReplayedWholeOrNotAtAll() throws IOException {
+        WriteAheadLog log = open();
+        log.recover(new Replayed());
+        log.appendPut(book("B0", 1)).join();
+        log.appendBatch(Arrays.asList(book("B0", 2), book("B1", 2), book("B2", 2))).join();
+        log.close();
+        assertEquals(Arrays.asList("B0", "B0", "B1", "B2"), recover().putIds);
+
+        // A crash part way through writing the batch loses every book in it
+        Path segment = segments().get(0);
+        long last = lastFrameStart(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(last + LogSegment.FRAME_HEADER_BYTES + 40);
+            file.write(0x5a);
+        }
+        Replayed replayed = recover();
+        assertEquals(Arrays.asList("B0"), replayed.putIds);
+        assertEquals(1, replayed.books.get("B0").getVersion());
+    }
+
+    @Test
+    void restartsKeepAppendingToTheNewestSegment() throws IOException {
+        for (int restart = 0; restart < 3; restart++) {
+            WriteAheadLog log = open();
+            log.recover(new Replayed());
+            log.appendPut(book("B" + restart, 1)).join();
+            log.close();
+        }
+
+        assertEquals(1, segments().size());
+        assertEquals(Arrays.asList("B0", "B1", "B2"), recover().putIds);
+    }
+
+    @Test
+    void snapshotIsReplayedWithTheRecordsAfterIt() throws IOException {
+        WriteAheadLog log = open();
+        log.recover(new Replayed());
+        List<BookServiceProto.Book> books = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            books.add(book("B" + i, 1));
+            log.appendPut(books.get(i)).join();
+        }
+        log.snapshot(new SnapshotSource() {
+            @Override
+            public long nextBookKey() {
+                return 10;
+            }
+
+            @Override
+            public Iterator<BookServiceProto.Book> books() {
+                return books.iterator();
+            }
+        });
+        log.appendPut(book("B3", 1)).join();
+        log.appendDelete("B1", 2).join();
+        log.close();
+
+        WriteAheadLog reopened = open();
+        Replayed replayed = new Replayed();
+        assertEquals(10, reopened.recover(replayed));
+        reopened.close();
+        // Records the snapshot covers are not replayed a second time
+        assertEquals(Arrays.asList("B0", "B1", "B2", "B3"), replayed.putIds);
+        assertEquals(Arrays.asList("B1"), replayed.deleted);
+        assertFalse(replayed.books.containsKey("B1"));
+        assertTrue(replayed.books.containsKey("B3"));
+    }
+
+    private WriteAheadLog open() throws IOException {
+        return WriteAheadLog.open(dir, Durability.SYNC, SEGMENT_BYTES, Long.MAX_VALUE);
+    }
+
+    private Replayed recover() throws IOException {
+        WriteAheadLog log = open();
+        Replayed replayed = new Replayed();
+        log.recover(replayed);
+        log.close();
+        return replayed;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(LogSegment::isSegment).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long lastFrameStart(Path segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "r")) {
+            long start = -1;
+            long position = 0;
+            while (true) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length == 0) {
+                    return start;
+                }
+                start = position;
+                position += LogSegment.FRAME_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private static BookServiceProto.Book book(String id, long version) {
+        return BookServiceProto.Book.newBuilder()
+                .setId(id)
+                .setTitle("Title of " + id)
+                .setVersion(version)
+                .build();
+    }
+
+    private static final class Replayed implements RecoveryListener {
+        final List<String> putIds = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+        final Map<String, BookServiceProto.Book> books = new LinkedHashMap<>();
+
+        @Override
+        public void onPut(BookServiceProto.Book book) {
+            putIds.add(book.getId());
+            books.put(book.getId(), book);
+        }
+
+        @Override
+        public void onDelete(String bookId, long version) {
+            deleted.add(bookId);
+            books.remove(bookId);
+        }
+    }
+}